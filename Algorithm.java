@@ -39,7 +39,7 @@ public interface Algorithm {
      * The same limitations as the reconstruction algorithm apples to the tolerance of corrupted/tampered parameters.
      * @return Concluded data size
      */
-    public int concurDataSize() throws InsufficientFragmentsException;
+    public long concurDataSize() throws InsufficientFragmentsException;
 
     // TODO Use generics for these methods and let the cluster be agument1. But how!?
     /*
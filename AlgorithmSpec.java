@@ -7,9 +7,8 @@ import java.util.Map;
 /**
  * Enum to map algorithm names to their fragment format header values.
  * Created by tek-ti on 2014-09-11.
- * @deprecated Wrote this enum as part of another idea. Don't use it. Might still come in handy someday...
+ * Used by the erasure code fragment format (see ErasureFragment) to tell which algorithm produced a fragment.
  */
-@Deprecated
 public enum AlgorithmSpec {
     XOR ((short)1),
     HAMMING ((short)2),         // http://en.wikipedia.org/wiki/Hamming_code
@@ -0,0 +1,403 @@
+package net.comploud.code.bitfrag;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Asynchronous output of fragments to files, one file per fragment named by its cluster ID and piece index (like the
+ * CLI does). All fragments of a cluster are written in parallel through AsynchronousFileChannel, and completion is
+ * reported through a future per fragment (or per cluster). The calling thread never blocks: the files are opened on
+ * the executor.
+ *
+ * Each fragment is written with as few writes as possible: a small fragment has its header coalesced with the payload
+ * into a single buffer, so that it takes a single write. For a large one, copying the payload would cost more than it
+ * saves, so the header and the payload are written concurrently at their respective positions instead.
+ *
+ * Optionally, fragments are forced (fsync) to the storage device before their futures complete. Each file is forced
+ * on its own (there's no portable way to sync several files at once), but the syncs may be grouped: a group is synced
+ * by a single executor task once it is full, or when flush() or close() is called, and its futures complete together.
+ * The syncs are run on the executor, as they block.
+ */
+public class AsyncFragmentWriter implements Closeable {
+    /**
+     * Size (in bytes) of the largest payload whose header is coalesced with it into a single buffer.
+     */
+    public static final int COALESCE_THRESHOLD = 64 * 1024;
+
+    /**
+     * Directory to write the fragment files to.
+     */
+    private final Path directory;
+
+    /**
+     * Executor opening the files and running the syncs.
+     */
+    private final Executor executor;
+
+    /**
+     * Amount of fragments synced by a single task, or 0 to not sync at all.
+     */
+    private volatile int syncBatchSize = 0;
+
+    /**
+     * Written fragments waiting for their group to be synced.
+     */
+    private List<Pending> batch = new ArrayList<Pending>();
+
+    /**
+     * Whether close() has been called, after which nothing waits for a group to fill up.
+     */
+    private boolean closing = false;
+
+    /**
+     * Futures of all fragments not yet completed.
+     */
+    private final Set<CompletableFuture<Path>> outstanding = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Futures of the files being written, so that a file is never written by two writes at once.
+     */
+    private final ConcurrentMap<Path, CompletableFuture<Path>> writing = new ConcurrentHashMap<Path, CompletableFuture<Path>>();
+
+
+    /**
+     * Constructor, syncing on the common pool.
+     * @param directory Directory to write the fragment files to
+     */
+    public AsyncFragmentWriter(Path directory) {
+        this(directory, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor.
+     * @param directory Directory to write the fragment files to
+     * @param executor Executor to open the files and run the syncs on
+     */
+    public AsyncFragmentWriter(Path directory, Executor executor) {
+        this.directory = directory;
+        this.executor = executor;
+    }
+
+    /**
+     * Enable syncing of the fragment files before their futures complete.
+     * @param syncBatchSize Amount of fragments to sync by a single task (1 for a task per fragment), or 0 to not sync
+     *                      (the default, the files are then only as durable as the page cache)
+     */
+    public void setSyncBatchSize(int syncBatchSize) {
+        if(syncBatchSize < 0) {
+            throw new IllegalArgumentException("Invalid sync batch size: " + syncBatchSize);
+        }
+        this.syncBatchSize = syncBatchSize;
+    }
+
+    /**
+     * Write a fragment to its file (named by its cluster ID and piece index) asynchronously.
+     * An existing file is overwritten. If the write fails, the file is deleted. Writing a fragment whose file is still
+     * being written (i.e. the same piece of the same cluster) fails with a FileAlreadyExistsException, leaving the
+     * file to the write in progress.
+     * @param frag Fragment to write, with its payload
+     * @return Future completing with the file once written (and synced, if enabled)
+     * @throws IllegalArgumentException If the fragment is header-only or of an unknown type
+     * @throws IllegalStateException If the writer is closed
+     */
+    public CompletableFuture<Path> write(Fragment frag) {
+        ByteBuffer header;
+        if(frag.getPayload() == null) {
+            throw new IllegalArgumentException("Header-only fragments can't be written");
+        } else if(frag instanceof XORFragment) {
+            header = new BinaryXORFragmentWriter((XORFragment)frag).header();
+        } else if(frag instanceof ErasureFragment) {
+            header = new BinaryErasureFragmentWriter((ErasureFragment)frag).header();
+        } else {
+            throw new IllegalArgumentException("Unknown fragment type: " + frag.getClass().getName());
+        }
+        final CompletableFuture<Path> future = new CompletableFuture<Path>();
+        synchronized(this) {
+            if(closing) {
+                throw new IllegalStateException("Writer is closed");
+            }
+            outstanding.add(future);
+        }
+
+        final Path file = directory.resolve(frag.getClusterId() + "-" + frag.getPieceIndex() + ".frag");
+        if(writing.putIfAbsent(file, future) != null) {
+            complete(future, null, new FileAlreadyExistsException(file.toString(), null, "Already being written"));
+            return future;
+        }
+        final ByteBuffer fragHeader = header;
+        final ByteBuffer payload = frag.getPayload().duplicate();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    start(file, future, fragHeader, payload);
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            writing.remove(file, future);
+            complete(future, null, e);
+        }
+        return future;
+    }
+
+    /**
+     * Open a fragment file and start writing the fragment.
+     * Run on the executor, since opening a file blocks.
+     */
+    private void start(Path file, CompletableFuture<Path> future, ByteBuffer header, ByteBuffer payload) {
+        AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch(IOException e) {
+            writing.remove(file, future);
+            complete(future, null, e);
+            return;
+        } catch(RuntimeException e) {
+            writing.remove(file, future);
+            complete(future, null, e);
+            return;
+        }
+
+        Pending pending = new Pending(file, channel, future, payload.remaining());
+        if(payload.remaining() <= COALESCE_THRESHOLD) {
+            ByteBuffer buffer = ByteBuffer.allocate(header.remaining() + payload.remaining());
+            buffer.put(header);
+            buffer.put(payload);
+            buffer.flip();
+            pending.writes.set(1);
+            pending.write(buffer, 0);
+        } else {
+            pending.writes.set(2);
+            long payloadPosition = header.remaining();
+            pending.write(header, 0);
+            pending.write(payload, payloadPosition);
+        }
+    }
+
+    /**
+     * Write all fragments of a cluster asynchronously, in parallel.
+     * @param cluster Cluster to write, the fragments with their payloads
+     * @return Future completing with the files once all are written (and synced, if enabled), or exceptionally if any
+     *         of them failed
+     */
+    public CompletableFuture<List<Path>> write(Cluster<? extends Fragment> cluster) {
+        final List<CompletableFuture<Path>> futures = new ArrayList<CompletableFuture<Path>>();
+        for(Fragment frag : cluster) {
+            futures.add(write(frag));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(new Function<Void, List<Path>>() {
+            @Override
+            public List<Path> apply(Void ignored) {
+                List<Path> files = new ArrayList<Path>();
+                for(CompletableFuture<Path> future : futures) {
+                    files.add(future.join());
+                }
+                return files;
+            }
+        });
+    }
+
+    /**
+     * Sync the fragments written so far without waiting for their group to fill up.
+     * Fragments still being written are synced with their group as usual.
+     */
+    public void flush() {
+        List<Pending> full;
+        synchronized(this) {
+            full = drain();
+        }
+        sync(full);
+    }
+
+    /**
+     * Stop accepting fragments, then wait for all outstanding fragments to be written (and synced, if enabled).
+     * Failures are reported through the futures, not here.
+     */
+    @Override
+    public void close() {
+        List<Pending> full;
+        synchronized(this) {
+            closing = true;
+            full = drain();
+        }
+        sync(full);
+        for(CompletableFuture<Path> future : outstanding) {
+            try {
+                future.join();
+            } catch(RuntimeException e) {
+                // Reported through the future
+            }
+        }
+    }
+
+    /**
+     * Take the current group.
+     * Must be called with the lock held.
+     */
+    private List<Pending> drain() {
+        List<Pending> full = batch;
+        batch = new ArrayList<Pending>();
+        return full;
+    }
+
+    /**
+     * Handle a fragment whose writes have all completed.
+     */
+    private void written(Pending pending) {
+        int batchSize = syncBatchSize;
+        if(batchSize == 0) {
+            pending.finish(null);
+            return;
+        }
+        List<Pending> full = null;
+        synchronized(this) {
+            batch.add(pending);
+            if(batch.size() >= batchSize || closing) {
+                full = drain();
+            }
+        }
+        if(full != null) {
+            sync(full);
+        }
+    }
+
+    /**
+     * Sync a group of fragments, one by one, by a single task on the executor, then complete them.
+     */
+    private void sync(final List<Pending> full) {
+        if(full.isEmpty()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for(Pending pending : full) {
+                    IOException failure = null;
+                    try {
+                        pending.channel.force(true);
+                    } catch(IOException e) {
+                        failure = e;
+                    }
+                    pending.finish(failure);
+                }
+            }
+        });
+    }
+
+    /**
+     * Complete the future of a fragment, deleting its file upon failure.
+     * @param file The file, or null if nothing was written to it
+     */
+    private void complete(CompletableFuture<Path> future, Path file, Throwable failure) {
+        if(failure == null) {
+            writing.remove(file, future);
+            future.complete(file);
+        } else {
+            if(file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch(IOException e) {
+                    failure.addSuppressed(e);
+                }
+                writing.remove(file, future);   // Only once deleted, so that no other write's file is deleted
+            }
+            future.completeExceptionally(failure);
+        }
+        outstanding.remove(future);
+    }
+
+    /**
+     * A fragment being written.
+     * Each buffer is written by a chain of writes (a write may be partial) and the fragment is done once all chains
+     * are.
+     */
+    private class Pending {
+        private final Path file;
+        private final AsynchronousFileChannel channel;
+        private final CompletableFuture<Path> future;
+        private final long bytes;
+        private final long start;
+        private final AtomicInteger writes = new AtomicInteger();
+        private volatile Throwable failure = null;
+
+        private Pending(Path file, AsynchronousFileChannel channel, CompletableFuture<Path> future, long bytes) {
+            this.file = file;
+            this.channel = channel;
+            this.future = future;
+            this.bytes = bytes;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Write a buffer at a position, continuing until it's fully written.
+         */
+        private void write(final ByteBuffer buffer, final long position) {
+            channel.write(buffer, position, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer result, Void attachment) {
+                    if(buffer.hasRemaining()) {
+                        write(buffer, position + result);
+                    } else {
+                        done();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    failure = exc;
+                    done();
+                }
+            });
+        }
+
+        /**
+         * Called when a chain of writes is done.
+         */
+        private void done() {
+            if(writes.decrementAndGet() > 0) {
+                return;
+            }
+            if(failure != null) {
+                finish(failure);
+            } else {
+                written(this);
+            }
+        }
+
+        /**
+         * Close the file and complete the future.
+         */
+        private void finish(Throwable failure) {
+            try {
+                channel.close();
+            } catch(IOException e) {
+                if(failure == null) {
+                    failure = e;
+                }
+            }
+            Metrics metrics = Metrics.getActive();
+            if(metrics != null && failure == null) {
+                metrics.fragmentWritten(bytes, System.nanoTime() - start);
+            }
+            complete(future, file, failure);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package net.comploud.code.bitfrag;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Batch processing of whole directory trees.
+ * Every file of a tree is fragmented (or every fragment directory reconstructed) as an independent job on a fixed
+ * size thread pool. Jobs are started while the tree is still being walked, with a bounded amount of them pending, so
+ * work starts right away and large trees don't pile up in memory. Each job runs in stream mode, processing its file
+ * chunk by chunk, so the memory usage stays bounded no matter how large the files are, while the pool keeps several
+ * files in flight.
+ *
+ * The layout is symmetric: fragmenting input/a/b.txt writes the three fragment files to output/a/b.txt/ and
+ * reconstructing that fragment directory writes the data back to output/a/b.txt. Fragments directly in the input root
+ * of a reconstruction are written to output/<clusterId>.cluster.
+ */
+public class Batch {
+    /**
+     * Outcome of a single job.
+     */
+    public static class Result {
+        private final Path path;
+        private final boolean success;
+        private final String message;
+        private final long bytes;
+        private final long nanos;
+
+        public Result(Path path, boolean success, String message, long bytes, long nanos) {
+            this.path = path;
+            this.success = success;
+            this.message = message;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Get the input path of the job, relative to the input directory.
+         * @return Path
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Checks if the job succeeded.
+         * @return true upon success, false otherwise
+         */
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * Get a short description of the outcome.
+         * @return Message
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Get the amount of original data processed.
+         * @return Data size (in bytes)
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Get the time the job took.
+         * @return Duration (in nanoseconds)
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Amount of jobs running concurrently.
+     */
+    private final int threads;
+
+
+    /**
+     * Constructor.
+     * @param threads Amount of jobs to run concurrently
+     */
+    public Batch(int threads) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        this.threads = threads;
+    }
+
+
+    /**
+     * Fragment every regular file of a directory tree.
+     * Fragment files are named by their cluster IDs and piece indices and placed in a directory per input file, see
+     * the class description.
+     * @param inputDir Root of the tree to fragment
+     * @param outputDir Root of the fragment tree to create
+     * @return Results in walk order
+     * @throws IOException If the input tree can't be walked
+     * @throws InterruptedException If interrupted while waiting for the jobs
+     */
+    public List<Result> fragment(final Path inputDir, final Path outputDir) throws IOException, InterruptedException {
+        final Jobs jobs = new Jobs();
+        try {
+            Files.walkFileTree(inputDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) {
+                    if(attrs.isRegularFile()) {
+                        final Path relative = inputDir.relativize(file);
+                        return jobs.submit(relative, new Callable<Result>() {
+                            @Override
+                            public Result call() throws IOException {
+                                long start = System.nanoTime();
+                                Path fragDir = outputDir.resolve(relative);
+                                Files.createDirectories(fragDir);
+                                Cluster<XORFragment> cluster = BitFrag.fragmentFile(file, fragDir);
+                                long bytes = cluster.iterator().next().getClusterDataSize();
+                                return new Result(relative, true, "Created cluster " + cluster.getId(), bytes, System.nanoTime() - start);
+                            }
+                        });
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return jobs.results();
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    /**
+     * Reconstruct every fragment directory (any directory holding .frag files) of a tree.
+     * Each fragment directory must hold the fragments of exactly one cluster.
+     * @param inputDir Root of the fragment tree
+     * @param outputDir Root of the tree to write the reconstructed files to
+     * @return Results in walk order
+     * @throws IOException If the input tree can't be walked
+     * @throws InterruptedException If interrupted while waiting for the jobs
+     */
+    public List<Result> reconstruct(final Path inputDir, final Path outputDir) throws IOException, InterruptedException {
+        final Jobs jobs = new Jobs();
+        try {
+            Files.walkFileTree(inputDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, BasicFileAttributes attrs) throws IOException {
+                    final List<Path> fragFiles = new ArrayList<Path>();
+                    try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*.frag")) {
+                        for(Path entry : entries) {
+                            if(Files.isRegularFile(entry)) {
+                                fragFiles.add(entry);
+                            }
+                        }
+                    }
+                    if(!fragFiles.isEmpty()) {
+                        final Path relative = inputDir.relativize(dir);
+                        return jobs.submit(relative, new Callable<Result>() {
+                            @Override
+                            public Result call() throws Exception {
+                                return reconstructCluster(relative, fragFiles, outputDir, System.nanoTime());
+                            }
+                        });
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return jobs.results();
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    /**
+     * Reconstruct a single cluster from its fragment files in stream mode.
+     * The output file mirrors the fragment directory, except for fragments directly in the input root, which are
+     * written to <clusterId>.cluster like the -d option does. Whatever was written to the output file is removed
+     * unless the reconstruction succeeds.
+     */
+    private static Result reconstructCluster(Path relative, List<Path> fragFiles, Path outputDir, long start) throws Exception {
+        BinaryXORFragmentReader reader = new BinaryXORFragmentReader();
+        List<FileChannel> channels = new ArrayList<FileChannel>();
+        Path outfile = null;    // Only set once created (or truncated) by this job
+        boolean success = false;
+        try {
+            // Read all headers, skipping fragments that can't even be parsed
+            XORFragment[] frags = new XORFragment[3];
+            FileChannel[] pieces = new FileChannel[3];
+            Cluster<XORFragment> cluster = null;
+            for(Path fragFile : fragFiles) {
+                FileChannel channel = FileChannel.open(fragFile, StandardOpenOption.READ);
+                channels.add(channel);
+                XORFragment frag;
+                try {
+                    frag = reader.parseHeader(channel);
+                } catch(FragmentFormatException e) {
+                    continue;
+                }
+                if(cluster == null) {
+                    cluster = new Cluster<XORFragment>(frag.getClusterId());
+                } else if(!cluster.getId().equals(frag.getClusterId())) {
+                    return new Result(relative, false, "Fragments of more than one cluster", 0, System.nanoTime() - start);
+                }
+                if(frag.getPiece() >= 1 && frag.getPiece() <= 3) {
+                    cluster.add(frag);
+                    frags[frag.getPiece() - 1] = frag;
+                    pieces[frag.getPiece() - 1] = channel;
+                }
+            }
+            if(cluster == null) {
+                return new Result(relative, false, "No valid fragments", 0, System.nanoTime() - start);
+            }
+
+            XORAlgorithm algo = new XORAlgorithm(cluster);
+            ReconstructionReport report;
+            Path target = relative.toString().isEmpty() ? outputDir.resolve(cluster.getId() + ".cluster") : outputDir.resolve(relative);
+            if(target.getParent() != null) {
+                Files.createDirectories(target.getParent());
+            }
+            try(FileChannel output = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                outfile = target;
+                report = BitFrag.reconstruct(algo, output, frags, pieces);
+            }
+            success = true;
+            String message = report.flawless() ? "Flawless success" :
+                    "Restorative success (missing=" + report.getMissing() + ", corrupted=" + report.getCorrupted().size() + ", dissenting=" + report.getDissenting().size() + ")";
+            if(relative.toString().isEmpty()) {
+                message += ", wrote " + target.getFileName();
+            }
+            return new Result(relative, true, message, algo.concurDataSize(), System.nanoTime() - start);
+        } finally {
+            for(FileChannel channel : channels) {
+                channel.close();
+            }
+            if(!success && outfile != null) {
+                Files.deleteIfExists(outfile);  // Don't leave any unverified data behind
+            }
+        }
+    }
+
+    /**
+     * Jobs of a batch run, started on a fixed size pool as soon as they are submitted during the walk.
+     * At most twice as many jobs as there are threads are submitted but not yet finished at any time, so the walk
+     * blocks rather than queueing up the whole tree when it gets ahead of the jobs.
+     */
+    private class Jobs {
+        private final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        private final Semaphore slots = new Semaphore(threads * 2);
+        private final List<Path> paths = new ArrayList<Path>();
+        private final List<Future<Result>> futures = new ArrayList<Future<Result>>();
+
+        /**
+         * Submit a job, waiting for a slot if needed.
+         * @return CONTINUE, or TERMINATE if interrupted while waiting (with the interrupt status set)
+         */
+        public FileVisitResult submit(Path relative, final Callable<Result> job) {
+            try {
+                slots.acquire();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return FileVisitResult.TERMINATE;
+            }
+            try {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws Exception {
+                        try {
+                            return job.call();
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                }));
+            } catch(RejectedExecutionException e) {
+                slots.release();
+                throw e;
+            }
+            paths.add(relative);
+            return FileVisitResult.CONTINUE;
+        }
+
+        /**
+         * Wait for all jobs and collect their results in submission order, turning failures into failed results.
+         * @throws InterruptedException If interrupted while waiting, or if the walk was
+         */
+        public List<Result> results() throws InterruptedException {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            List<Result> results = new ArrayList<Result>();
+            for(int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch(ExecutionException e) {
+                    results.add(new Result(paths.get(i), false, describe(e.getCause()), 0, 0));
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Stop the pool, interrupting any jobs still running.
+         */
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Describe why a job failed.
+     */
+    private static String describe(Throwable cause) {
+        if(cause instanceof InsufficientFragmentsException) {
+            return "Insufficient fragments (" + ((InsufficientFragmentsException)cause).getAmountMissing() + " missing)";
+        } else if(cause instanceof ReconstructionException) {
+            return "Reconstruction failed, cluster digest mismatch (" + cause.getMessage() + ")";
+        } else if(cause instanceof IOException) {
+            return "Failed (IO): " + cause.getMessage();
+        } else {
+            return "Failed: " + cause;
+        }
+    }
+
+    /**
+     * Print a summary of a batch run: one line per job followed by the totals and the aggregate throughput.
+     * @param results Job results
+     * @param nanos Wall clock time of the whole batch (in nanoseconds)
+     * @param out Stream to print to
+     * @return Amount of failed jobs
+     */
+    public static int printSummary(List<Result> results, long nanos, PrintStream out) {
+        int failed = 0;
+        long bytes = 0;
+        for(Result result : results) {
+            if(result.isSuccess()) {
+                out.printf("OK    %s: %s (%d bytes, %.1f ms)%n", result.getPath(), result.getMessage(), result.getBytes(), result.getNanos() / 1e6);
+                bytes += result.getBytes();
+            } else {
+                out.printf("FAIL  %s: %s%n", result.getPath(), result.getMessage());
+                failed++;
+            }
+        }
+        double seconds = nanos / 1e9;
+        out.printf("%d files, %d succeeded, %d failed%n", results.size(), results.size() - failed, failed);
+        out.printf("%d bytes in %.2f s (%.1f MB/s)%n", bytes, seconds, seconds > 0 ? bytes / seconds / 1e6 : 0.0);
+        return failed;
+    }
+}
@@ -0,0 +1,125 @@
+package net.comploud.code.bitfrag;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Read a raw "binary" (non-encoded) erasure code fragment.
+ */
+public class BinaryErasureFragmentReader implements FragmentReader {
+    /**
+     * Parse a possible fragment from a buffer.
+     * The payload of the returned fragment is a slice of the buffer, so no payload data is copied. The buffer
+     * position is advanced past the fragment.
+     * @param buffer Buffer to read the fragment from
+     * @return A verified fragment
+     * @throws FragmentFormatException If the fragment is malformed or its UUID (digest) mismatches with the payload
+     */
+    @Override
+    public ErasureFragment parseFragment(ByteBuffer buffer) throws FragmentFormatException {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            short hVersion = buffer.getShort();
+            if(hVersion != ErasureFragment.SUPPORTED_FRAGMENT_VERSION) {
+                throw new FragmentFormatException("Unsupported version header: " + hVersion);
+            }
+            short hAlgorithm = buffer.getShort();
+            DigestSpec hDigest = lookupDigest(buffer.get());
+            UUID hCUuid = new UUID(buffer.getLong(), buffer.getLong());
+            UUID hFUuid = new UUID(buffer.getLong(), buffer.getLong());
+            long hDataSize = buffer.getLong();
+            int hDataPieces = buffer.get() & 0xff;
+            int hParityPieces = buffer.get() & 0xff;
+            int hPiece = buffer.get() & 0xff;
+            long hPayloadSize = buffer.getLong();
+            if(hPayloadSize < 0 || hPayloadSize > buffer.remaining()) {
+                throw new FragmentFormatException("Insufficient payload data: expected " + hPayloadSize + " bytes");
+            }
+
+            ByteBuffer hPayload = buffer.slice();
+            hPayload.limit((int)hPayloadSize);
+            buffer.position(buffer.position() + (int)hPayloadSize);
+            ErasureFragment frag = verify(new ErasureFragment(hVersion, hAlgorithm, hDigest, hCUuid, hFUuid, hDataSize, hDataPieces, hParityPieces, hPiece, hPayload));
+            if(metrics != null) {
+                metrics.fragmentRead(hPayloadSize, System.nanoTime() - start);
+            }
+            return frag;
+        } catch(BufferUnderflowException e) {
+            throw new FragmentFormatException("Insufficient header data");
+        }
+    }
+
+    /**
+     * Parse a possible fragment from an open input stream.
+     * The input stream have to be initialized and readable.
+     * This method will read an arbitrary amount of data from the stream (hence advancing its position).
+     * @param src Open and readable input stream to read fragment from
+     * @return A verified fragment
+     * @throws java.io.IOException Upon a failed stream operation
+     * @throws FragmentFormatException If the fragment is malformed or its UUID (digest) mismatches with the payload
+     */
+    @Override
+    public ErasureFragment parseFragment(InputStream src) throws IOException, FragmentFormatException {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        DataInputStream din = new DataInputStream(src);
+        short hVersion = din.readShort();
+        if(hVersion != ErasureFragment.SUPPORTED_FRAGMENT_VERSION) {
+            throw new FragmentFormatException("Unsupported version header: " + hVersion);
+        }
+        short hAlgorithm = din.readShort();
+        DigestSpec hDigest = lookupDigest(din.readByte());
+        UUID hCUuid = new UUID(din.readLong(), din.readLong());
+        UUID hFUuid = new UUID(din.readLong(), din.readLong());
+        long hDataSize = din.readLong();
+        int hDataPieces = din.readUnsignedByte();
+        int hParityPieces = din.readUnsignedByte();
+        int hPiece = din.readUnsignedByte();
+        long hPayloadSize = din.readLong();
+        if(hPayloadSize < 0 || hPayloadSize > Integer.MAX_VALUE) {
+            throw new FragmentFormatException("Payload size not supported in block mode: " + hPayloadSize);
+        }
+
+        byte[] hPayload = new byte[(int)hPayloadSize];
+        try {
+            din.readFully(hPayload);
+        } catch(EOFException e) {
+            throw new FragmentFormatException("Insufficient payload data: expected " + hPayloadSize + " bytes");
+        }
+        ErasureFragment frag = verify(new ErasureFragment(hVersion, hAlgorithm, hDigest, hCUuid, hFUuid, hDataSize, hDataPieces, hParityPieces, hPiece, ByteBuffer.wrap(hPayload)));
+        if(metrics != null) {
+            metrics.fragmentRead(hPayloadSize, System.nanoTime() - start);
+        }
+        return frag;
+    }
+
+    /**
+     * Look up a digest header value.
+     */
+    private static DigestSpec lookupDigest(byte header) throws FragmentFormatException {
+        DigestSpec digest = DigestSpec.lookup(header);
+        if(digest == null) {
+            throw new FragmentFormatException("Unsupported digest header: " + header);
+        }
+        return digest;
+    }
+
+    /**
+     * Do a consistency check of a freshly parsed fragment.
+     */
+    private static ErasureFragment verify(ErasureFragment frag) throws FragmentFormatException {
+        if(frag.getPiece() >= frag.getDataPieces() + frag.getParityPieces()) {
+            throw new FragmentFormatException("Piece out of range: " + frag.getPiece());
+        }
+        if(!frag.integrityCheck()) {
+            throw new FragmentFormatException("Fragment possibly corrupted (digest check failed)");
+        }
+        return frag;
+    }
+}
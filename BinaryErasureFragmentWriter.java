@@ -0,0 +1,89 @@
+package net.comploud.code.bitfrag;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Write a raw "binary" (non-encoded) erasure code fragment.
+ */
+public class BinaryErasureFragmentWriter implements FragmentWriter {
+    private ErasureFragment frag;
+
+    public BinaryErasureFragmentWriter(ErasureFragment frag) {
+        this.frag = frag;
+    }
+
+    /**
+     * Write this fragment into a buffer.
+     * The buffer must have at least ErasureFragment.HEADER_SIZE plus the payload size bytes remaining.
+     * @param buffer Destination buffer
+     */
+    @Override
+    public void writeFragment(ByteBuffer buffer) {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        buffer.put(header());
+        buffer.put(frag.getPayload().duplicate());
+        if(metrics != null) {
+            metrics.fragmentWritten(frag.getPayload().remaining(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Write this fragment to a stream.
+     * The stream must be initialized and open.
+     * @param stream Destination stream
+     * @throws IOException Upon a failed stream operation
+     */
+    @Override
+    public void writeFragment(OutputStream stream) throws IOException {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        stream.write(header().array());
+        ChannelUtil.writeFully(Channels.newChannel(stream), frag.getPayload().duplicate());
+        if(metrics != null) {
+            metrics.fragmentWritten(frag.getPayload().remaining(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Write this fragment to a channel.
+     * The header and the payload are written with a single gathering write where the channel supports it.
+     * @param channel Destination channel
+     * @throws IOException Upon a failed channel operation
+     */
+    @Override
+    public void writeFragment(WritableByteChannel channel) throws IOException {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        ChannelUtil.writeFully(channel, header(), frag.getPayload().duplicate());
+        if(metrics != null) {
+            metrics.fragmentWritten(frag.getPayload().remaining(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Build the binary header of this fragment.
+     * @return Header buffer, ready to be read
+     */
+    ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(ErasureFragment.HEADER_SIZE);
+        header.putShort(frag.getVersion());
+        header.putShort(frag.getAlgorithm());
+        header.put(frag.getDigest().headerValue());
+        header.putLong(frag.getClusterId().getMostSignificantBits());
+        header.putLong(frag.getClusterId().getLeastSignificantBits());
+        header.putLong(frag.getId().getMostSignificantBits());
+        header.putLong(frag.getId().getLeastSignificantBits());
+        header.putLong(frag.getClusterDataSize());
+        header.put((byte)frag.getDataPieces());
+        header.put((byte)frag.getParityPieces());
+        header.put((byte)frag.getPiece());
+        header.putLong(frag.getPayload().remaining());
+        header.flip();
+        return header;
+    }
+}
@@ -1,9 +1,13 @@
 package net.comploud.code.bitfrag;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.UUID;
 
 /**
@@ -14,9 +18,176 @@ public class BinaryXORFragmentReader implements FragmentReader {
 
     // TODO Remember: Do not check digest here, this is done during reconstruction
 
+    /**
+     * Parse a possible fragment from a buffer.
+     * The payload of the returned fragment is a slice of the buffer, so no payload data is copied. This works the
+     * same for heap, direct and mapped buffers. The buffer position is advanced past the fragment.
+     * @param buffer Buffer to read the fragment from
+     * @return A verified fragment
+     * @throws FragmentFormatException If the fragment is malformed or its UUID (digest) mismatches with the payload
+     */
     @Override
-    public Fragment parseFragment(ByteBuffer buffer) throws FragmentFormatException {
-        return null;
+    public XORFragment parseFragment(ByteBuffer buffer) throws FragmentFormatException {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        XORFragment header;
+        try {
+            header = parseHeader(buffer);
+        } catch(BufferUnderflowException e) {
+            throw new FragmentFormatException("Insufficient header data");
+        }
+        long hPayloadSize = header.getPayloadSize();
+        if(hPayloadSize > buffer.remaining()) {
+            throw new FragmentFormatException("Insufficient payload data: expected " + hPayloadSize + " bytes");
+        }
+
+        ByteBuffer hPayload = buffer.slice();
+        hPayload.limit((int)hPayloadSize);
+        buffer.position(buffer.position() + (int)hPayloadSize);
+        XORFragment frag = header.withPayload(hPayload);
+        if(!frag.integrityCheck()) {
+            throw new FragmentFormatException("Fragment possibly corrupted (digest check failed)");
+        }
+        if(metrics != null) {
+            metrics.fragmentRead(hPayloadSize, System.nanoTime() - start);
+        }
+        return frag;
+    }
+
+    /**
+     * Parse only the header of a possible fragment from a channel.
+     * This is used in stream mode, where the payload data is never held in memory. The channel is left positioned at
+     * the first byte of the payload data, which is not read. Hence the fragment digest can't be checked here.
+     * @param src Open and readable channel to read the fragment header from
+     * @return A header-only fragment
+     * @throws IOException Upon a failed channel operation
+     * @throws FragmentFormatException If the header is malformed
+     */
+    public XORFragment parseHeader(ReadableByteChannel src) throws IOException, FragmentFormatException {
+        ByteBuffer header = ByteBuffer.allocate(XORFragment.HEADER_SIZE);
+        if(ChannelUtil.readFully(src, header) != XORFragment.HEADER_SIZE) {
+            throw new FragmentFormatException("Insufficient header data");
+        }
+        header.flip();
+
+        // Read the stripe table too, if any
+        int tableSize = stripeTableSize(header);
+        if(tableSize > 0) {
+            ByteBuffer fullHeader = ByteBuffer.allocate(XORFragment.HEADER_SIZE + tableSize);
+            fullHeader.put(header);
+            if(ChannelUtil.readFully(src, fullHeader) != tableSize) {
+                throw new FragmentFormatException("Insufficient stripe table data");
+            }
+            fullHeader.flip();
+            header = fullHeader;
+        }
+        return parseHeader(header);
+    }
+
+    /**
+     * Parse a fragment from a file by memory-mapping its payload.
+     * The payload of the returned fragment is a read-only mapping of the file, so it's read straight from the page
+     * cache on demand and never copied onto the heap. The header is read from the current position of the channel.
+     * As in stream mode, the fragment digest isn't checked here (that would mean reading the whole file up front), so
+     * a corrupted fragment is only detected by the cluster digest during reconstruction.
+     * The channel may be closed once the fragment is parsed, the mapping stays valid.
+     * @param channel Open and readable file channel
+     * @return A fragment with a mapped payload
+     * @throws IOException Upon a failed channel operation
+     * @throws FragmentFormatException If the header is malformed or the file is shorter than the header says
+     */
+    public XORFragment mapFragment(FileChannel channel) throws IOException, FragmentFormatException {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        XORFragment header = parseHeader(channel);
+        long hPayloadSize = header.getPayloadSize();
+        if(hPayloadSize > Integer.MAX_VALUE) {
+            throw new FragmentFormatException("Payload size not supported in block mode: " + hPayloadSize);
+        }
+        if(hPayloadSize > channel.size() - channel.position()) {
+            throw new FragmentFormatException("Insufficient payload data: expected " + hPayloadSize + " bytes");
+        }
+        ByteBuffer hPayload = channel.map(FileChannel.MapMode.READ_ONLY, channel.position(), hPayloadSize);
+        if(metrics != null) {
+            metrics.fragmentRead(hPayloadSize, System.nanoTime() - start);
+        }
+        return header.withPayload(hPayload);
+    }
+
+    /**
+     * Parse a fragment header from a buffer, advancing its position past the header.
+     */
+    private static XORFragment parseHeader(ByteBuffer header) throws FragmentFormatException {
+        int tableSize = stripeTableSize(header);
+
+        // Read version header
+        short hVersion = header.getShort();
+        if(hVersion != XORAlgorithm.SUPPORTED_FRAGMENT_VERSION) {
+            throw new FragmentFormatException("Unsupported version header: " + hVersion);
+        }
+
+        // Read digest header
+        DigestSpec hDigest = DigestSpec.lookup(header.get());
+        if(hDigest == null) {
+            throw new FragmentFormatException("Unsupported digest header");
+        }
+
+        // Read cluster and fragment UUIDs
+        UUID hCUuid = new UUID(header.getLong(), header.getLong());
+        UUID hFUuid = new UUID(header.getLong(), header.getLong());
+
+        // Read cluster and fragment parameters
+        long hDataSize = header.getLong();
+        byte hPart = header.get();
+        int hStripeSize = header.getInt();
+        long hPayloadSize = header.getLong();
+        if(hPayloadSize < 0) {
+            throw new FragmentFormatException("Invalid payload size: " + hPayloadSize);
+        }
+
+        // Read the stripe table
+        UUID[] hStripeDigests = null;
+        if(hStripeSize != 0) {
+            hStripeDigests = new UUID[tableSize / XORFragment.STRIPE_ENTRY_SIZE];
+            for(int i = 0; i < hStripeDigests.length; i++) {
+                hStripeDigests[i] = new UUID(header.getLong(), header.getLong());
+            }
+        }
+
+        return new XORFragment(hVersion, hDigest, hCUuid, hFUuid, hDataSize, hPart, hStripeSize, hStripeDigests, hPayloadSize);
+    }
+
+    /**
+     * Validate the stripe parameters of a fixed fragment header and calculate the size of the stripe table following it.
+     * The header is read from its position on, which isn't advanced.
+     * @param header Buffer with at least the fixed part of the header remaining
+     * @return Stripe table size (in bytes)
+     * @throws FragmentFormatException If the stripe parameters are invalid
+     */
+    private static int stripeTableSize(ByteBuffer header) throws FragmentFormatException {
+        if(header.remaining() < XORFragment.HEADER_SIZE) {
+            throw new FragmentFormatException("Insufficient header data");
+        }
+        long hDataSize = header.getLong(header.position() + 2 + 1 + 16 + 16);
+        int hStripeSize = header.getInt(header.position() + 2 + 1 + 16 + 16 + 8 + 1);
+        return stripeTableSize(hDataSize, hStripeSize);
+    }
+
+    private static int stripeTableSize(long hDataSize, int hStripeSize) throws FragmentFormatException {
+        if(hStripeSize == 0) {
+            return 0;
+        }
+        if(hStripeSize < 0 || hStripeSize % 2 != 0) {
+            throw new FragmentFormatException("Invalid stripe size: " + hStripeSize);
+        }
+        if(hDataSize < 0) {
+            throw new FragmentFormatException("Invalid data size: " + hDataSize);
+        }
+        long count = XORFragment.stripeCount(hDataSize, hStripeSize);
+        if(count > XORFragment.MAX_STRIPE_COUNT) {
+            throw new FragmentFormatException("Stripe count not supported: " + count);
+        }
+        return (int)count * XORFragment.STRIPE_ENTRY_SIZE;
     }
 
     /**
@@ -30,6 +201,8 @@ public class BinaryXORFragmentReader implements FragmentReader {
      */
     @Override
     public XORFragment parseFragment(InputStream src) throws IOException, FragmentFormatException {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
         DataInputStream din = new DataInputStream(src);
 
         // Read version header
@@ -38,6 +211,12 @@ public class BinaryXORFragmentReader implements FragmentReader {
             throw new FragmentFormatException("Unsupported version header: " + hVersion);
         }
 
+        // Read digest header
+        DigestSpec hDigest = DigestSpec.lookup(din.readByte());
+        if(hDigest == null) {
+            throw new FragmentFormatException("Unsupported digest header");
+        }
+
         // Read cluster UUID
         long hCUuidMBits = din.readLong();
         long hCUuidLBits = din.readLong();
@@ -51,30 +230,50 @@ public class BinaryXORFragmentReader implements FragmentReader {
         // Keep this for later
 
         // Read cluster parameters
-        int hDataSize = din.readInt();
+        long hDataSize = din.readLong();
 
         // Read fragment parameters
         byte hPart = din.readByte();
+        int hStripeSize = din.readInt();
+        int tableSize = stripeTableSize(hDataSize, hStripeSize);
 
         // Read the payload data size
-        int hPayloadSize = din.readInt();
+        long hPayloadSize = din.readLong();
+        if(hPayloadSize < 0 || hPayloadSize > Integer.MAX_VALUE) {
+            // A byte array can't hold this. Use stream mode for fragments this large.
+            throw new FragmentFormatException("Payload size not supported in block mode: " + hPayloadSize);
+        }
+
+        // Read the stripe table
+        UUID[] hStripeDigests = null;
+        if(hStripeSize != 0) {
+            hStripeDigests = new UUID[tableSize / XORFragment.STRIPE_ENTRY_SIZE];
+            for(int i = 0; i < hStripeDigests.length; i++) {
+                hStripeDigests[i] = new UUID(din.readLong(), din.readLong());
+            }
+        }
 
         // Finally, read the payload data
-        byte[] hPayload = new byte[hPayloadSize];   // TODO Protect against aggressive mallocs?
-        int hPayloadRead = din.read(hPayload);
-        if(hPayloadRead != hPayloadSize) {
-            throw new FragmentFormatException("Insufficient payload data: " + hPayloadSize + " != " + hPayloadRead);
+        byte[] hPayload = new byte[(int)hPayloadSize];   // TODO Protect against aggressive mallocs?
+        try {
+            din.readFully(hPayload);
+        } catch(EOFException e) {
+            throw new FragmentFormatException("Insufficient payload data: expected " + hPayloadSize + " bytes");
         }
 
         // But first, let's do a consistency check!
-        UUID checkUuid = UUID.nameUUIDFromBytes(hPayload);
+        UUID checkUuid = UUIDDigester.digest(hDigest, ByteBuffer.wrap(hPayload));
         if(!checkUuid.equals(hFUuid)) {
             // Consistency check failed!
             throw new FragmentFormatException("Fragment possibly corrupted (digest check failed)");
         }
 
         // Create fragment
-        XORFragment frag = new XORFragment(hVersion, hCUuid, hFUuid, hDataSize, hPart, ByteBuffer.wrap(hPayload));
+        XORFragment frag = new XORFragment(hVersion, hDigest, hCUuid, hFUuid, hDataSize, hPart, hStripeSize, hStripeDigests,
+                ByteBuffer.wrap(hPayload));
+        if(metrics != null) {
+            metrics.fragmentRead(hPayloadSize, System.nanoTime() - start);
+        }
         return frag;
 
 
@@ -1,10 +1,10 @@
 package net.comploud.code.bitfrag;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.UUID;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Write a raw "binary" (non-encoded) XOR fragment.
@@ -17,9 +17,21 @@ public class BinaryXORFragmentWriter implements FragmentWriter {
         this.frag = frag;
     }
 
+    /**
+     * Write this fragment into a buffer.
+     * The buffer must have at least the header size of the fragment plus the payload size bytes remaining. The payload may be
+     * a heap or direct buffer, it is copied straight into the destination buffer.
+     * @param buffer Destination buffer
+     */
     @Override
-    public void writeFragment(ByteBuffer buffer) throws IOException {
-
+    public void writeFragment(ByteBuffer buffer) {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        buffer.put(header());
+        buffer.put(frag.getPayload().duplicate());
+        if(metrics != null) {
+            metrics.fragmentWritten(frag.getPayload().remaining(), System.nanoTime() - start);
+        }
     }
 
     /**
@@ -30,30 +42,64 @@ public class BinaryXORFragmentWriter implements FragmentWriter {
      */
     @Override
     public void writeFragment(OutputStream stream) throws IOException {
-        DataOutputStream dout = new DataOutputStream(stream);
-
-        // Write version and algorithm header
-        dout.writeShort(frag.getVersion());
-
-        // Write cluster UUID
-        UUID clusterUuid = frag.getClusterId();
-        dout.writeLong(clusterUuid.getMostSignificantBits());
-        dout.writeLong(clusterUuid.getLeastSignificantBits());
-
-        // Write frag UUID
-        dout.writeLong(frag.getId().getMostSignificantBits());
-        dout.writeLong(frag.getId().getLeastSignificantBits());
-
-        // Write cluster parameters
-        dout.writeInt(frag.getClusterDataSize());
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        stream.write(header().array());
+        ChannelUtil.writeFully(Channels.newChannel(stream), frag.getPayload().duplicate());
+        if(metrics != null) {
+            metrics.fragmentWritten(frag.getPayload().remaining(), System.nanoTime() - start);
+        }
+    }
 
-        // Write fragment parameters
-        dout.writeByte(frag.getPiece());
+    /**
+     * Write this fragment to a channel.
+     * The header and the payload are written with a single gathering write where the channel supports it (e.g.
+     * FileChannel and SocketChannel), so the payload is never copied into an intermediate buffer.
+     * @param channel Destination channel
+     * @throws IOException Upon a failed channel operation
+     */
+    @Override
+    public void writeFragment(WritableByteChannel channel) throws IOException {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        ChannelUtil.writeFully(channel, header(), frag.getPayload().duplicate());
+        if(metrics != null) {
+            metrics.fragmentWritten(frag.getPayload().remaining(), System.nanoTime() - start);
+        }
+    }
 
-        // Write payload size
-        dout.writeInt(frag.getPayload().array().length);
+    /**
+     * Write only the header of this fragment to a channel.
+     * This is used in stream mode, where the payload is written separately (and before the header is known).
+     * Exactly getHeaderSize() bytes of the fragment are written.
+     * @param channel Destination channel
+     * @throws IOException Upon a failed channel operation
+     */
+    public void writeHeader(WritableByteChannel channel) throws IOException {
+        ChannelUtil.writeFully(channel, header());
+    }
 
-        // Write payload data
-        dout.write(frag.getPayload().array());
+    /**
+     * Build the binary header of this fragment.
+     * @return Header buffer, ready to be read
+     */
+    ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(frag.getHeaderSize());
+        header.putShort(frag.getVersion());
+        header.put(frag.getDigest().headerValue());
+        header.putLong(frag.getClusterId().getMostSignificantBits());
+        header.putLong(frag.getClusterId().getLeastSignificantBits());
+        header.putLong(frag.getId().getMostSignificantBits());
+        header.putLong(frag.getId().getLeastSignificantBits());
+        header.putLong(frag.getClusterDataSize());
+        header.put(frag.getPiece());
+        header.putInt(frag.getStripeSize());
+        header.putLong(frag.getPayloadSize());
+        for(int i = 0; i < frag.getStripeCount(); i++) {
+            header.putLong(frag.getStripeDigest(i).getMostSignificantBits());
+            header.putLong(frag.getStripeDigest(i).getLeastSignificantBits());
+        }
+        header.flip();
+        return header;
     }
 }
@@ -1,10 +1,19 @@
 package net.comploud.code.bitfrag;
 
 import java.io.*;
-import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Execution class for BitFrag v0.1.
@@ -18,24 +27,48 @@ public class BitFrag {
         // Here be spagetti code for now
         if(argv.length < 1) {
             System.out.println(banner);
-            System.out.println("Usage: BitFrag [-d] <file(s)>");
+            System.out.println("Usage: BitFrag [-d [-m]] <file(s)>");
+            System.out.println("       BitFrag -b [-d] [-j <threads>] <input dir> <output dir>");
             System.out.println();
             System.out.println("\t-d\tDefrag (reconstruct) files");
+            System.out.println("\t-m\tMemory-map fragment and output files during reconstruction (clusters up to 2 GB)");
+            System.out.println("\t-b\tBatch mode: process a whole directory tree concurrently");
+            System.out.println("\t-j\tAmount of files to process concurrently in batch mode (default: one per CPU)");
             System.exit(1);
+        } else if(argv[0].equals("-b")) {
+            batch(argv);
         } else if(argv.length > 2 || argv[0].equals("-d")) {
             // Do reconstruction of input files
             BinaryXORFragmentReader reader = new BinaryXORFragmentReader();
             System.out.println(banner + " - Reconstruction mode");
+            boolean mapped = argv.length > 1 && argv[1].equals("-m");
 
-            // Open and read all input files
-            HashSet<Fragment> frags = new HashSet<Fragment>();
-            for(int i = 1; i < argv.length; i++) {
+            // Open all input files and read their headers. The payloads are streamed (or mapped) during reconstruction.
+            Map<Fragment, FileChannel> sources = new IdentityHashMap<Fragment, FileChannel>();
+            FragmentMapper mapper = new FragmentMapper();
+            for(int i = mapped ? 2 : 1; i < argv.length; i++) {
                 try {
                     File infile = new File(argv[i]);
                     System.out.print("Reading fragment file: " + infile + ": ");
                     System.out.flush();
-                    Fragment frag = reader.parseFragment(new FileInputStream(infile));
-                    frags.add(frag);
+                    FileChannel channel = FileChannel.open(infile.toPath(), StandardOpenOption.READ);
+                    if(mapped) {
+                        // The mapping outlives the channel
+                        try {
+                            mapper.map(reader.mapFragment(channel));
+                        } finally {
+                            channel.close();
+                        }
+                    } else {
+                        try {
+                            Fragment frag = reader.parseHeader(channel);
+                            sources.put(frag, channel);
+                            mapper.map(frag);
+                        } catch(FragmentFormatException e) {
+                            channel.close();
+                            throw e;
+                        }
+                    }
                     System.out.println("OK");
                 } catch(IOException e) {
                     System.out.println("Failed (IO): " + e.getMessage());
@@ -44,73 +77,247 @@ public class BitFrag {
                 }
             }
 
-            // Now try to match these fragments to each other in order to build a cluster (if possible)
-            FragmentMapper mapper = new FragmentMapper();
-            for(Fragment frag : frags) {
-                mapper.map(frag);
-            }
-
             // Attempt to reconstruct all discovered clusters (if possible)
             for(Cluster clust : mapper.getKnownClusters()) {
                 System.out.print("Reconstructing data for cluster " + clust.getId() + ": ");
                 System.out.flush();
-                int dataSize = 1024;    // TODO This is NOT ok!
-                ByteBuffer data = ByteBuffer.allocate(dataSize);    // TODO This is uncomfortable. Didn't see that one coming...
+                XORFragment[] frags = new XORFragment[3];
+                FileChannel[] pieces = new FileChannel[3];
+                for(int i = 0; i < 3; i++) {
+                    frags[i] = (XORFragment)clust.getPiece(i);
+                    pieces[i] = frags[i] == null ? null : sources.get(frags[i]);
+                }
                 XORAlgorithm algo = new XORAlgorithm(clust);
-                try {
-                    ReconstructionReport report = algo.reconstruct(data);
-
-                    // TODO The output file is the whole buffer... Fix!
+                File outfile = new File(clust.getId() + ".cluster");  // Keep it this simple for now
+                boolean success = false;
+                try(FileChannel outchannel = FileChannel.open(outfile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ReconstructionReport report = mapped ? reconstructMapped(algo, outchannel, frags) : reconstruct(algo, outchannel, frags, pieces);
+                    success = true;
 
                     // Success
                     if(report.flawless()) {
                         System.out.println("Flawless success!");
                     } else {
                         System.out.println("Restorative success!");
-                        System.out.println("Report: [missing=" + report.getMissing() + ", corrupted=" + report.getCorrupted() + ", tampered=" + report.getTampered() + "]");
+                        System.out.println("Report: [missing=" + report.getMissing() + ", corrupted=" + report.getCorrupted() + ", tampered=" + report.getTampered() + ", dissenting=" + report.getDissenting() + "]");
                     }
-
-                    File outfile = new File(clust.getId() + ".cluster");  // Keep it this simple for now
-                    System.out.print("Writing data to file: " + outfile + ": ");
-                    System.out.flush();
-                    FileOutputStream outstream = new FileOutputStream(outfile);
-                    outstream.getChannel().write(data);
-                    System.out.println("OK");
+                    System.out.println("Wrote data to file: " + outfile);
                 } catch(InsufficientFragmentsException e) {
-                    System.out.println("Insufficient fragments: " + e.getMessage());
+                    System.out.println("Insufficient fragments (" + e.getAmountMissing() + " missing)");
                 } catch(ReconstructionException e) {
                     System.out.println("Reconstruction failed: " + e.getMessage());
                 } catch(IOException e) {
                     System.out.println("Failed (IO): " + e.getMessage());
                 }
+                if(!success) {
+                    outfile.delete();   // Don't leave any unverified data behind
+                }
+            }
+
+            for(FileChannel channel : sources.values()) {
+                try {
+                    channel.close();
+                } catch(IOException e) {
+                    // Nothing more to do about it
+                }
             }
         } else {
             // Do fragmentation of input file
             System.out.println(banner + " - Fragmentation mode");
             try {
-                // Open and read the input file
-                FileChannel infile = FileChannel.open(new File(argv[0]).toPath(), StandardOpenOption.READ);
-                ByteBuffer data = ByteBuffer.allocate((int)infile.size());    // Hmm.. Ugly.
-                infile.read(data);
-                XORAlgorithm algo = new XORAlgorithm(null); // TODO This is a bad design pattern
-                Cluster<XORFragment> cluster = algo.fragment(data);
-
+                Cluster<XORFragment> cluster = fragmentFile(Paths.get(argv[0]), Paths.get(""));
                 System.out.println("Created cluster " + cluster.getId());
-                System.out.println("Writing fragments to files:");
+                System.out.println("Wrote fragments to files:");
                 for(XORFragment frag : cluster) {
-                    // Write this fragment to the file system (limited to current directory for now)
-                    File outfile = new File(frag.getId() + ".frag");
-                    System.out.print(outfile + ": ");
-                    System.out.flush();
-                    FileOutputStream outsream = new FileOutputStream(outfile);
-                    BinaryXORFragmentWriter fragWriter = new BinaryXORFragmentWriter(frag);
-                    fragWriter.writeFragment(outsream);
-                    System.out.println("OK");
+                    System.out.println(frag.getClusterId() + "-" + frag.getPieceIndex() + ".frag");
                 }
             } catch(IOException e) {
                 System.out.println("Failed (IO): " + e.getMessage());
                 System.exit(2);
             }
         }
+
+        if(Metrics.getInstance().isEnabled()) {
+            Metrics.getInstance().printSummary(System.out);
+        }
+    }
+
+    /**
+     * Run batch mode (-b) and exit with status 2 if any file failed.
+     */
+    private static void batch(String argv[]) {
+        boolean defrag = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 1;
+        try {
+            for(; i < argv.length - 2; i++) {
+                if(argv[i].equals("-d")) {
+                    defrag = true;
+                } else if(argv[i].equals("-j")) {
+                    threads = Integer.parseInt(argv[++i]);
+                } else {
+                    break;
+                }
+            }
+        } catch(NumberFormatException e) {
+            System.out.println("Invalid thread count: " + argv[i]);
+            System.exit(1);
+        }
+        if(argv.length - i != 2) {
+            System.out.println("Batch mode needs an input and an output directory");
+            System.exit(1);
+        }
+        Path input = Paths.get(argv[i]);
+        Path output = Paths.get(argv[i + 1]);
+        System.out.println(banner + " - Batch " + (defrag ? "reconstruction" : "fragmentation") + " mode (" + threads + " threads)");
+
+        try {
+            Batch batch = new Batch(threads);
+            long start = System.nanoTime();
+            List<Batch.Result> results = defrag ? batch.reconstruct(input, output) : batch.fragment(input, output);
+            if(Batch.printSummary(results, System.nanoTime() - start, System.out) > 0) {
+                System.exit(2);
+            }
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch(IOException e) {
+            System.out.println("Failed (IO): " + e.getMessage());
+            System.exit(2);
+        } catch(InterruptedException e) {
+            System.out.println("Interrupted");
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Fragment a file in stream mode into fragment files named by their cluster IDs and piece indices.
+     * Fragment IDs can't be used for the names, since the pieces of clusters of a couple of bytes share them. The
+     * cluster ID isn't known until the whole input has been processed, so the fragments are written to temporary files
+     * in the output directory first and moved into place at the end. Nothing is left behind upon failure. Fragmenting
+     * the same data again replaces its fragment files with identical ones.
+     * @param input File to fragment
+     * @param outputDir Directory to write the fragment files to
+     * @return The cluster of header-only fragments
+     * @throws IOException Upon a failed file operation
+     */
+    static Cluster<XORFragment> fragmentFile(Path input, Path outputDir) throws IOException {
+        Path[] tmpfiles = new Path[3];
+        FileChannel[] outfiles = new FileChannel[3];
+        try(FileChannel infile = FileChannel.open(input, StandardOpenOption.READ)) {
+            for(int i = 0; i < 3; i++) {
+                tmpfiles[i] = outputDir.resolve(".bitfrag-" + UUID.randomUUID() + ".part");
+                outfiles[i] = FileChannel.open(tmpfiles[i], StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            XORAlgorithm algo = new XORAlgorithm(null); // TODO This is a bad design pattern
+            Cluster<XORFragment> cluster = algo.fragment(infile, outfiles[0], outfiles[1], outfiles[2]);
+
+            for(XORFragment frag : cluster) {
+                // Move this fragment into place
+                int i = frag.getPiece() - 1;
+                outfiles[i].close();
+                Files.move(tmpfiles[i], outputDir.resolve(frag.getClusterId() + "-" + frag.getPieceIndex() + ".frag"), StandardCopyOption.REPLACE_EXISTING);
+                tmpfiles[i] = null;
+            }
+            return cluster;
+        } finally {
+            // Clean up any leftovers from a failed run
+            for(int i = 0; i < 3; i++) {
+                if(outfiles[i] != null) {
+                    outfiles[i].close();
+                }
+                if(tmpfiles[i] != null) {
+                    Files.deleteIfExists(tmpfiles[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reconstruct a cluster in stream mode from fragment files.
+     * Fragment digests aren't checked up front in stream mode (that would mean reading every file twice), so a
+     * corrupted fragment is only detected by the failing cluster digest. If there are surplus fragments, the other
+     * sufficient pairs are tried before giving up.
+     * @param algo Algorithm set up with the header-only cluster
+     * @param output Destination file
+     * @param frags Header-only fragments indexed by piece - 1, or null for missing pieces
+     * @param pieces Fragment files indexed by piece - 1, or null for missing pieces
+     * @return Reconstruction report
+     */
+    static ReconstructionReport reconstruct(XORAlgorithm algo, FileChannel output, XORFragment[] frags, FileChannel[] pieces) throws InsufficientFragmentsException, ReconstructionException, IOException {
+        FileChannel[][] attempts = {
+                pieces,
+                { null, pieces[1], pieces[2] },     // Without x1
+                { pieces[0], null, pieces[2] }      // Without x2
+        };
+        int attemptCount = (pieces[0] != null && pieces[1] != null && pieces[2] != null) ? attempts.length : 1;
+        ReconstructionException failure = null;
+        for(int i = 0; i < attemptCount; i++) {
+            output.truncate(0);
+            output.position(0);
+            for(int j = 0; j < attempts[i].length; j++) {
+                if(attempts[i][j] != null) {
+                    attempts[i][j].position(frags[j].getHeaderSize());
+                }
+            }
+            try {
+                ReconstructionReport report = algo.reconstruct(output, attempts[i][0], attempts[i][1], attempts[i][2]);
+                return i == 0 ? report : excluded(frags[i - 1]);
+            } catch(ReconstructionException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Reconstruct a cluster from memory-mapped fragment files into a memory-mapped output file.
+     * The output file is sized up front by mapping it, and the data is merged straight from the page cache of the
+     * fragment files into that of the output file. Surplus fragments are handled as in stream mode.
+     * @param algo Algorithm set up with the cluster of mapped fragments
+     * @param output Destination file, opened for reading and writing
+     * @param frags Mapped fragments indexed by piece - 1, or null for missing pieces
+     * @return Reconstruction report
+     */
+    private static ReconstructionReport reconstructMapped(XORAlgorithm algo, FileChannel output, XORFragment[] frags) throws InsufficientFragmentsException, ReconstructionException, IOException {
+        long dataSize = algo.concurDataSize();
+        if(dataSize > Integer.MAX_VALUE) {
+            throw new IOException("Cluster too large to be memory-mapped: " + dataSize + " bytes");
+        }
+        MappedByteBuffer mapping = output.map(FileChannel.MapMode.READ_WRITE, 0, dataSize);
+
+        XORFragment[][] attempts = {
+                frags,
+                { null, frags[1], frags[2] },       // Without x1
+                { frags[0], null, frags[2] }        // Without x2
+        };
+        int attemptCount = (frags[0] != null && frags[1] != null && frags[2] != null) ? attempts.length : 1;
+        ReconstructionException failure = null;
+        for(int i = 0; i < attemptCount; i++) {
+            Cluster<XORFragment> clust = new Cluster<XORFragment>(algo.cluster.getId());
+            for(XORFragment frag : attempts[i]) {
+                if(frag != null) {
+                    clust.add(frag);
+                }
+            }
+            try {
+                XORAlgorithm attempt = new XORAlgorithm(clust);
+                attempt.setVerify(true);    // A full cluster pinpoints any bad fragment in the same pass
+                ReconstructionReport report = attempt.reconstruct(mapping.duplicate());
+                return i == 0 ? report : excluded(frags[i - 1]);
+            } catch(ReconstructionException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Report of a successful reconstruction that had to leave out a fragment, which hence is the corrupted one.
+     */
+    private static ReconstructionReport excluded(Fragment frag) {
+        Set<Fragment> corrupted = new CopyOnWriteArraySet<Fragment>();
+        corrupted.add(frag);
+        return new ReconstructionReport(0, corrupted, new CopyOnWriteArraySet<Fragment>());
     }
 }
@@ -0,0 +1,104 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded pool of reusable heap buffers of one fixed capacity.
+ * Used for the intermediate chunks of stream mode, so that processing lots of small clusters doesn't keep the garbage
+ * collector busy with short lived buffers. Buffers are handed out cleared (with the limit set to the requested size)
+ * and should be released once done with, preferably in a finally block. Releasing is optional though: a buffer that
+ * is never released is simply collected, and releases beyond the pool capacity are dropped.
+ * Acquiring and releasing don't allocate anything as long as the pool has buffers to spare. The pool is thread-safe.
+ */
+public class BufferPool {
+    /**
+     * Pool used by the algorithms unless told otherwise.
+     * Buffers are STREAM_CHUNK_SIZE bytes, enough for a chunk of original data as well as a chunk of any piece.
+     */
+    private static final BufferPool shared = new BufferPool(XORAlgorithm.STREAM_CHUNK_SIZE, 64);
+
+    /**
+     * Capacity of every buffer in the pool.
+     */
+    private final int bufferSize;
+
+    /**
+     * Idle buffers (a stack, so the most recently used and thus most likely cached buffer is reused first).
+     */
+    private final ByteBuffer[] idle;
+
+    /**
+     * Amount of idle buffers.
+     */
+    private int count = 0;
+
+
+    /**
+     * Constructor.
+     * @param bufferSize Capacity of every buffer (in bytes)
+     * @param maxIdle Maximum amount of idle buffers held on to
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        if(bufferSize < 1 || maxIdle < 0) {
+            throw new IllegalArgumentException("Invalid pool dimensions: " + bufferSize + " x " + maxIdle);
+        }
+        this.bufferSize = bufferSize;
+        this.idle = new ByteBuffer[maxIdle];
+    }
+
+    /**
+     * Get the pool used by the algorithms unless told otherwise.
+     * @return Shared pool
+     */
+    public static BufferPool getShared() {
+        return shared;
+    }
+
+    /**
+     * Get the capacity of every buffer in the pool.
+     * @return Buffer size (in bytes)
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Acquire a buffer, allocating a fresh one only if the pool is empty.
+     * @param size Limit of the buffer (in bytes), at most the buffer size of the pool
+     * @return Cleared buffer with the limit set to size
+     */
+    public ByteBuffer acquire(int size) {
+        if(size > bufferSize) {
+            throw new IllegalArgumentException("Requested size exceeds pool buffer size: " + size + " > " + bufferSize);
+        }
+        ByteBuffer buffer = null;
+        synchronized(this) {
+            if(count > 0) {
+                buffer = idle[--count];
+                idle[count] = null;
+            }
+        }
+        if(buffer == null) {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     * The buffer must not be used afterwards. Buffers not acquired from this pool (or of another capacity) are ignored.
+     * @param buffer Buffer to return, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || buffer.capacity() != bufferSize || !buffer.hasArray()) {
+            return;
+        }
+        synchronized(this) {
+            if(count < idle.length) {
+                idle[count++] = buffer;
+            }
+        }
+    }
+}
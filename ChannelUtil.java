@@ -0,0 +1,75 @@
+package net.comploud.code.bitfrag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Helper methods for channel I/O.
+ * A single read() or write() on a channel is allowed to transfer fewer bytes than requested, which is rarely what
+ * the fragment code wants.
+ */
+public class ChannelUtil {
+    private ChannelUtil() {
+    }
+
+    /**
+     * Read from a channel until the buffer is full or end-of-stream is reached.
+     * @param src Channel to read from
+     * @param dst Destination buffer
+     * @return Amount of bytes read (0 only if end-of-stream was reached immediately or the buffer was already full)
+     * @throws IOException Upon a failed channel operation
+     */
+    public static int readFully(ReadableByteChannel src, ByteBuffer dst) throws IOException {
+        int total = 0;
+        while(dst.hasRemaining()) {
+            int read = src.read(dst);
+            if(read < 0) {
+                break;  // End-of-stream
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Write all remaining bytes of a buffer to a channel.
+     * @param dst Channel to write to
+     * @param src Source buffer
+     * @throws IOException Upon a failed channel operation
+     */
+    public static void writeFully(WritableByteChannel dst, ByteBuffer src) throws IOException {
+        while(src.hasRemaining()) {
+            dst.write(src);
+        }
+    }
+
+    /**
+     * Write all remaining bytes of several buffers to a channel, in order.
+     * If the channel supports gathering writes (like FileChannel and SocketChannel do), the buffers are handed to
+     * the channel together, so e.g. a fragment header and its payload are written without being copied into one
+     * buffer first and with as few system calls as possible.
+     * @param dst Channel to write to
+     * @param srcs Source buffers
+     * @throws IOException Upon a failed channel operation
+     */
+    public static void writeFully(WritableByteChannel dst, ByteBuffer... srcs) throws IOException {
+        if(dst instanceof GatheringByteChannel) {
+            GatheringByteChannel gather = (GatheringByteChannel)dst;
+            int first = 0;
+            while(first < srcs.length) {
+                if(srcs[first].hasRemaining()) {
+                    gather.write(srcs, first, srcs.length - first);
+                } else {
+                    first++;
+                }
+            }
+        } else {
+            for(ByteBuffer src : srcs) {
+                writeFully(dst, src);
+            }
+        }
+    }
+}
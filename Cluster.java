@@ -1,23 +1,72 @@
 package net.comploud.code.bitfrag;
 
-import java.nio.ByteBuffer;
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A cluster is a complete set of fragments for a block of "original" data.
  * This class is used to represent a set - but not necessarily the complete set - of fragments.
  * A set of fragments may or may not be complete, meaning it may or may not be sufficient to reconstruct the original data.
+ * Clusters are thread-safe, so fragments may be added concurrently (e.g. as they arrive from different peers) and
+ * iteration never fails, though it may or may not reflect fragments added while iterating.
+ * The fragments are kept in slots indexed by their piece index (see Fragment.getPieceIndex()), so looking up a piece
+ * is O(1) and iteration is in order of the pieces. A bitmask of the pieces present tells at once whether a cluster is
+ * reconstructable, and another one which pieces have been verified (see markVerified()). Adding a fragment equal to
+ * one already there (same piece and ID) has no effect, while fragments of the same piece with different IDs (of which
+ * all but one are corrupted or tampered) are all kept, in the same slot, for the algorithms to sort out.
  * Created by tek-ti on 2014-09-09.
  */
-public class Cluster<T extends Fragment> extends HashSet<T> {
+public class Cluster<T extends Fragment> extends AbstractSet<T> {
+    /**
+     * Amount of piece indices (piece indices are below 256 in all fragment formats).
+     */
+    public static final int MAX_PIECES = 256;
+
+    private static final Fragment[] EMPTY = new Fragment[0];
+
     /**
      * UUID (type 3) including a digest of the fully assembled data.
      * This data digest can be used to verify the complete cluster data upon an attempt to reconstruct the clusters' data.
      */
     private final UUID uuid;    // This may also be a potential security issue as the any verification aid may help an exhaustive search.
 
+    /**
+     * The fragments of this cluster by piece index, each slot holding the fragments of a piece (usually just the one)
+     * or null if there are none. The slot arrays are never modified once stored, they're replaced instead. The slots
+     * are grown as needed (and replaced as well), so small codes stay small.
+     */
+    private volatile AtomicReferenceArray<Fragment[]> slots = new AtomicReferenceArray<Fragment[]>(4);
+
+    /**
+     * Fragments without a valid piece index, which can't contribute to a reconstruction but are kept nonetheless.
+     */
+    private volatile Fragment[] strays = EMPTY;
+
+    /**
+     * One bit per piece index present.
+     */
+    private final AtomicLongArray present = new AtomicLongArray(MAX_PIECES / 64);
+
+    /**
+     * One bit per piece index whose first fragment has been verified.
+     */
+    private final AtomicLongArray verified = new AtomicLongArray(MAX_PIECES / 64);
+
+    private volatile int pieceCount = 0;
+    private volatile int size = 0;
+
+    /**
+     * Lock held while modifying the cluster. Reading takes no lock.
+     */
+    private final Object lock = new Object();
+
     // TODO Add reference to Algorithm?
 
     /**
@@ -64,4 +113,380 @@ public class Cluster<T extends Fragment> extends HashSet<T> {
      */
     public UUID getId() { return uuid; }
 
+
+    @Override
+    public boolean add(T frag) {
+        int index = frag.getPieceIndex();
+        synchronized(lock) {
+            if(index < 0 || index >= MAX_PIECES) {
+                if(indexOf(strays, frag) >= 0) {
+                    return false;
+                }
+                strays = append(strays, frag);
+            } else {
+                AtomicReferenceArray<Fragment[]> current = grow(index);
+                Fragment[] slot = current.get(index);
+                if(slot == null) {
+                    current.set(index, new Fragment[] {frag});
+                    set(present, index);
+                    pieceCount++;
+                } else if(indexOf(slot, frag) >= 0) {
+                    return false;
+                } else {
+                    current.set(index, append(slot, frag));
+                }
+            }
+            size++;
+            return true;
+        }
+    }
+
+    @Override
+    public boolean remove(Object frag) {
+        if(!(frag instanceof Fragment)) {
+            return false;
+        }
+        int index = ((Fragment)frag).getPieceIndex();
+        synchronized(lock) {
+            if(index < 0 || index >= MAX_PIECES) {
+                int i = indexOf(strays, frag);
+                if(i < 0) {
+                    return false;
+                }
+                strays = without(strays, i);
+            } else {
+                AtomicReferenceArray<Fragment[]> current = slots;
+                Fragment[] slot = index < current.length() ? current.get(index) : null;
+                int i = indexOf(slot, frag);
+                if(i < 0) {
+                    return false;
+                }
+                if(i == 0) {
+                    clear(verified, index); // The verified bit only ever covers the first fragment of a slot
+                }
+                if(slot.length == 1) {
+                    current.set(index, null);
+                    clear(present, index);
+                    pieceCount--;
+                } else {
+                    current.set(index, without(slot, i));
+                }
+            }
+            size--;
+            return true;
+        }
+    }
+
+    @Override
+    public boolean contains(Object frag) {
+        if(!(frag instanceof Fragment)) {
+            return false;
+        }
+        int index = ((Fragment)frag).getPieceIndex();
+        if(index < 0 || index >= MAX_PIECES) {
+            return indexOf(strays, frag) >= 0;
+        }
+        AtomicReferenceArray<Fragment[]> current = slots;
+        return index < current.length() && indexOf(current.get(index), frag) >= 0;
+    }
+
+    /**
+     * Replace a fragment with an equal one (same piece and ID), e.g. a header-only fragment with the fragment carrying
+     * its payload, keeping its place in the slot (and hence whether it is verified).
+     * @param frag Fragment to replace
+     * @param replacement Fragment to replace it with
+     * @return true if the fragment was replaced, false if it isn't in this cluster
+     * @throws IllegalArgumentException If the fragments aren't equal
+     */
+    public boolean replace(T frag, T replacement) {
+        if(!frag.equals(replacement)) {
+            throw new IllegalArgumentException("Replacement fragment differs from the fragment replaced");
+        }
+        int index = frag.getPieceIndex();
+        synchronized(lock) {
+            if(index < 0 || index >= MAX_PIECES) {
+                int i = indexOf(strays, frag);
+                if(i < 0) {
+                    return false;
+                }
+                Fragment[] replaced = strays.clone();
+                replaced[i] = replacement;
+                strays = replaced;
+            } else {
+                AtomicReferenceArray<Fragment[]> current = slots;
+                Fragment[] slot = index < current.length() ? current.get(index) : null;
+                int i = indexOf(slot, frag);
+                if(i < 0) {
+                    return false;
+                }
+                Fragment[] replaced = slot.clone();
+                replaced[i] = replacement;
+                current.set(index, replaced);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Get the fragment of a piece.
+     * If there are conflicting fragments for the piece, this is the verified one if any (see markVerified()),
+     * otherwise the first one added.
+     * @param index Piece index (see Fragment.getPieceIndex())
+     * @return The fragment, or null if the piece isn't present
+     */
+    @SuppressWarnings("unchecked")
+    public T getPiece(int index) {
+        Fragment[] slot = slot(index);
+        return slot == null ? null : (T)slot[0];
+    }
+
+    /**
+     * Get all fragments of a piece, the one returned by getPiece() first.
+     * @param index Piece index (see Fragment.getPieceIndex())
+     * @return Fragments of the piece (unmodifiable), empty if the piece isn't present
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> getPieces(int index) {
+        Fragment[] slot = slot(index);
+        if(slot == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList((T[])slot));
+    }
+
+    /**
+     * Check whether there's a fragment of a piece.
+     * @param index Piece index (see Fragment.getPieceIndex())
+     * @return true if the piece is present, false otherwise
+     */
+    public boolean hasPiece(int index) {
+        return isSet(present, index);
+    }
+
+    /**
+     * Check whether there are several fragments (with different IDs) for a piece, of which all but one at most are
+     * corrupted or tampered.
+     * @param index Piece index (see Fragment.getPieceIndex())
+     * @return true if the piece has conflicting fragments, false otherwise
+     */
+    public boolean isConflicting(int index) {
+        Fragment[] slot = slot(index);
+        return slot != null && slot.length > 1;
+    }
+
+    /**
+     * Get the amount of distinct pieces present, which is what matters for reconstruction (as opposed to size(), which
+     * also counts conflicting fragments and fragments without a valid piece index).
+     * @return Amount of pieces present
+     */
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    /**
+     * Check whether enough distinct pieces are present to attempt a reconstruction, going by the amount of pieces
+     * required as stated by the fragments (see Fragment.getRequiredPieces()).
+     * Whether the reconstruction succeeds still depends on the fragments being intact.
+     * @return true if the cluster is reconstructable, false otherwise
+     */
+    public boolean isReconstructable() {
+        int count = pieceCount;
+        if(count == 0) {
+            return false;
+        }
+        for(int word = 0; word < present.length(); word++) {
+            long bits = present.get(word);
+            if(bits != 0) {
+                Fragment first = getPiece(word * 64 + Long.numberOfTrailingZeros(bits));
+                if(first != null) {
+                    return count >= first.getRequiredPieces();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mark a fragment as verified (e.g. once its digest has been checked), making it the fragment of its piece
+     * returned by getPiece().
+     * The mark is lost if the fragment is removed, or if another fragment of the piece is marked afterwards.
+     * @param frag Fragment to mark
+     * @return true if the fragment was marked, false if it isn't in this cluster (or has no valid piece index)
+     */
+    public boolean markVerified(T frag) {
+        int index = frag.getPieceIndex();
+        if(index < 0 || index >= MAX_PIECES) {
+            return false;
+        }
+        synchronized(lock) {
+            AtomicReferenceArray<Fragment[]> current = slots;
+            Fragment[] slot = index < current.length() ? current.get(index) : null;
+            int i = indexOf(slot, frag);
+            if(i < 0) {
+                return false;
+            }
+            if(i > 0) {
+                Fragment[] moved = new Fragment[slot.length];
+                moved[0] = slot[i];
+                System.arraycopy(slot, 0, moved, 1, i);
+                System.arraycopy(slot, i + 1, moved, i + 1, slot.length - i - 1);
+                current.set(index, moved);
+            }
+            set(verified, index);
+            return true;
+        }
+    }
+
+    /**
+     * Check whether a fragment has been marked as verified.
+     * @param frag Fragment to check
+     * @return true if the fragment is the verified one of its piece, false otherwise
+     */
+    public boolean isVerified(Fragment frag) {
+        int index = frag.getPieceIndex();
+        if(!isSet(verified, index)) {
+            return false;
+        }
+        Fragment[] slot = slot(index);
+        return slot != null && slot[0].equals(frag);
+    }
+
+    /**
+     * Get the amount of pieces whose fragment has been marked as verified.
+     * @return Amount of verified pieces
+     */
+    public int getVerifiedPieceCount() {
+        int count = 0;
+        for(int word = 0; word < verified.length(); word++) {
+            count += Long.bitCount(verified.get(word));
+        }
+        return count;
+    }
+
+    /**
+     * Iterate over the fragments in order of the pieces, conflicting fragments together, then the fragments without a
+     * valid piece index.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private final AtomicReferenceArray<Fragment[]> pieces = slots;
+            private int index = -1;
+            private Fragment[] slot = EMPTY;
+            private int position = 0;
+            private boolean stray = false;
+            private Fragment last = null;
+
+            @Override
+            public boolean hasNext() {
+                while(position >= slot.length) {
+                    if(stray) {
+                        return false;
+                    }
+                    position = 0;
+                    if(++index < pieces.length()) {
+                        Fragment[] next = pieces.get(index);
+                        slot = next == null ? EMPTY : next;
+                    } else {
+                        slot = strays;
+                        stray = true;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = slot[position++];
+                return (T)last;
+            }
+
+            @Override
+            public void remove() {
+                if(last == null) {
+                    throw new IllegalStateException();
+                }
+                Cluster.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the fragments of a piece, without locking.
+     */
+    private Fragment[] slot(int index) {
+        if(index < 0 || index >= MAX_PIECES) {
+            return null;
+        }
+        AtomicReferenceArray<Fragment[]> current = slots;
+        return index < current.length() ? current.get(index) : null;
+    }
+
+    /**
+     * Grow the slots to hold a piece index, doubling their amount as needed.
+     * Must be called with the lock held.
+     */
+    private AtomicReferenceArray<Fragment[]> grow(int index) {
+        AtomicReferenceArray<Fragment[]> current = slots;
+        if(index < current.length()) {
+            return current;
+        }
+        int length = current.length();
+        while(length <= index) {
+            length *= 2;
+        }
+        AtomicReferenceArray<Fragment[]> grown = new AtomicReferenceArray<Fragment[]>(Math.min(length, MAX_PIECES));
+        for(int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        slots = grown;
+        return grown;
+    }
+
+    private static int indexOf(Fragment[] frags, Object frag) {
+        if(frags != null) {
+            for(int i = 0; i < frags.length; i++) {
+                if(frags[i].equals(frag)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static Fragment[] append(Fragment[] frags, Fragment frag) {
+        Fragment[] appended = Arrays.copyOf(frags, frags.length + 1);
+        appended[frags.length] = frag;
+        return appended;
+    }
+
+    private static Fragment[] without(Fragment[] frags, int i) {
+        Fragment[] removed = new Fragment[frags.length - 1];
+        System.arraycopy(frags, 0, removed, 0, i);
+        System.arraycopy(frags, i + 1, removed, i, frags.length - i - 1);
+        return removed;
+    }
+
+    private static boolean isSet(AtomicLongArray bits, int index) {
+        return index >= 0 && index < MAX_PIECES && (bits.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    private static void set(AtomicLongArray bits, int index) {
+        bits.set(index >>> 6, bits.get(index >>> 6) | (1L << index));     // Only modified with the lock held
+    }
+
+    private static void clear(AtomicLongArray bits, int index) {
+        bits.set(index >>> 6, bits.get(index >>> 6) & ~(1L << index));
+    }
+
 }
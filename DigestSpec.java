@@ -0,0 +1,81 @@
+package net.comploud.code.bitfrag;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Enum to map digest (UUID) algorithms to their fragment format header values.
+ * Every cluster and fragment ID embeds a digest of the data it represents. Which digest is used is a trade-off:
+ * <ul>
+ * <li>MD5: The original type 3 (name based) UUIDs, as by UUID.nameUUIDFromBytes(). Moderately fast.</li>
+ * <li>CRC32C: CRC-32C and CRC-32 side by side plus the data length. Several times faster than MD5 (both CRCs are
+ * hardware accelerated on common CPUs) and fine for detecting transmission errors, but offers no protection
+ * whatsoever against deliberate tampering.</li>
+ * <li>SHA256: The first 122 bits of a SHA-256 digest. Slower, but use this when tamper resistance matters.</li>
+ * </ul>
+ */
+public enum DigestSpec {
+    MD5 ((byte)1),
+    CRC32C ((byte)2),
+    SHA256 ((byte)3);
+
+    /**
+     * Header value for a specific digest.
+     * This value is what's stored in a fragment.
+     */
+    private final byte header;
+
+    private DigestSpec(byte header) {
+        this.header = header;
+    }
+
+    /**
+     * System property used to select the default digest ("MD5", "CRC32C" or "SHA256").
+     */
+    public static final String DIGEST_PROPERTY = "net.comploud.code.bitfrag.digest";
+
+    /**
+     * Reverse lookup table for header values.
+     */
+    private static final Map<Byte, DigestSpec> lookup = new HashMap<Byte, DigestSpec>();
+
+    // Initialize reverse lookup table
+    static {
+        for(DigestSpec spec : EnumSet.allOf(DigestSpec.class)) {
+            lookup.put(spec.headerValue(), spec);
+        }
+    }
+
+    /**
+     * Get the digest used for new clusters unless told otherwise.
+     * This is MD5 unless the DIGEST_PROPERTY system property says otherwise.
+     * @return Default digest
+     * @throws IllegalArgumentException If the system property names an unknown digest
+     */
+    public static DigestSpec getDefault() {
+        return valueOf(System.getProperty(DIGEST_PROPERTY, MD5.name()).toUpperCase());
+    }
+
+    /**
+     * Do a "reverse lookup" of header value to an enum item.
+     * @return The digest, or null if the header value is unknown
+     */
+    public static DigestSpec lookup(byte header) {
+        return lookup.get(header);
+    }
+
+    /**
+     * Get the header value representing this digest.
+     * @return Header value
+     */
+    public byte headerValue() { return header; }
+
+    /**
+     * Create a fresh incremental digester for this digest.
+     * @return New digester
+     */
+    public UUIDDigester newDigester() {
+        return new UUIDDigester(this);
+    }
+}
@@ -0,0 +1,228 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Data fragment of a (k, m) erasure code, where a cluster consists of k data pieces and m parity pieces.
+ * Unlike XORFragment, the code parameters are part of the header, as is the algorithm (see AlgorithmSpec).
+ */
+public class ErasureFragment implements Fragment {
+    /**
+     * Supported fragment format as of this version.
+     * Works like SUPPORTED_FRAGMENT_VERSION of XORAlgorithm, but for the erasure code fragment format.
+     */
+    public static final short SUPPORTED_FRAGMENT_VERSION = (short)0x3A06;    // Calculated by fair die roll
+
+    /**
+     * Size (in bytes) of the binary fragment header preceding the payload data.
+     * version (2) + algorithm (2) + digest (1) + cluster UUID (16) + fragment UUID (16) + cluster data size (8) + data pieces (1) +
+     * parity pieces (1) + piece (1) + payload size (8)
+     */
+    public static final int HEADER_SIZE = 2 + 2 + 1 + 16 + 16 + 8 + 1 + 1 + 1 + 8;
+
+    /**
+     * The fragment version header.
+     */
+    private final short version;
+
+    /**
+     * The algorithm header (an AlgorithmSpec header value).
+     */
+    private final short algorithm;
+
+    /**
+     * The digest header.
+     * Tells how the cluster and fragment IDs were calculated.
+     */
+    private final DigestSpec digest;
+
+    /**
+     * The cluster ID header.
+     * This ID also contains an embedded message digest of the original data.
+     */
+    private final UUID clusterId;
+
+    /**
+     * The fragment ID header.
+     * This ID also contains an embedded message digest of the payload data.
+     */
+    private final UUID fragId;
+
+    /**
+     * The cluster data size header.
+     * The total size of the original data.
+     */
+    private final long clusterDataSize;
+
+    /**
+     * The data pieces header (k).
+     */
+    private final int dataPieces;
+
+    /**
+     * The parity pieces header (m).
+     */
+    private final int parityPieces;
+
+    /**
+     * The fragment piece header.
+     * Pieces 0 to k - 1 are data and pieces k to k + m - 1 are parity.
+     */
+    private final int piece;
+
+    /**
+     * The actual fragment data.
+     */
+    private final ByteBuffer payload;
+
+
+    /**
+     * Constructor.
+     * @param dataPieces Amount of data pieces in the cluster (k)
+     * @param parityPieces Amount of parity pieces in the cluster (m)
+     * @param piece What piece of the cluster this is
+     * @param payload Payload data for this particular fragment
+     */
+    public ErasureFragment(short version, short algorithm, DigestSpec digest, UUID clusterId, UUID fragId, long clusterDataSize, int dataPieces, int parityPieces, int piece, ByteBuffer payload) {
+        this.version = version;
+        this.algorithm = algorithm;
+        this.digest = digest;
+        this.clusterId = clusterId;
+        this.fragId = fragId;
+        this.clusterDataSize = clusterDataSize;
+        this.dataPieces = dataPieces;
+        this.parityPieces = parityPieces;
+        this.piece = piece;
+        this.payload = payload;
+    }
+
+    /**
+     * Matches this fragment to another.
+     * For two fragments to be considered the same, the piece and the UUID must match.
+     * @param other Another fragment instance to compare to
+     * @return true if the instances are the same fragment, false otherwise
+     */
+    @Override
+    public boolean equals(Object other) {
+        if(!(other instanceof ErasureFragment)) {
+            return false;
+        } else {
+            ErasureFragment otherFrag = (ErasureFragment)other;
+            return getPiece() == otherFrag.getPiece() &&
+                    getId().equals(otherFrag.getId());  // Lets _not_ match payload data (UUID will suffice)
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * piece + fragId.hashCode();
+    }
+
+    /**
+     * Get the type 3 UUID for this particular fragment.
+     * @return Fragment UUID
+     */
+    @Override
+    public UUID getId() { return fragId; }
+
+    /**
+     * Get the version header.
+     * @return Version
+     */
+    public short getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the algorithm header.
+     * @return Algorithm, as an AlgorithmSpec header value
+     */
+    public short getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Get the digest header.
+     * @return Digest used for the cluster and fragment IDs
+     */
+    public DigestSpec getDigest() {
+        return digest;
+    }
+
+    /**
+     * Get the cluster ID header.
+     * @return Cluster ID
+     */
+    @Override
+    public UUID getClusterId() {
+        return clusterId;
+    }
+
+    /**
+     * Get the cluster data size header.
+     * @return Cluster data size
+     */
+    public long getClusterDataSize() {
+        return clusterDataSize;
+    }
+
+    /**
+     * Get the amount of data pieces (k) in the cluster.
+     * @return Data pieces
+     */
+    public int getDataPieces() {
+        return dataPieces;
+    }
+
+    /**
+     * Get the amount of parity pieces (m) in the cluster.
+     * @return Parity pieces
+     */
+    public int getParityPieces() {
+        return parityPieces;
+    }
+
+    /**
+     * Get the piece index of this fragment.
+     * Pieces 0 to k - 1 are data and pieces k to k + m - 1 are parity.
+     * @return Fragment piece
+     */
+    public int getPiece() {
+        return piece;
+    }
+
+    /**
+     * Get the zero-based piece index, which is the piece header itself.
+     * @return Piece index
+     */
+    @Override
+    public int getPieceIndex() {
+        return piece;
+    }
+
+    /**
+     * Any k of the k + m pieces are sufficient.
+     * @return Data pieces
+     */
+    @Override
+    public int getRequiredPieces() {
+        return dataPieces;
+    }
+
+    /**
+     * Get the payload data of this fragment.
+     * @return Payload data
+     */
+    @Override
+    public ByteBuffer getPayload() { return payload; }
+
+    /**
+     * Perform integrity check.
+     * @return true if specified digest (ID) is correct, false otherwise
+     */
+    @Override
+    public boolean integrityCheck() {
+        return UUIDDigester.digest(getDigest(), getPayload()).equals(getId());
+    }
+}
@@ -26,6 +26,19 @@ public interface Fragment {
      */
     public ByteBuffer getPayload();
 
+    /**
+     * Returns the zero-based index of this fragments' piece within its cluster.
+     * Fragments of the same piece are interchangeable (provided they're intact).
+     * @return Piece index
+     */
+    public int getPieceIndex();
+
+    /**
+     * Returns the amount of distinct pieces that is sufficient to reconstruct the cluster of this fragment.
+     * @return Required pieces
+     */
+    public int getRequiredPieces();
+
     /**
      * Calculates a message digest of the payload data and compare it with the supplied digest (ID).
      * @return true if digest (ID) is correct, false otherwise
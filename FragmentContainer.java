@@ -0,0 +1,589 @@
+package net.comploud.code.bitfrag;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * Many fragments (of any clusters) packed into a single append-only file.
+ * Storing every fragment as a file of its own means an inode per fragment, which hurts as soon as there are millions
+ * of them. A container instead appends the fragments, in their usual binary format (see FragmentWriter), one after
+ * another and keeps an index of where each one is. The index is written as a footer whenever the container is
+ * flushed, so a single fragment or cluster is found without scanning the file and its bytes are memory-mapped and
+ * parsed in place (see FragmentReader).
+ *
+ * File layout:
+ * <pre>
+ * header:  magic (4) + version (2)
+ * body:    fragments, each in its binary format (XOR or erasure code), interleaved with stale footers
+ * footer:  index entries, each: cluster UUID (16) + fragment UUID (16) + format (1) + offset (8) + length (8)
+ * trailer: index offset (8) + entry count (4) + index CRC-32C (4) + magic (4)
+ * </pre>
+ * Nothing that has been written is ever overwritten: new fragments go after the last footer and a new footer follows
+ * them, which makes the last complete footer the valid one (even after a crash mid-write). Removed fragments and stale
+ * footers are garbage until the container is compacted.
+ * Instances are thread-safe.
+ */
+public class FragmentContainer implements Closeable {
+    /**
+     * Magic number at the start and the very end of a container file.
+     */
+    public static final int MAGIC = 0x42466367;     // "BFcg"
+
+    /**
+     * Supported container format as of this version.
+     * Works like SUPPORTED_FRAGMENT_VERSION of XORAlgorithm, but for the container format.
+     */
+    public static final short SUPPORTED_CONTAINER_VERSION = (short)0x2B51;    // Calculated by fair die roll
+
+    /**
+     * Sizes (in bytes) of the fixed parts of the format.
+     */
+    public static final int HEADER_SIZE = 4 + 2;
+    public static final int ENTRY_SIZE = 16 + 16 + 1 + 8 + 8;
+    public static final int TRAILER_SIZE = 8 + 4 + 4 + 4;
+
+    /**
+     * Format values of the index entries.
+     */
+    private static final byte FORMAT_XOR = 1;
+    private static final byte FORMAT_ERASURE = 2;
+
+    /**
+     * Size (in bytes) of the windows read when searching for the last complete footer.
+     */
+    private static final int SCAN_WINDOW_SIZE = 64 * 1024;
+
+    /**
+     * Location of a fragment within the container.
+     */
+    private static class Entry {
+        private final UUID clusterId;
+        private final UUID fragId;
+        private final byte format;
+        private final long offset;
+        private final long length;
+
+        private Entry(UUID clusterId, UUID fragId, byte format, long offset, long length) {
+            this.clusterId = clusterId;
+            this.fragId = fragId;
+            this.format = format;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The container file.
+     */
+    private final Path path;
+
+    /**
+     * Open channel of the container file.
+     */
+    private FileChannel channel;
+
+    /**
+     * The index: entries by cluster ID, in the order the clusters were first added.
+     */
+    private final Map<UUID, List<Entry>> index = new LinkedHashMap<UUID, List<Entry>>();
+
+    /**
+     * Amount of entries in the index.
+     */
+    private int entryCount = 0;
+
+    /**
+     * Where the next fragment (or footer) is written.
+     */
+    private long end;
+
+    /**
+     * Whether the index has changed since the last footer was written.
+     */
+    private boolean dirty = false;
+
+    private final BinaryXORFragmentReader xorReader = new BinaryXORFragmentReader();
+    private final BinaryErasureFragmentReader erasureReader = new BinaryErasureFragmentReader();
+
+
+    private FragmentContainer(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * Create a fresh, empty container file.
+     * @param path Path of the container file, which must not exist
+     * @return Open container
+     * @throws IOException Upon a failed file operation, or if the file exists
+     */
+    public static FragmentContainer create(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FragmentContainer container = new FragmentContainer(path, channel);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putShort(SUPPORTED_CONTAINER_VERSION);
+            header.flip();
+            ChannelUtil.writeFully(channel, header);
+            container.end = HEADER_SIZE;
+            container.dirty = true;
+            container.flush();
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+        return container;
+    }
+
+    /**
+     * Open an existing container file, reading its index from the footer.
+     * @param path Path of the container file
+     * @return Open container
+     * @throws IOException Upon a failed file operation
+     * @throws FragmentFormatException If the file isn't a container or has no complete footer at all
+     */
+    public static FragmentContainer open(Path path) throws IOException, FragmentFormatException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FragmentContainer container = new FragmentContainer(path, channel);
+        try {
+            container.readIndex();
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        } catch(FragmentFormatException e) {
+            channel.close();
+            throw e;
+        }
+        return container;
+    }
+
+    /**
+     * Read the header, trailer and index of the file.
+     * Normally the trailer is at the very end. If it isn't (after a crash mid-append or mid-flush), the file is
+     * searched backwards for the last complete footer.
+     */
+    private void readIndex() throws IOException, FragmentFormatException {
+        long size = channel.size();
+        if(size < HEADER_SIZE + TRAILER_SIZE) {
+            throw new FragmentFormatException("Not a fragment container: too small");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ChannelUtil.readFully(channel.position(0), header);
+        header.flip();
+        if(header.getInt() != MAGIC) {
+            throw new FragmentFormatException("Not a fragment container: bad magic");
+        }
+        short version = header.getShort();
+        if(version != SUPPORTED_CONTAINER_VERSION) {
+            throw new FragmentFormatException("Unsupported container version: " + version);
+        }
+
+        end = size;     // Append after whatever is there, the current footer stays valid until the next one is complete
+        if(readFooter(size)) {
+            return;
+        }
+        ByteBuffer window = ByteBuffer.allocate(SCAN_WINDOW_SIZE);
+        for(long windowEnd = size - 1; windowEnd >= HEADER_SIZE + TRAILER_SIZE; windowEnd -= SCAN_WINDOW_SIZE - 4) {
+            long windowStart = Math.max(HEADER_SIZE, windowEnd - SCAN_WINDOW_SIZE);
+            window.clear();
+            window.limit((int)(windowEnd - windowStart));
+            ChannelUtil.readFully(channel.position(windowStart), window);
+            for(int i = window.position() - 4; i >= 0; i--) {
+                long trailerEnd = windowStart + i + 4;
+                if(window.getInt(i) == MAGIC && trailerEnd >= HEADER_SIZE + TRAILER_SIZE && readFooter(trailerEnd)) {
+                    dirty = true;   // Write a fresh footer at the end on the next flush
+                    return;
+                }
+            }
+        }
+        throw new FragmentFormatException("No valid container footer");
+    }
+
+    /**
+     * Read the footer whose trailer ends at a specific position, if it's valid.
+     * @return true if the index was read, false if there's no valid footer ending there
+     */
+    private boolean readFooter(long trailerEnd) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        ChannelUtil.readFully(channel.position(trailerEnd - TRAILER_SIZE), trailer);
+        trailer.flip();
+        long indexOffset = trailer.getLong();
+        int count = trailer.getInt();
+        int crc = trailer.getInt();
+        if(trailer.getInt() != MAGIC || count < 0 || count > Integer.MAX_VALUE / ENTRY_SIZE || indexOffset < HEADER_SIZE ||
+                indexOffset + (long)count * ENTRY_SIZE != trailerEnd - TRAILER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(count * ENTRY_SIZE);
+        ChannelUtil.readFully(channel.position(indexOffset), entries);
+        entries.flip();
+        CRC32C checksum = new CRC32C();
+        checksum.update(entries.duplicate());
+        if((int)checksum.getValue() != crc) {
+            return false;
+        }
+        List<Entry> parsed = new ArrayList<Entry>(count);
+        for(int i = 0; i < count; i++) {
+            UUID clusterId = new UUID(entries.getLong(), entries.getLong());
+            UUID fragId = new UUID(entries.getLong(), entries.getLong());
+            byte format = entries.get();
+            long offset = entries.getLong();
+            long length = entries.getLong();
+            if(offset < HEADER_SIZE || length < 0 || offset + length > indexOffset) {
+                return false;
+            }
+            parsed.add(new Entry(clusterId, fragId, format, offset, length));
+        }
+        for(Entry entry : parsed) {
+            addEntry(entry);
+        }
+        return true;
+    }
+
+    private void addEntry(Entry entry) {
+        List<Entry> entries = index.get(entry.clusterId);
+        if(entries == null) {
+            entries = new ArrayList<Entry>(3);
+            index.put(entry.clusterId, entries);
+        }
+        entries.add(entry);
+        entryCount++;
+    }
+
+    /**
+     * Append a fragment.
+     * The fragment must carry its payload (header-only fragments can't be appended). It's not part of the index on
+     * disk until the container is flushed.
+     * @param frag Fragment to append
+     * @return true if appended, false if the container already holds this fragment
+     * @throws IOException Upon a failed file operation
+     */
+    public synchronized boolean append(Fragment frag) throws IOException {
+        checkOpen();
+        List<Entry> entries = index.get(frag.getClusterId());
+        if(entries != null) {
+            for(Entry entry : entries) {
+                if(entry.fragId.equals(frag.getId())) {
+                    return false;
+                }
+            }
+        }
+        if(frag.getPayload() == null) {
+            throw new IllegalArgumentException("Header-only fragments can't be appended");
+        }
+
+        FragmentWriter writer;
+        byte format;
+        long length;
+        if(frag instanceof XORFragment) {
+            writer = new BinaryXORFragmentWriter((XORFragment)frag);
+            format = FORMAT_XOR;
+            length = ((XORFragment)frag).getHeaderSize() + frag.getPayload().remaining();
+        } else if(frag instanceof ErasureFragment) {
+            writer = new BinaryErasureFragmentWriter((ErasureFragment)frag);
+            format = FORMAT_ERASURE;
+            length = ErasureFragment.HEADER_SIZE + frag.getPayload().remaining();
+        } else {
+            throw new IllegalArgumentException("Unknown fragment type: " + frag.getClass().getName());
+        }
+        writer.writeFragment(channel.position(end));
+        addEntry(new Entry(frag.getClusterId(), frag.getId(), format, end, length));
+        end += length;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Append all fragments of a cluster.
+     * @param cluster Cluster to append
+     * @return Amount of fragments appended
+     * @throws IOException Upon a failed file operation
+     */
+    public synchronized int append(Cluster<? extends Fragment> cluster) throws IOException {
+        int appended = 0;
+        for(Fragment frag : cluster) {
+            if(append(frag)) {
+                appended++;
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * Remove all fragments of a cluster from the index.
+     * The space isn't reclaimed until the container is compacted.
+     * @param clusterId Cluster ID
+     * @return true if the cluster was found, false otherwise
+     */
+    public synchronized boolean remove(UUID clusterId) {
+        List<Entry> entries = index.remove(clusterId);
+        if(entries == null) {
+            return false;
+        }
+        entryCount -= entries.size();
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Get the IDs of all clusters with fragments in the container.
+     * @return Cluster IDs, in the order first added
+     */
+    public synchronized Set<UUID> getClusterIds() {
+        return Collections.unmodifiableSet(new LinkedHashSet<UUID>(index.keySet()));
+    }
+
+    /**
+     * Get all fragments of a cluster.
+     * Each fragment is memory-mapped and parsed in place, so its payload is read straight from the page cache. The
+     * fragment digests are checked, and fragments failing the check are left out.
+     * @param clusterId Cluster ID
+     * @return Cluster of the fragments found (empty if none)
+     * @throws IOException Upon a failed file operation
+     */
+    public synchronized Cluster<Fragment> getCluster(UUID clusterId) throws IOException {
+        checkOpen();
+        Cluster<Fragment> cluster = new Cluster<Fragment>(clusterId);
+        List<Entry> entries = index.get(clusterId);
+        if(entries != null) {
+            for(Entry entry : entries) {
+                try {
+                    cluster.add(read(entry));
+                } catch(FragmentFormatException e) {
+                    // Leave it out, reconstruction will have to do without it
+                }
+            }
+        }
+        return cluster;
+    }
+
+    /**
+     * Get a single fragment.
+     * The fragment is memory-mapped and parsed in place, see getCluster().
+     * @param clusterId Cluster ID
+     * @param fragId Fragment ID
+     * @return The fragment, or null if the container doesn't hold it
+     * @throws IOException Upon a failed file operation
+     * @throws FragmentFormatException If the fragment is malformed or fails its digest check
+     */
+    public synchronized Fragment getFragment(UUID clusterId, UUID fragId) throws IOException, FragmentFormatException {
+        checkOpen();
+        List<Entry> entries = index.get(clusterId);
+        if(entries != null) {
+            for(Entry entry : entries) {
+                if(entry.fragId.equals(fragId)) {
+                    return read(entry);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Map and parse the fragment of an entry.
+     */
+    private Fragment read(Entry entry) throws IOException, FragmentFormatException {
+        if(entry.length > Integer.MAX_VALUE) {
+            throw new FragmentFormatException("Fragment too large to be memory-mapped: " + entry.length + " bytes");
+        }
+        ByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+        FragmentReader reader = entry.format == FORMAT_ERASURE ? erasureReader : xorReader;
+        Fragment frag = reader.parseFragment(mapping);
+        if(!frag.getId().equals(entry.fragId) || !frag.getClusterId().equals(entry.clusterId)) {
+            throw new FragmentFormatException("Fragment doesn't match the container index: " + entry.fragId);
+        }
+        return frag;
+    }
+
+    /**
+     * Write the index as a new footer (if it has changed) and force everything to the storage device.
+     * Until this is done, fragments appended (or clusters removed) since the last flush would be lost in a crash:
+     * opening the container afterwards falls back to the last complete footer, and whatever follows it is garbage.
+     * @throws IOException Upon a failed file operation
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        if(!dirty) {
+            return;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(entryCount * ENTRY_SIZE + TRAILER_SIZE);
+        for(List<Entry> entries : index.values()) {
+            for(Entry entry : entries) {
+                footer.putLong(entry.clusterId.getMostSignificantBits());
+                footer.putLong(entry.clusterId.getLeastSignificantBits());
+                footer.putLong(entry.fragId.getMostSignificantBits());
+                footer.putLong(entry.fragId.getLeastSignificantBits());
+                footer.put(entry.format);
+                footer.putLong(entry.offset);
+                footer.putLong(entry.length);
+            }
+        }
+        CRC32C checksum = new CRC32C();
+        ByteBuffer entries = footer.duplicate();
+        entries.flip();
+        checksum.update(entries);
+        footer.putLong(end);
+        footer.putInt(entryCount);
+        footer.putInt((int)checksum.getValue());
+        footer.putInt(MAGIC);
+        footer.flip();
+        ChannelUtil.writeFully(channel.position(end), footer);
+        channel.force(false);
+        end = channel.position();
+        dirty = false;
+    }
+
+    /**
+     * Get the size of the container file.
+     * @return Size (in bytes), including fragments not flushed yet
+     */
+    public synchronized long size() {
+        return end;
+    }
+
+    /**
+     * Get the amount of space taken by the fragments in the index.
+     * The rest of the file (apart from the header and the current footer) is garbage reclaimable by compact().
+     * @return Live size (in bytes)
+     */
+    public synchronized long getLiveBytes() {
+        long live = 0;
+        for(List<Entry> entries : index.values()) {
+            for(Entry entry : entries) {
+                live += entry.length;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Rewrite the container without any garbage (removed fragments and stale footers).
+     * The live fragments are copied to a temporary file in the same directory (file to file, without passing the
+     * data through the heap where the platform supports it), which then atomically replaces the container file. A
+     * crash midway leaves the original container untouched.
+     * @throws IOException Upon a failed file operation
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        Path dir = path.toAbsolutePath().getParent();
+        Path temp = dir.resolve("." + path.getFileName() + "-" + UUID.randomUUID() + ".compact");
+        FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean success = false;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putShort(SUPPORTED_CONTAINER_VERSION);
+            header.flip();
+            ChannelUtil.writeFully(target, header);
+
+            Map<UUID, List<Entry>> compacted = new LinkedHashMap<UUID, List<Entry>>();
+            long position = HEADER_SIZE;
+            for(Map.Entry<UUID, List<Entry>> cluster : index.entrySet()) {
+                List<Entry> moved = new ArrayList<Entry>(cluster.getValue().size());
+                for(Entry entry : cluster.getValue()) {
+                    copy(entry, target, position);
+                    moved.add(new Entry(entry.clusterId, entry.fragId, entry.format, position, entry.length));
+                    position += entry.length;
+                }
+                compacted.put(cluster.getKey(), moved);
+            }
+
+            // Swap in the compacted state and write its footer to the new file
+            FileChannel old = channel;
+            Map<UUID, List<Entry>> oldIndex = new LinkedHashMap<UUID, List<Entry>>(index);
+            long oldEnd = end;
+            boolean oldDirty = dirty;
+            channel = target;
+            index.clear();
+            index.putAll(compacted);
+            end = position;
+            dirty = true;
+            try {
+                flush();
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch(IOException e) {
+                channel = old;
+                index.clear();
+                index.putAll(oldIndex);
+                end = oldEnd;
+                dirty = oldDirty;
+                throw e;
+            }
+            old.close();
+            success = true;
+        } finally {
+            if(!success) {
+                target.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Copy a fragment to another file.
+     * Transferred by the OS where possible. transferTo() may also transfer nothing (e.g. past the end of a truncated
+     * file), in which case a chunk is read and written instead, so that a short file ends the copy rather than spin.
+     * @throws EOFException If the fragment extends beyond the end of the container file
+     */
+    private void copy(Entry entry, FileChannel target, long position) throws IOException {
+        long copied = 0;
+        ByteBuffer buffer = null;
+        while(copied < entry.length) {
+            long n = channel.transferTo(entry.offset + copied, entry.length - copied, target.position(position + copied));
+            if(n == 0) {
+                if(buffer == null) {
+                    buffer = ByteBuffer.allocate((int)Math.min(64 * 1024, entry.length));
+                }
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), entry.length - copied));
+                n = channel.read(buffer, entry.offset + copied);
+                if(n <= 0) {
+                    throw new EOFException("Fragment " + entry.fragId + " ends beyond the end of the container");
+                }
+                buffer.flip();
+                target.position(position + copied);
+                ChannelUtil.writeFully(target, buffer);
+            }
+            copied += n;
+        }
+    }
+
+    /**
+     * Flush and close the container.
+     * @throws IOException Upon a failed file operation
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(channel.isOpen()) {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if(!channel.isOpen()) {
+            throw new IOException("Container is closed");
+        }
+    }
+}
@@ -1,25 +1,144 @@
 package net.comploud.code.bitfrag;
 
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * Maps fragments into clusters.
  * This is a helper class that sorts fragments into their corresponding clusters.
+ * The mapper is thread-safe, so fragments may be mapped from any number of threads at once (e.g. one per network
+ * peer). Mapping only contends on the cluster the fragment belongs to, while the limits are enforced by whichever
+ * thread gets to it first without making the others wait. As soon as a cluster has received sufficient distinct pieces to be reconstructed, its future is
+ * completed and the listeners are notified, exactly once per cluster.
+ *
+ * By default every cluster ever seen is kept. For long-running use, the mapper can be bounded by the amount of
+ * clusters, the amount of payload bytes held and a time-to-live for incomplete clusters. Clusters are evicted least
+ * recently used first, in small batches so that the bookkeeping is amortized, and the eviction listeners are told why.
+ * If a spill directory is set, payloads over the byte limit are written to disk and memory-mapped back instead of
+ * being dropped, so the clusters stay complete while their payloads leave the heap.
  * Created by tek-ti on 2014-11-18.
  */
 public class FragmentMapper {
+    /**
+     * Listener for clusters becoming reconstructable.
+     */
+    public interface Listener {
+        /**
+         * Called once for each cluster, as soon as it has received sufficient distinct pieces to be reconstructed.
+         * This is called by whatever thread mapped the decisive fragment, so don't block it for long.
+         * @param cluster The cluster
+         */
+        public void clusterReconstructable(Cluster<Fragment> cluster);
+    }
+
+    /**
+     * Listener for fragments added to clusters.
+     */
+    public interface FragmentListener {
+        /**
+         * Called whenever a fragment has been added to a cluster, after any Listener has been notified.
+         * This is called by the thread that mapped the fragment, so don't block it for long.
+         * @param cluster The cluster
+         * @param frag The fragment added
+         */
+        public void fragmentAdded(Cluster<Fragment> cluster, Fragment frag);
+    }
+
+    /**
+     * Reasons for evicting a cluster.
+     */
+    public enum EvictionCause {
+        /** The maximum amount of clusters was exceeded. */
+        CLUSTERS,
+        /** The maximum amount of payload bytes was exceeded (and there was no spill directory). */
+        PAYLOAD,
+        /** The cluster stayed incomplete for longer than the time-to-live. */
+        EXPIRED
+    }
+
+    /**
+     * Listener for evicted clusters.
+     */
+    public interface EvictionListener {
+        /**
+         * Called when a cluster has been evicted.
+         * A pending whenReconstructable() future of the cluster is cancelled.
+         * @param cluster The evicted cluster
+         * @param cause Why it was evicted
+         */
+        public void clusterEvicted(Cluster<Fragment> cluster, EvictionCause cause);
+    }
+
     /**
      * The known - or observed - clusters.
      * This collection will be updated as new fragments are mapped with the map() method.
      */
-    protected Map<UUID, Cluster> knownClusters = new TreeMap<UUID, Cluster>();
+    protected ConcurrentMap<UUID, Cluster<Fragment>> knownClusters = new ConcurrentHashMap<UUID, Cluster<Fragment>>();
+
+    /**
+     * Bookkeeping by cluster ID.
+     */
+    private final ConcurrentMap<UUID, ClusterState> states = new ConcurrentHashMap<UUID, ClusterState>();
+
+    /**
+     * Registered listeners.
+     */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final List<EvictionListener> evictionListeners = new CopyOnWriteArrayList<EvictionListener>();
+    private final List<FragmentListener> fragmentListeners = new CopyOnWriteArrayList<FragmentListener>();
+
+    /**
+     * Limits, 0 meaning unlimited.
+     */
+    private volatile int maxClusters = 0;
+    private volatile long maxPayloadBytes = 0;
+    private volatile long incompleteTtlNanos = 0;
+
+    /**
+     * Directory to spill payloads to, or null to drop them.
+     */
+    private volatile Path spillDirectory = null;
+
+    /**
+     * Held by whichever thread enforces the limits. Others don't wait for it, they just carry on.
+     */
+    private final ReentrantLock maintenance = new ReentrantLock();
+    private volatile long lastExpiry = System.nanoTime();
+
+    /**
+     * Metrics.
+     */
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+    private final AtomicLong[] evictions = new AtomicLong[EvictionCause.values().length];
+    private final AtomicInteger reportedClusters = new AtomicInteger();
 
     /**
      * Default constructor.
      * No clusters will be initially known.
      */
     public FragmentMapper() {
+        for(int i = 0; i < evictions.length; i++) {
+            evictions[i] = new AtomicLong();
+        }
     }
 
 
@@ -27,42 +146,547 @@ public class FragmentMapper {
      * Constructor with an initial set of known clusters.
      * @param knownClusters Initially known clusters. Note that this set will not be modified!
      */
-    public FragmentMapper(Set<Cluster> knownClusters) {
+    public FragmentMapper(Set<Cluster<Fragment>> knownClusters) {
+        this();
         // Since there's no clever method in the Java Collections API to add a set to a map, do this explicitly
-        for(Cluster clust : knownClusters) {
+        for(Cluster<Fragment> clust : knownClusters) {
             this.knownClusters.put(clust.getId(), clust);   // Extract the ID and use it as key
+            ClusterState state = state(clust.getId());
+            for(Fragment frag : clust) {
+                state.account(frag);
+                state.mark(frag, clust);
+            }
         }
     }
 
 
+    /**
+     * Register a listener to be notified when clusters become reconstructable.
+     * Clusters that already are reconstructable won't be reported to a listener registered afterwards (use
+     * whenReconstructable() for those).
+     * @param listener Listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener.
+     * @param listener Listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Register a listener to be notified when clusters are evicted.
+     * @param listener Listener
+     */
+    public void addEvictionListener(EvictionListener listener) {
+        evictionListeners.add(listener);
+    }
+
+    /**
+     * Unregister an eviction listener.
+     * @param listener Listener
+     */
+    public void removeEvictionListener(EvictionListener listener) {
+        evictionListeners.remove(listener);
+    }
+
+    /**
+     * Register a listener to be notified of every fragment added to a cluster.
+     * @param listener Listener
+     */
+    public void addFragmentListener(FragmentListener listener) {
+        fragmentListeners.add(listener);
+    }
+
+    /**
+     * Unregister a fragment listener.
+     * @param listener Listener
+     */
+    public void removeFragmentListener(FragmentListener listener) {
+        fragmentListeners.remove(listener);
+    }
+
+    /**
+     * Limit the amount of clusters kept.
+     * Clusters that are only waited for (see whenReconstructable()) count as well.
+     * @param maxClusters Maximum amount of clusters, or 0 for no limit
+     */
+    public void setMaxClusters(int maxClusters) {
+        this.maxClusters = maxClusters;
+    }
+
+    /**
+     * Limit the amount of payload data kept on the heap.
+     * Direct and mapped payloads (including spilled ones) don't count.
+     * @param maxPayloadBytes Maximum amount of payload bytes, or 0 for no limit
+     */
+    public void setMaxPayloadBytes(long maxPayloadBytes) {
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    /**
+     * Evict clusters that haven't become reconstructable within some time since their last fragment arrived.
+     * @param ttl Time-to-live, or 0 for no limit
+     * @param unit Unit of the time-to-live
+     */
+    public void setIncompleteTtl(long ttl, TimeUnit unit) {
+        this.incompleteTtlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Spill payloads to disk rather than dropping whole clusters when the payload limit is exceeded.
+     * Spilled fragments are written to the directory in the binary fragment format and their payloads replaced by
+     * read-only mappings of the files. The files are deleted when the cluster is removed or evicted.
+     * @param spillDirectory Existing directory to spill to, or null to drop clusters instead
+     */
+    public void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
     /**
      * Maps a fragment into its cluster.
      * If the fragments specified cluster is known, it will be added to that cluster. If not, a new cluster data
      * structure will be created prior to the fragment being added.
      * @param frag Fragment to map
      * @return true if a new cluster was discovered, false if the cluster was already known
-     */ // TODO This method contains unchecked generics...
-    public synchronized boolean map(Fragment frag) {
-        Cluster clust = knownClusters.get(frag.getClusterId());
-        if(clust == null) {
-            // This is a newly discovered cluster
-            UUID clustId = frag.getClusterId();
-            Cluster newClust = new Cluster(clustId);
-            newClust.add(frag);
-            knownClusters.put(clustId, newClust);
-            return true;
-        } else {
-            // The cluster for this fragment is known
-            clust.add(frag);
-            return false;
+     */
+    public boolean map(Fragment frag) {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+
+        // Add the fragment atomically with respect to remove() and eviction of the cluster
+        Mapping mapping = new Mapping(frag);
+        ClusterState state = states.compute(frag.getClusterId(), mapping);
+        Cluster<Fragment> clust = mapping.cluster;
+        state.mark(frag, clust);
+        if(mapping.added) {
+            for(FragmentListener listener : fragmentListeners) {
+                listener.fragmentAdded(clust, frag);
+            }
         }
+        maintain();
+        if(metrics != null) {
+            int clusters = getClusterCount();
+            metrics.fragmentMapped(clusters, clusters - reportedClusters.getAndSet(clusters), System.nanoTime() - start);
+        }
+        return mapping.discovered;
+    }
+
+    /**
+     * Get a future that completes with the cluster as soon as it has received sufficient distinct pieces to be
+     * reconstructed. The cluster doesn't have to be known yet. The future is cancelled if the cluster is evicted first.
+     * Waiting for an unknown cluster takes up bookkeeping like a known one does, so it is subject to the cluster limit
+     * and the time-to-live. Cancel the future to stop waiting for it, which frees the bookkeeping if no fragment of the
+     * cluster has arrived meanwhile. Note that the future is shared by all callers waiting for the cluster.
+     * Note that sufficient pieces don't guarantee a successful reconstruction, since fragments may be corrupted.
+     * @param clusterId Cluster ID
+     * @return Future of the cluster
+     */
+    public CompletableFuture<Cluster<Fragment>> whenReconstructable(UUID clusterId) {
+        return state(clusterId).ready;
+    }
+
+    /**
+     * Forget a cluster, e.g. once it has been reconstructed.
+     * No eviction listeners are notified.
+     * @param clusterId Cluster ID
+     * @return The removed cluster, or null if it wasn't known
+     */
+    public Cluster<Fragment> remove(UUID clusterId) {
+        Removal removal = new Removal();
+        states.compute(clusterId, removal);
+        if(removal.state != null) {
+            removal.state.release();
+        }
+        reportClusters();
+        return removal.cluster;
     }
 
     /**
      * Returns the currently known clusters.
+     * The collection is a live view that may be iterated while fragments are mapped concurrently.
      * @return Known clusters
      */
-    public Collection<Cluster> getKnownClusters() {
+    public Collection<Cluster<Fragment>> getKnownClusters() {
         return knownClusters.values();
     }
+
+    /**
+     * Get the amount of currently known clusters.
+     * @return Clusters
+     */
+    public int getClusterCount() {
+        return knownClusters.size();
+    }
+
+    /**
+     * Get the amount of payload bytes currently held on the heap.
+     * @return Payload bytes
+     */
+    public long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+
+    /**
+     * Get the amount of payload bytes currently spilled to disk.
+     * @return Spilled bytes
+     */
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    /**
+     * Get the amount of clusters spilled to disk so far.
+     * @return Spills
+     */
+    public long getSpillCount() {
+        return spills.get();
+    }
+
+    /**
+     * Get the amount of clusters evicted so far for a specific cause.
+     * @param cause Eviction cause
+     * @return Evictions
+     */
+    public long getEvictionCount(EvictionCause cause) {
+        return evictions[cause.ordinal()].get();
+    }
+
+    /**
+     * Enforce the limits right away.
+     * This happens automatically as fragments are mapped, but expired clusters are only noticed then too. Call this
+     * periodically if fragments may stop arriving for long.
+     */
+    public void cleanUp() {
+        maintenance.lock();
+        try {
+            enforce(true);
+        } finally {
+            maintenance.unlock();
+        }
+    }
+
+    /**
+     * Enforce the limits, unless another thread is already at it.
+     */
+    private void maintain() {
+        int maxClusters = this.maxClusters;
+        long maxPayloadBytes = this.maxPayloadBytes;
+        long ttl = incompleteTtlNanos;
+        boolean expire = ttl > 0 && System.nanoTime() - lastExpiry > ttl / 4;
+        if(((maxClusters > 0 && states.size() > maxClusters) ||
+                (maxPayloadBytes > 0 && payloadBytes.get() > maxPayloadBytes) || expire) && maintenance.tryLock()) {
+            try {
+                enforce(expire);
+            } finally {
+                maintenance.unlock();
+            }
+        }
+    }
+
+    /**
+     * Enforce the limits. Must hold the maintenance lock.
+     */
+    private void enforce(boolean expire) {
+        long now = System.nanoTime();
+        long ttl = incompleteTtlNanos;
+        if(expire && ttl > 0) {
+            lastExpiry = now;
+            for(Map.Entry<UUID, ClusterState> entry : states.entrySet()) {
+                ClusterState state = entry.getValue();
+                if(!state.ready.isDone() && now - state.lastAccess > ttl) {
+                    evict(entry.getKey(), EvictionCause.EXPIRED);
+                }
+            }
+        }
+
+        int maxClusters = this.maxClusters;
+        long maxPayloadBytes = this.maxPayloadBytes;
+        boolean overClusters = maxClusters > 0 && states.size() > maxClusters;
+        boolean overPayload = maxPayloadBytes > 0 && payloadBytes.get() > maxPayloadBytes;
+        if(!overClusters && !overPayload) {
+            return;
+        }
+
+        // Least recently used first. Go a bit below the limits, so that this doesn't have to be done on every map().
+        // Clusters only waited for have bookkeeping but no cluster, so go by the bookkeeping.
+        List<UUID> candidates = new ArrayList<UUID>(states.keySet());
+        final Map<UUID, Long> accessed = new HashMap<UUID, Long>();
+        for(UUID id : candidates) {
+            ClusterState state = states.get(id);
+            accessed.put(id, state == null ? Long.MIN_VALUE : state.lastAccess - now);
+        }
+        Collections.sort(candidates, new Comparator<UUID>() {
+            @Override
+            public int compare(UUID a, UUID b) {
+                return Long.compare(accessed.get(a), accessed.get(b));
+            }
+        });
+        int clusterTarget = maxClusters - maxClusters / 16;
+        long payloadTarget = maxPayloadBytes - maxPayloadBytes / 16;
+        Path spill = spillDirectory;
+        for(UUID id : candidates) {
+            overClusters = maxClusters > 0 && states.size() > clusterTarget;
+            overPayload = maxPayloadBytes > 0 && payloadBytes.get() > payloadTarget;
+            if(overClusters) {
+                evict(id, EvictionCause.CLUSTERS);
+            } else if(overPayload) {
+                ClusterState state = states.get(id);
+                if(state != null && state.bytes.get() == 0) {
+                    continue;   // Nothing on the heap to free (e.g. already spilled)
+                }
+                if(spill == null || state == null || !state.spill(knownClusters.get(id), spill)) {
+                    evict(id, EvictionCause.PAYLOAD);
+                }
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Evict a cluster and notify the eviction listeners.
+     */
+    private void evict(UUID clusterId, EvictionCause cause) {
+        Removal removal = new Removal();
+        states.compute(clusterId, removal);
+        Cluster<Fragment> clust = removal.cluster;
+        ClusterState state = removal.state;
+        if(state != null) {
+            state.release();
+            state.ready.cancel(false);
+        }
+        if(clust != null) {
+            evictions[cause.ordinal()].incrementAndGet();
+            for(EvictionListener listener : evictionListeners) {
+                listener.clusterEvicted(clust, cause);
+            }
+            reportClusters();
+        }
+    }
+
+    /**
+     * Tell the metrics, if enabled, how the amount of known clusters changed since it was last reported.
+     */
+    private void reportClusters() {
+        Metrics metrics = Metrics.getActive();
+        if(metrics != null) {
+            int clusters = getClusterCount();
+            metrics.mapperClustersChanged(clusters - reportedClusters.getAndSet(clusters));
+        }
+    }
+
+    /**
+     * Get (or create) the bookkeeping of a cluster.
+     */
+    private ClusterState state(UUID clusterId) {
+        ClusterState state = states.get(clusterId);
+        if(state == null) {
+            state = states.computeIfAbsent(clusterId, new Function<UUID, ClusterState>() {
+                @Override
+                public ClusterState apply(UUID id) {
+                    return newState(id);
+                }
+            });
+        }
+        return state;
+    }
+
+    /**
+     * Create the bookkeeping of a cluster, to be put in the states.
+     */
+    private ClusterState newState(final UUID clusterId) {
+        final ClusterState newState = new ClusterState();
+        // Forget a cluster only waited for once the wait is cancelled
+        newState.ready.whenComplete(new BiConsumer<Cluster<Fragment>, Throwable>() {
+            @Override
+            public void accept(Cluster<Fragment> clust, Throwable failure) {
+                if(!newState.ready.isCancelled()) {
+                    return;
+                }
+                states.computeIfPresent(clusterId, new BiFunction<UUID, ClusterState, ClusterState>() {
+                    @Override
+                    public ClusterState apply(UUID id, ClusterState state) {
+                        if(state != newState || knownClusters.containsKey(id)) {
+                            return state;
+                        }
+                        newState.release();     // Nothing much to release, as no fragment has arrived
+                        return null;
+                    }
+                });
+            }
+        });
+        return newState;
+    }
+
+    /**
+     * Adds a fragment to its cluster, creating the cluster and its bookkeeping as needed.
+     * Applied to the states by compute(), so that this never interleaves with a Removal of the same cluster.
+     */
+    private class Mapping implements BiFunction<UUID, ClusterState, ClusterState> {
+        private final Fragment frag;
+        private Cluster<Fragment> cluster;
+        private boolean discovered = false;
+        private boolean added = false;
+
+        private Mapping(Fragment frag) {
+            this.frag = frag;
+        }
+
+        @Override
+        public ClusterState apply(UUID clusterId, ClusterState state) {
+            if(state == null) {
+                state = newState(clusterId);
+            }
+            cluster = knownClusters.get(clusterId);
+            if(cluster == null) {
+                cluster = new Cluster<Fragment>(clusterId);
+                knownClusters.put(clusterId, cluster);
+                discovered = true;
+            }
+            state.lastAccess = System.nanoTime();
+            added = cluster.add(frag);
+            if(added) {
+                state.account(frag);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Removes a cluster and its bookkeeping, keeping hold of both.
+     * Applied to the states by compute(), so that this never interleaves with a Mapping of the same cluster.
+     */
+    private class Removal implements BiFunction<UUID, ClusterState, ClusterState> {
+        private Cluster<Fragment> cluster;
+        private ClusterState state;
+
+        @Override
+        public ClusterState apply(UUID clusterId, ClusterState state) {
+            this.cluster = knownClusters.remove(clusterId);
+            this.state = state;
+            return null;
+        }
+    }
+
+    /**
+     * Bookkeeping of a cluster: its readiness, its payload bytes and its spill files.
+     */
+    private class ClusterState {
+        private final CompletableFuture<Cluster<Fragment>> ready = new CompletableFuture<Cluster<Fragment>>();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong spilled = new AtomicLong();
+        private final List<Path> spillFiles = new CopyOnWriteArrayList<Path>();
+        private volatile long lastAccess = System.nanoTime();
+
+        /**
+         * Fire if the cluster just became reconstructable with the piece of a fragment.
+         */
+        private void mark(Fragment frag, Cluster<Fragment> clust) {
+            if(clust.getPieceCount() >= frag.getRequiredPieces() && ready.complete(clust)) {
+                for(Listener listener : listeners) {
+                    listener.clusterReconstructable(clust);
+                }
+            }
+        }
+
+        /**
+         * Account for the payload of a newly added fragment, if it's on the heap.
+         */
+        private void account(Fragment frag) {
+            if(frag.getPayload() != null && !frag.getPayload().isDirect()) {
+                bytes.addAndGet(frag.getPayload().remaining());
+                payloadBytes.addAndGet(frag.getPayload().remaining());
+            }
+        }
+
+        /**
+         * Give back the accounted payload bytes and delete any spill files.
+         */
+        private void release() {
+            payloadBytes.addAndGet(-bytes.getAndSet(0));
+            spilledBytes.addAndGet(-spilled.getAndSet(0));
+            for(Path file : spillFiles) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch(IOException e) {
+                    // Nothing more to do about it
+                }
+            }
+            spillFiles.clear();
+        }
+
+        /**
+         * Spill the payloads of a cluster to disk, replacing its fragments with ones of mapped payloads.
+         * @return true if anything was spilled
+         */
+        private boolean spill(Cluster<Fragment> clust, Path directory) {
+            if(clust == null) {
+                return false;
+            }
+            long moved = 0;
+            for(Fragment frag : clust) {
+                ByteBuffer payload = frag.getPayload();
+                if(payload == null || payload.isDirect()) {
+                    continue;   // Header-only, already spilled or otherwise off the heap (and not accounted for)
+                }
+                Path file = directory.resolve(clust.getId() + "-" + frag.getPieceIndex() + "-" + frag.getId() + ".spill");
+                try {
+                    Fragment mapped = spill(frag, file);
+                    if(mapped == null) {
+                        continue;   // Unknown fragment type
+                    }
+                    if(!clust.replace(frag, mapped)) {     // In place, so the piece never goes missing
+                        Files.deleteIfExists(file);         // Removed meanwhile
+                        continue;
+                    }
+                    spillFiles.add(file);
+                    moved += payload.remaining();
+                } catch(IOException e) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch(IOException e2) {
+                        // Nothing more to do about it
+                    }
+                    break;  // The disk is full or similar, no use trying the rest
+                }
+            }
+            bytes.addAndGet(-moved);
+            payloadBytes.addAndGet(-moved);
+            spilled.addAndGet(moved);
+            spilledBytes.addAndGet(moved);
+            if(moved > 0) {
+                spills.incrementAndGet();
+            }
+            return moved > 0;
+        }
+
+        /**
+         * Write a fragment to a file and create an identical fragment whose payload is a mapping of that file.
+         * @return The mapped fragment, or null if the fragment type isn't known
+         */
+        private Fragment spill(Fragment frag, Path file) throws IOException {
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if(frag instanceof XORFragment) {
+                    XORFragment x = (XORFragment)frag;
+                    new BinaryXORFragmentWriter(x).writeFragment(channel);
+                    ByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY, x.getHeaderSize(), x.getPayload().remaining());
+                    return x.withPayload(payload);
+                } else if(frag instanceof ErasureFragment) {
+                    ErasureFragment e = (ErasureFragment)frag;
+                    new BinaryErasureFragmentWriter(e).writeFragment(channel);
+                    ByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY, ErasureFragment.HEADER_SIZE, e.getPayload().remaining());
+                    return new ErasureFragment(e.getVersion(), e.getAlgorithm(), e.getDigest(), e.getClusterId(), e.getId(), e.getClusterDataSize(),
+                            e.getDataPieces(), e.getParityPieces(), e.getPiece(), payload);
+                } else {
+                    Files.delete(file);
+                    return null;
+                }
+            }
+        }
+    }
 }
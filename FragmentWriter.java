@@ -3,6 +3,7 @@ package net.comploud.code.bitfrag;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Interface for a class that writes (exports) fragments.
@@ -11,4 +12,5 @@ import java.nio.ByteBuffer;
 public interface FragmentWriter {
     public void writeFragment(ByteBuffer buffer) throws IOException;    // TODO Really?
     public void writeFragment(OutputStream stream) throws IOException;
+    public void writeFragment(WritableByteChannel channel) throws IOException;
 }
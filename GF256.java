@@ -0,0 +1,159 @@
+package net.comploud.code.bitfrag;
+
+/**
+ * Arithmetic in the Galois field GF(2^8), as used by Reed-Solomon codes.
+ * Addition (and subtraction) is XOR. Multiplication and division are done with precomputed tables, generated from
+ * the primitive polynomial x^8 + x^4 + x^3 + x^2 + 1 (0x11d) with the generator 2.
+ * Field elements are passed as ints in the range 0-255, or as raw bytes in the bulk operations.
+ */
+public class GF256 {
+    /**
+     * The primitive polynomial generating the field.
+     */
+    private static final int POLYNOMIAL = 0x11d;
+
+    /**
+     * Exponent (anti-logarithm) table. Doubled in length so that EXP[LOG[a] + LOG[b]] never needs a modulo.
+     */
+    private static final int[] EXP = new int[512];
+
+    /**
+     * Logarithm table. LOG[0] is undefined (and never used).
+     */
+    private static final int[] LOG = new int[256];
+
+    /**
+     * Full multiplication table. MUL[a][b] is the product of a and b, as a byte.
+     * 64 KiB is a small price for a branch-free inner loop in the bulk operations.
+     */
+    private static final byte[][] MUL = new byte[256][256];
+
+    // Initialize the tables
+    static {
+        int x = 1;
+        for(int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if(x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for(int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for(int a = 1; a < 256; a++) {
+            for(int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte)EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private GF256() {
+    }
+
+    /**
+     * Multiply two field elements.
+     * @return a * b
+     */
+    public static int mul(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    /**
+     * Divide two field elements.
+     * @return a / b
+     * @throws ArithmeticException If b is zero
+     */
+    public static int div(int a, int b) {
+        if(b == 0) {
+            throw new ArithmeticException("Division by zero in GF(256)");
+        } else if(a == 0) {
+            return 0;
+        } else {
+            return EXP[LOG[a] + 255 - LOG[b]];
+        }
+    }
+
+    /**
+     * Get the multiplicative inverse of a field element.
+     * @return 1 / a
+     * @throws ArithmeticException If a is zero
+     */
+    public static int inv(int a) {
+        return div(1, a);
+    }
+
+    /**
+     * Multiply a region of bytes with a constant and add (XOR) the products to another region.
+     * dst[i] ^= coefficient * src[i]
+     * @param coefficient Constant factor
+     * @param src Source array
+     * @param srcOffset Offset of the first source byte
+     * @param dst Destination array
+     * @param dstOffset Offset of the first destination byte
+     * @param length Amount of bytes
+     */
+    public static void mulAdd(int coefficient, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        if(coefficient == 0) {
+            return;     // Nothing to add
+        } else if(coefficient == 1) {
+            for(int i = 0; i < length; i++) {
+                dst[dstOffset + i] ^= src[srcOffset + i];
+            }
+        } else {
+            byte[] row = MUL[coefficient];
+            for(int i = 0; i < length; i++) {
+                dst[dstOffset + i] ^= row[src[srcOffset + i] & 0xff];
+            }
+        }
+    }
+
+    /**
+     * Invert a square matrix using Gauss-Jordan elimination.
+     * @param matrix Matrix to invert (left untouched)
+     * @return The inverse matrix
+     * @throws ArithmeticException If the matrix is singular
+     */
+    public static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] work = new int[n][];
+        int[][] inverse = new int[n][n];
+        for(int i = 0; i < n; i++) {
+            work[i] = matrix[i].clone();
+            inverse[i][i] = 1;
+        }
+
+        for(int col = 0; col < n; col++) {
+            // Find a pivot row and swap it into place
+            int pivot = col;
+            while(pivot < n && work[pivot][col] == 0) {
+                pivot++;
+            }
+            if(pivot == n) {
+                throw new ArithmeticException("Singular matrix");
+            }
+            int[] tmp = work[col];  work[col] = work[pivot];        work[pivot] = tmp;
+            tmp = inverse[col];     inverse[col] = inverse[pivot];  inverse[pivot] = tmp;
+
+            // Scale the pivot row to make the pivot 1
+            int scale = inv(work[col][col]);
+            for(int j = 0; j < n; j++) {
+                work[col][j] = mul(work[col][j], scale);
+                inverse[col][j] = mul(inverse[col][j], scale);
+            }
+
+            // Eliminate the column from all other rows
+            for(int row = 0; row < n; row++) {
+                int factor = work[row][col];
+                if(row != col && factor != 0) {
+                    for(int j = 0; j < n; j++) {
+                        work[row][j] ^= mul(factor, work[col][j]);
+                        inverse[row][j] ^= mul(factor, inverse[col][j]);
+                    }
+                }
+            }
+        }
+        return inverse;
+    }
+}
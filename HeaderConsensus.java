@@ -0,0 +1,399 @@
+package net.comploud.code.bitfrag;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Consensus negotiation upon the cluster-level fragment headers.
+ * Every fragment of a cluster carries its own copy of the cluster parameters (version, digest, data size and the code
+ * parameters), so a corrupted or tampered header would otherwise be able to ruin the whole reconstruction. Instead,
+ * all fragments vote and each field is concurred upon separately: the most common value wins (the smallest one in
+ * case of a tie). Fragments disagreeing with the consensus on any field are dissenters and shouldn't be used.
+ * Should the winning values of the fields not match any fragment as a whole (e.g. when corrupted headers outvote the
+ * others on different fields), the most common complete header wins instead, so that the consensus always is the
+ * header of at least one real fragment.
+ *
+ * The votes are kept in primitive arrays that grow as needed and are reused, so negotiating upon the same or a
+ * smaller amount of fragments again doesn't allocate anything. A unanimous field (the common case) is settled in a
+ * single pass, otherwise the votes are sorted, so even clusters of hundreds of fragments are cheap.
+ * An instance is not thread-safe. Either create one per use, or use the one owned by the calling thread through
+ * forThread() and reset() it when done.
+ */
+public class HeaderConsensus {
+    /**
+     * Field indices, for getSupport().
+     */
+    public static final int VERSION = 0;
+    public static final int DIGEST = 1;
+    public static final int DATA_SIZE = 2;
+    public static final int ALGORITHM = 3;
+    public static final int DATA_PIECES = 4;
+    public static final int PARITY_PIECES = 5;
+    public static final int STRIPE_SIZE = 6;
+    public static final int STRIPES = 7;
+
+    /**
+     * Amount of fields voted upon.
+     */
+    public static final int FIELDS = 8;
+
+    /**
+     * Engines reused by threads.
+     */
+    private static final ThreadLocal<HeaderConsensus> local = new ThreadLocal<HeaderConsensus>() {
+        @Override
+        protected HeaderConsensus initialValue() {
+            return new HeaderConsensus();
+        }
+    };
+
+    /**
+     * The fragments voting, in the order added.
+     */
+    private Fragment[] fragments = new Fragment[8];
+
+    /**
+     * The votes, by field and then by fragment.
+     */
+    private final long[][] votes = new long[FIELDS][8];
+
+    /**
+     * Scratch space for sorting the votes of a field.
+     */
+    private long[] sorted = new long[8];
+
+    /**
+     * Amount of fragments voting.
+     */
+    private int count = 0;
+
+    /**
+     * The outcome, by field.
+     */
+    private final long[] consensus = new long[FIELDS];
+    private final int[] support = new int[FIELDS];
+
+    /**
+     * Amount of dissenters, or -1 if not concurred yet.
+     */
+    private int dissenters = -1;
+
+
+    /**
+     * Get the engine owned by the calling thread, reset.
+     * It must not be handed to other threads, nor be used across calls that may use it themselves.
+     * @return The engine of this thread
+     */
+    public static HeaderConsensus forThread() {
+        HeaderConsensus engine = local.get();
+        engine.reset();
+        return engine;
+    }
+
+    /**
+     * Discard all votes (and references to the fragments voting).
+     */
+    public void reset() {
+        Arrays.fill(fragments, 0, count, null);
+        count = 0;
+        dissenters = -1;
+    }
+
+    /**
+     * Cast the votes of a fragment.
+     * XOR fragments vote for the XOR algorithm with two data pieces and one parity piece. Their stripe table is voted
+     * upon by a fingerprint of all stripe digests, erasure code fragments vote for no stripes at all.
+     * @param frag Fragment
+     * @throws IllegalArgumentException If the fragment type is unknown
+     */
+    public void add(Fragment frag) {
+        if(count == fragments.length) {
+            int capacity = count * 2;
+            fragments = Arrays.copyOf(fragments, capacity);
+            for(int field = 0; field < FIELDS; field++) {
+                votes[field] = Arrays.copyOf(votes[field], capacity);
+            }
+            sorted = new long[capacity];
+        }
+
+        if(frag instanceof XORFragment) {
+            XORFragment xorFrag = (XORFragment)frag;
+            votes[VERSION][count] = xorFrag.getVersion();
+            votes[DIGEST][count] = xorFrag.getDigest() == null ? 0 : xorFrag.getDigest().headerValue();
+            votes[DATA_SIZE][count] = xorFrag.getClusterDataSize();
+            votes[ALGORITHM][count] = AlgorithmSpec.XOR.headerValue();
+            votes[DATA_PIECES][count] = 2;
+            votes[PARITY_PIECES][count] = 1;
+            votes[STRIPE_SIZE][count] = xorFrag.getStripeSize();
+            votes[STRIPES][count] = fingerprint(xorFrag);
+        } else if(frag instanceof ErasureFragment) {
+            ErasureFragment erasureFrag = (ErasureFragment)frag;
+            votes[VERSION][count] = erasureFrag.getVersion();
+            votes[DIGEST][count] = erasureFrag.getDigest() == null ? 0 : erasureFrag.getDigest().headerValue();
+            votes[DATA_SIZE][count] = erasureFrag.getClusterDataSize();
+            votes[ALGORITHM][count] = erasureFrag.getAlgorithm();
+            votes[DATA_PIECES][count] = erasureFrag.getDataPieces();
+            votes[PARITY_PIECES][count] = erasureFrag.getParityPieces();
+            votes[STRIPE_SIZE][count] = 0;
+            votes[STRIPES][count] = 0;
+        } else {
+            throw new IllegalArgumentException("Unknown fragment type: " + frag.getClass().getName());
+        }
+        fragments[count++] = frag;
+        dissenters = -1;
+    }
+
+    /**
+     * Calculate a fingerprint of the stripe table of a fragment, 0 if it has none.
+     */
+    private static long fingerprint(XORFragment frag) {
+        long fingerprint = 0;
+        for(int i = 0; i < frag.getStripeCount(); i++) {
+            UUID stripeDigest = frag.getStripeDigest(i);
+            fingerprint = 31 * fingerprint + stripeDigest.getMostSignificantBits();
+            fingerprint = 31 * fingerprint + stripeDigest.getLeastSignificantBits();
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Concur upon every field.
+     * @throws InsufficientFragmentsException If no fragments have voted
+     */
+    public void concur() throws InsufficientFragmentsException {
+        if(count == 0) {
+            throw new InsufficientFragmentsException(0);
+        }
+        for(int field = 0; field < FIELDS; field++) {
+            long[] column = votes[field];
+            long first = column[0];
+            int i = 1;
+            while(i < count && column[i] == first) {
+                i++;
+            }
+            if(i == count) {
+                // Unanimous
+                consensus[field] = first;
+                support[field] = count;
+                continue;
+            }
+
+            // Find the longest run of equal votes
+            System.arraycopy(column, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            long winner = sorted[0];
+            int winnerCount = 0;
+            for(int j = 0, run = 1; j < count; j++, run++) {
+                if(j + 1 == count || sorted[j + 1] != sorted[j]) {
+                    if(run > winnerCount) {
+                        winner = sorted[j];
+                        winnerCount = run;
+                    }
+                    run = 0;
+                }
+            }
+            consensus[field] = winner;
+            support[field] = winnerCount;
+        }
+
+        dissenters = 0;
+        for(int i = 0; i < count; i++) {
+            if(!consents(i)) {
+                dissenters++;
+            }
+        }
+        if(dissenters == count) {
+            concurWhole();
+        }
+    }
+
+    /**
+     * Concur upon the most common complete header (the first one added in case of a tie).
+     * Only needed when the fields concurred upon separately don't match any fragment, so this doesn't have to be fast.
+     */
+    private void concurWhole() {
+        int winner = 0;
+        int winnerCount = 0;
+        for(int i = 0; i < count; i++) {
+            int matches = 0;
+            for(int j = 0; j < count; j++) {
+                if(sameHeader(i, j)) {
+                    matches++;
+                }
+            }
+            if(matches > winnerCount) {
+                winner = i;
+                winnerCount = matches;
+            }
+        }
+        for(int field = 0; field < FIELDS; field++) {
+            consensus[field] = votes[field][winner];
+            support[field] = 0;
+            for(int i = 0; i < count; i++) {
+                if(votes[field][i] == consensus[field]) {
+                    support[field]++;
+                }
+            }
+        }
+        dissenters = count - winnerCount;
+    }
+
+    /**
+     * Checks if two fragments voted alike on every field.
+     */
+    private boolean sameHeader(int a, int b) {
+        for(int field = 0; field < FIELDS; field++) {
+            if(votes[field][a] != votes[field][b]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the amount of fragments voting.
+     * @return Fragment count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get a fragment voting.
+     * @param index Index of the fragment, in the order added
+     * @return Fragment
+     */
+    public Fragment getFragment(int index) {
+        return fragments[index];
+    }
+
+    /**
+     * Checks if a fragment agrees with the consensus on every field.
+     * @param index Index of the fragment, in the order added
+     * @return true if the fragment consents, false if it dissents
+     */
+    public boolean consents(int index) {
+        checkConcurred();
+        for(int field = 0; field < FIELDS; field++) {
+            if(votes[field][index] != consensus[field]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a fragment agrees with the consensus on every field.
+     * @param frag The fragment (the very instance added)
+     * @return true if the fragment consents, false if it dissents or didn't vote
+     */
+    public boolean consents(Fragment frag) {
+        for(int i = 0; i < count; i++) {
+            if(fragments[i] == frag) {
+                return consents(i);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the fragments disagreeing with the consensus on any field.
+     * Nothing is allocated unless there are any.
+     * @return Dissenting fragments, or an (immutable) empty set if none
+     */
+    public Set<Fragment> getDissenters() {
+        checkConcurred();
+        if(dissenters == 0) {
+            return Collections.emptySet();
+        }
+        Set<Fragment> dissenting = new HashSet<Fragment>();
+        for(int i = 0; i < count; i++) {
+            if(!consents(i)) {
+                dissenting.add(fragments[i]);
+            }
+        }
+        return dissenting;
+    }
+
+    /**
+     * Get the amount of fragments agreeing with the consensus on a field.
+     * @param field Field index, e.g. DATA_SIZE
+     * @return Votes for the winning value
+     */
+    public int getSupport(int field) {
+        checkConcurred();
+        return support[field];
+    }
+
+    /**
+     * Get the concurred fragment version.
+     * @return Version
+     */
+    public short getVersion() {
+        checkConcurred();
+        return (short)consensus[VERSION];
+    }
+
+    /**
+     * Get the concurred digest.
+     * @return Digest, or null if the winning header value is unknown
+     */
+    public DigestSpec getDigest() {
+        checkConcurred();
+        return DigestSpec.lookup((byte)consensus[DIGEST]);
+    }
+
+    /**
+     * Get the concurred data size.
+     * @return Data size (in bytes)
+     */
+    public long getDataSize() {
+        checkConcurred();
+        return consensus[DATA_SIZE];
+    }
+
+    /**
+     * Get the concurred algorithm.
+     * @return Algorithm, as an AlgorithmSpec header value
+     */
+    public short getAlgorithm() {
+        checkConcurred();
+        return (short)consensus[ALGORITHM];
+    }
+
+    /**
+     * Get the concurred amount of data pieces (k).
+     * @return Data pieces
+     */
+    public int getDataPieces() {
+        checkConcurred();
+        return (int)consensus[DATA_PIECES];
+    }
+
+    /**
+     * Get the concurred amount of parity pieces (m).
+     * @return Parity pieces
+     */
+    public int getParityPieces() {
+        checkConcurred();
+        return (int)consensus[PARITY_PIECES];
+    }
+
+    /**
+     * Get the concurred stripe size.
+     * @return Stripe size (in bytes), or 0 if not striped
+     */
+    public int getStripeSize() {
+        checkConcurred();
+        return (int)consensus[STRIPE_SIZE];
+    }
+
+    private void checkConcurred() {
+        if(dissenters < 0) {
+            throw new IllegalStateException("Not concurred upon");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package net.comploud.code.bitfrag;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies (in nanoseconds).
+ * Every power of two is divided into four buckets, so percentiles are accurate to within 25% no matter the scale,
+ * from nanoseconds to hours, using a fixed amount of memory. Recording is a couple of atomic increments and never
+ * allocates anything, so it's cheap enough for the hot paths.
+ */
+public class LatencyHistogram {
+    /**
+     * Amount of buckets, enough for any non-negative long.
+     */
+    private static final int BUCKETS = 256;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+
+    /**
+     * Record a latency.
+     * @param nanos Latency (in nanoseconds), negative values count as 0
+     */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        total.add(nanos);
+    }
+
+    /**
+     * Get the amount of latencies recorded.
+     * @return Count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the sum of all latencies recorded.
+     * @return Total (in nanoseconds)
+     */
+    public long getTotalNanos() {
+        return total.sum();
+    }
+
+    /**
+     * Get the mean latency.
+     * @return Mean (in nanoseconds), or 0 if nothing has been recorded
+     */
+    public long getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / n;
+    }
+
+    /**
+     * Estimate a percentile of the latencies.
+     * @param percentile Percentile, from 0 to 100
+     * @return Upper bound of the bucket holding the percentile (in nanoseconds), or 0 if nothing has been recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        if(n == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * n);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if(seen >= rank && snapshot[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Discard all latencies recorded.
+     * Latencies recorded concurrently may or may not be discarded.
+     */
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+    }
+
+    /**
+     * Get the bucket of a latency: values below 4 have buckets of their own, then every power of two is divided into
+     * four by the two bits following the leading one.
+     */
+    private static int bucket(long nanos) {
+        if(nanos < 4) {
+            return (int)nanos;
+        }
+        int log = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int)(nanos >>> (log - 2)) & 3;
+        return (log - 1) * 4 + sub;
+    }
+
+    /**
+     * Get the largest latency of a bucket.
+     */
+    private static long upperBound(int bucket) {
+        if(bucket < 4) {
+            return bucket;
+        }
+        int log = bucket / 4 + 1;
+        long lower = (long)(4 + bucket % 4) << (log - 2);
+        long upper = lower + (1L << (log - 2)) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -0,0 +1,568 @@
+package net.comploud.code.bitfrag;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the hot paths.
+ * Fragmentation and reconstruction (block and stream mode, XOR and Reed-Solomon), the binary fragment readers and
+ * writers, standalone digest passes (fragment integrity checks and the concurrent digests of parallel block mode) and
+ * FragmentMapper.map() are recorded. Digests calculated in the same pass as the splitting or merging are part of the
+ * fragmentation and reconstruction latencies rather than the digest figures.
+ *
+ * Metrics are disabled unless the METRICS_PROPERTY system property is "true". The instrumented code then checks a
+ * single volatile field and skips everything else, not even reading the clock, so the overhead is negligible. Once
+ * enabled, every event is recorded with a few contention-free increments and without allocating anything, and handed
+ * to the listeners (if any).
+ * The figures can be read directly, through JMX (see registerMBean()) or by a listener feeding some other monitoring
+ * system.
+ */
+public class Metrics implements MetricsMXBean {
+    /**
+     * Name the metrics are registered with in JMX.
+     */
+    public static final String OBJECT_NAME = "net.comploud.code.bitfrag:type=Metrics";
+
+    /**
+     * System property used to enable the metrics from the start.
+     */
+    public static final String METRICS_PROPERTY = "net.comploud.code.bitfrag.metrics";
+
+    /**
+     * Listener for the individual events.
+     * Listeners are called by the thread doing the work, so they should be quick.
+     */
+    public interface Listener {
+        /**
+         * Called when data has been fragmented.
+         * @param bytes Size of the original data
+         * @param nanos Time taken
+         */
+        public void encoded(long bytes, long nanos);
+
+        /**
+         * Called when a reconstruction has finished.
+         * @param bytes Size of the restored data, 0 if failed
+         * @param nanos Time taken
+         * @param report Reconstruction report, or null if failed
+         */
+        public void decoded(long bytes, long nanos, ReconstructionReport report);
+
+        /**
+         * Called when a standalone digest pass has finished.
+         * @param bytes Amount of data digested
+         * @param nanos Time taken
+         */
+        public void digested(long bytes, long nanos);
+
+        /**
+         * Called when a fragment has been read (parsed).
+         * @param bytes Size of the payload
+         * @param nanos Time taken
+         */
+        public void fragmentRead(long bytes, long nanos);
+
+        /**
+         * Called when a fragment has been written.
+         * @param bytes Size of the payload
+         * @param nanos Time taken
+         */
+        public void fragmentWritten(long bytes, long nanos);
+
+        /**
+         * Called when a fragment has been mapped by a FragmentMapper.
+         * @param clusters Amount of clusters known by the mapper afterwards
+         * @param nanos Time taken
+         */
+        public void fragmentMapped(int clusters, long nanos);
+    }
+
+    /**
+     * Listener with empty implementations of all methods, for extending.
+     */
+    public static class Adapter implements Listener {
+        @Override
+        public void encoded(long bytes, long nanos) {
+        }
+
+        @Override
+        public void decoded(long bytes, long nanos, ReconstructionReport report) {
+        }
+
+        @Override
+        public void digested(long bytes, long nanos) {
+        }
+
+        @Override
+        public void fragmentRead(long bytes, long nanos) {
+        }
+
+        @Override
+        public void fragmentWritten(long bytes, long nanos) {
+        }
+
+        @Override
+        public void fragmentMapped(int clusters, long nanos) {
+        }
+    }
+
+    /**
+     * The metrics.
+     */
+    private static final Metrics instance = new Metrics();
+
+    /**
+     * The metrics if enabled, otherwise null.
+     * This is all the instrumented code looks at when disabled.
+     */
+    private static volatile Metrics active = Boolean.getBoolean(METRICS_PROPERTY) ? instance : null;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final LongAdder clustersEncoded = new LongAdder();
+    private final LongAdder bytesEncoded = new LongAdder();
+    private final LatencyHistogram encodeLatency = new LatencyHistogram();
+
+    private final LongAdder clustersDecoded = new LongAdder();
+    private final LongAdder bytesDecoded = new LongAdder();
+    private final LongAdder decodeFailures = new LongAdder();
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final LongAdder recoveredFragments = new LongAdder();
+    private final LongAdder corruptedFragments = new LongAdder();
+    private final LongAdder tamperedFragments = new LongAdder();
+    private final LongAdder dissentingFragments = new LongAdder();
+
+    private final LongAdder bytesDigested = new LongAdder();
+    private final LatencyHistogram digestLatency = new LatencyHistogram();
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    private final LatencyHistogram mapLatency = new LatencyHistogram();
+    private final AtomicInteger mapperClusters = new AtomicInteger();
+
+
+    private Metrics() {
+    }
+
+    /**
+     * Get the metrics, whether enabled or not.
+     * @return The metrics
+     */
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get the metrics if enabled.
+     * This is how the instrumented code checks whether to record anything.
+     * @return The metrics, or null if disabled
+     */
+    public static Metrics getActive() {
+        return active;
+    }
+
+    /**
+     * Checks if the metrics are enabled.
+     * @return true if enabled
+     */
+    @Override
+    public boolean isEnabled() {
+        return active != null;
+    }
+
+    /**
+     * Enable or disable the metrics.
+     * The figures are kept while disabled.
+     * @param enabled true to enable, false to disable
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        active = enabled ? this : null;
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, under OBJECT_NAME.
+     * Registering more than once is harmless.
+     * @throws JMException If the registration fails
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch(InstanceAlreadyExistsException e) {
+            // Already registered
+        }
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server.
+     * @throws JMException If the unregistration fails
+     */
+    public void unregisterMBean() throws JMException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch(InstanceNotFoundException e) {
+            // Not registered
+        }
+    }
+
+    /**
+     * Register a listener for the individual events.
+     * @param listener Listener to add
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener.
+     * @param listener Listener to remove
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+
+    /**
+     * Record a fragmentation.
+     * @param bytes Size of the original data
+     * @param nanos Time taken
+     */
+    public void encoded(long bytes, long nanos) {
+        clustersEncoded.increment();
+        bytesEncoded.add(bytes);
+        encodeLatency.record(nanos);
+        for(Listener listener : listeners) {
+            listener.encoded(bytes, nanos);
+        }
+    }
+
+    /**
+     * Record a reconstruction.
+     * @param bytes Size of the restored data (ignored if failed)
+     * @param nanos Time taken
+     * @param report Reconstruction report, or null if failed
+     */
+    public void decoded(long bytes, long nanos, ReconstructionReport report) {
+        if(report == null) {
+            bytes = 0;
+            decodeFailures.increment();
+        } else {
+            clustersDecoded.increment();
+            bytesDecoded.add(bytes);
+            recoveredFragments.add(report.getMissing());
+            corruptedFragments.add(report.getCorrupted().size());
+            tamperedFragments.add(report.getTampered().size());
+            dissentingFragments.add(report.getDissenting().size());
+        }
+        decodeLatency.record(nanos);
+        for(Listener listener : listeners) {
+            listener.decoded(bytes, nanos, report);
+        }
+    }
+
+    /**
+     * Record a standalone digest pass.
+     * @param bytes Amount of data digested
+     * @param nanos Time taken
+     */
+    public void digested(long bytes, long nanos) {
+        bytesDigested.add(bytes);
+        digestLatency.record(nanos);
+        for(Listener listener : listeners) {
+            listener.digested(bytes, nanos);
+        }
+    }
+
+    /**
+     * Record a fragment read.
+     * @param bytes Size of the payload
+     * @param nanos Time taken
+     */
+    public void fragmentRead(long bytes, long nanos) {
+        bytesRead.add(bytes);
+        readLatency.record(nanos);
+        for(Listener listener : listeners) {
+            listener.fragmentRead(bytes, nanos);
+        }
+    }
+
+    /**
+     * Record a fragment write.
+     * @param bytes Size of the payload
+     * @param nanos Time taken
+     */
+    public void fragmentWritten(long bytes, long nanos) {
+        bytesWritten.add(bytes);
+        writeLatency.record(nanos);
+        for(Listener listener : listeners) {
+            listener.fragmentWritten(bytes, nanos);
+        }
+    }
+
+    /**
+     * Record a fragment mapped by a FragmentMapper.
+     * @param clusters Amount of clusters known by the mapper afterwards
+     * @param change Change of that amount since the mapper last reported it
+     * @param nanos Time taken
+     */
+    public void fragmentMapped(int clusters, int change, long nanos) {
+        mapperClusters.addAndGet(change);
+        mapLatency.record(nanos);
+        for(Listener listener : listeners) {
+            listener.fragmentMapped(clusters, nanos);
+        }
+    }
+
+    /**
+     * Record a change of the amount of clusters known by a FragmentMapper other than by mapping, e.g. by removal.
+     * @param change Change of the amount since the mapper last reported it
+     */
+    public void mapperClustersChanged(int change) {
+        mapperClusters.addAndGet(change);
+    }
+
+
+    /**
+     * Get the latencies of fragmentation.
+     * @return Histogram
+     */
+    public LatencyHistogram getEncodeLatency() {
+        return encodeLatency;
+    }
+
+    /**
+     * Get the latencies of reconstruction, failed ones included.
+     * @return Histogram
+     */
+    public LatencyHistogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    /**
+     * Get the latencies of standalone digest passes.
+     * @return Histogram
+     */
+    public LatencyHistogram getDigestLatency() {
+        return digestLatency;
+    }
+
+    /**
+     * Get the latencies of fragment reads.
+     * @return Histogram
+     */
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    /**
+     * Get the latencies of fragment writes.
+     * @return Histogram
+     */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * Get the latencies of FragmentMapper.map().
+     * @return Histogram
+     */
+    public LatencyHistogram getMapLatency() {
+        return mapLatency;
+    }
+
+    @Override
+    public long getClustersEncoded() {
+        return clustersEncoded.sum();
+    }
+
+    @Override
+    public long getBytesEncoded() {
+        return bytesEncoded.sum();
+    }
+
+    @Override
+    public double getEncodeThroughput() {
+        return throughput(bytesEncoded.sum(), encodeLatency.getTotalNanos());
+    }
+
+    @Override
+    public long getEncodeLatencyMean() {
+        return encodeLatency.getMeanNanos() / 1000;
+    }
+
+    @Override
+    public long getEncodeLatency50th() {
+        return encodeLatency.getPercentileNanos(50) / 1000;
+    }
+
+    @Override
+    public long getEncodeLatency99th() {
+        return encodeLatency.getPercentileNanos(99) / 1000;
+    }
+
+    @Override
+    public long getClustersDecoded() {
+        return clustersDecoded.sum();
+    }
+
+    @Override
+    public long getBytesDecoded() {
+        return bytesDecoded.sum();
+    }
+
+    @Override
+    public long getDecodeFailures() {
+        return decodeFailures.sum();
+    }
+
+    @Override
+    public double getDecodeThroughput() {
+        return throughput(bytesDecoded.sum(), decodeLatency.getTotalNanos());
+    }
+
+    @Override
+    public long getDecodeLatencyMean() {
+        return decodeLatency.getMeanNanos() / 1000;
+    }
+
+    @Override
+    public long getDecodeLatency50th() {
+        return decodeLatency.getPercentileNanos(50) / 1000;
+    }
+
+    @Override
+    public long getDecodeLatency99th() {
+        return decodeLatency.getPercentileNanos(99) / 1000;
+    }
+
+    @Override
+    public long getRecoveredFragments() {
+        return recoveredFragments.sum();
+    }
+
+    @Override
+    public long getCorruptedFragments() {
+        return corruptedFragments.sum();
+    }
+
+    @Override
+    public long getTamperedFragments() {
+        return tamperedFragments.sum();
+    }
+
+    @Override
+    public long getDissentingFragments() {
+        return dissentingFragments.sum();
+    }
+
+    @Override
+    public long getBytesDigested() {
+        return bytesDigested.sum();
+    }
+
+    @Override
+    public double getDigestThroughput() {
+        return throughput(bytesDigested.sum(), digestLatency.getTotalNanos());
+    }
+
+    @Override
+    public long getFragmentsRead() {
+        return readLatency.getCount();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getReadLatency99th() {
+        return readLatency.getPercentileNanos(99) / 1000;
+    }
+
+    @Override
+    public long getFragmentsWritten() {
+        return writeLatency.getCount();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getWriteLatency99th() {
+        return writeLatency.getPercentileNanos(99) / 1000;
+    }
+
+    @Override
+    public long getFragmentsMapped() {
+        return mapLatency.getCount();
+    }
+
+    @Override
+    public long getMapLatency99th() {
+        return mapLatency.getPercentileNanos(99) / 1000;
+    }
+
+    /**
+     * Get the amount of clusters known by all FragmentMappers together, as far as they have reported it.
+     * @return Cluster count
+     */
+    @Override
+    public int getMapperClusters() {
+        return mapperClusters.get();
+    }
+
+    /**
+     * Reset all figures, except the amount of clusters known by the mappers, which isn't a tally.
+     * Events recorded concurrently may or may not be discarded.
+     */
+    @Override
+    public void reset() {
+        for(LongAdder adder : new LongAdder[] { clustersEncoded, bytesEncoded, clustersDecoded, bytesDecoded, decodeFailures,
+                recoveredFragments, corruptedFragments, tamperedFragments, dissentingFragments, bytesDigested, bytesRead, bytesWritten }) {
+            adder.reset();
+        }
+        for(LatencyHistogram histogram : new LatencyHistogram[] { encodeLatency, decodeLatency, digestLatency, readLatency, writeLatency, mapLatency }) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Print a human readable summary of the figures.
+     * @param out Stream to print to
+     */
+    public void printSummary(PrintStream out) {
+        out.println("Metrics:");
+        out.printf("  Encoded: %d clusters, %d bytes, %.1f MB/s, latency mean/50th/99th %d/%d/%d us%n", getClustersEncoded(),
+                getBytesEncoded(), getEncodeThroughput(), getEncodeLatencyMean(), getEncodeLatency50th(), getEncodeLatency99th());
+        out.printf("  Decoded: %d clusters (%d failed), %d bytes, %.1f MB/s, latency mean/50th/99th %d/%d/%d us%n", getClustersDecoded(),
+                getDecodeFailures(), getBytesDecoded(), getDecodeThroughput(), getDecodeLatencyMean(), getDecodeLatency50th(), getDecodeLatency99th());
+        out.printf("  Fragments recovered: %d, corrupted: %d, tampered: %d, dissenting: %d%n", getRecoveredFragments(),
+                getCorruptedFragments(), getTamperedFragments(), getDissentingFragments());
+        out.printf("  Digested: %d bytes, %.1f MB/s%n", getBytesDigested(), getDigestThroughput());
+        out.printf("  Fragments read: %d (%d bytes), written: %d (%d bytes), mapped: %d (%d clusters)%n", getFragmentsRead(),
+                getBytesRead(), getFragmentsWritten(), getBytesWritten(), getFragmentsMapped(), getMapperClusters());
+    }
+
+    /**
+     * Calculate a throughput in MB/s.
+     */
+    private static double throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 1000.0 / nanos;
+    }
+}
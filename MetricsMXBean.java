@@ -0,0 +1,46 @@
+package net.comploud.code.bitfrag;
+
+/**
+ * Management interface of the metrics, as exposed through JMX (see Metrics.registerMBean()).
+ * Latencies are in microseconds and throughputs in MB/s (10^6 bytes per second of time spent in the operation).
+ */
+public interface MetricsMXBean {
+    public boolean isEnabled();
+    public void setEnabled(boolean enabled);
+
+    public long getClustersEncoded();
+    public long getBytesEncoded();
+    public double getEncodeThroughput();
+    public long getEncodeLatencyMean();
+    public long getEncodeLatency50th();
+    public long getEncodeLatency99th();
+
+    public long getClustersDecoded();
+    public long getBytesDecoded();
+    public long getDecodeFailures();
+    public double getDecodeThroughput();
+    public long getDecodeLatencyMean();
+    public long getDecodeLatency50th();
+    public long getDecodeLatency99th();
+
+    public long getRecoveredFragments();
+    public long getCorruptedFragments();
+    public long getTamperedFragments();
+    public long getDissentingFragments();
+
+    public long getBytesDigested();
+    public double getDigestThroughput();
+
+    public long getFragmentsRead();
+    public long getBytesRead();
+    public long getReadLatency99th();
+    public long getFragmentsWritten();
+    public long getBytesWritten();
+    public long getWriteLatency99th();
+
+    public long getFragmentsMapped();
+    public long getMapLatency99th();
+    public int getMapperClusters();
+
+    public void reset();
+}
@@ -0,0 +1,427 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Single parity XOR code (RAID-5 style) with k data pieces and one parity piece.
+ * The original data is split into k contiguous data pieces of equal size (the last one padded with zeroes), and the
+ * parity piece is the XOR of all of them. Any k of the k + 1 pieces are sufficient for reconstruction.
+ * Tolerance: 1 fragment lost/corrupted, at a storage overhead of 1/k (compared to the 1/2 of XORAlgorithm).
+ * Unlike XORAlgorithm the data isn't interleaved byte by byte, so the data pieces are plain slices of the original data
+ * and both the parity and the recovery of a lost piece are whole blocks XORed together by the kernel, a word at a time.
+ * The fragments use the erasure code fragment format (see ErasureFragment) with XOR as algorithm.
+ */
+public class ParityXORAlgorithm implements Algorithm {
+    /**
+     * Smallest supported amount of data pieces (k).
+     */
+    public static final int MIN_DATA_PIECES = 2;
+
+    /**
+     * Largest supported amount of data pieces (k).
+     */
+    public static final int MAX_DATA_PIECES = 32;
+
+    /**
+     * Size (in bytes) of the piece chunks processed at a time.
+     * Keeps the chunk of the parity being XORed into within the CPU caches.
+     */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Size (in bytes) of the piece stripes processed as a unit when running in parallel.
+     */
+    public static final int STRIPE_SIZE = 4 * CHUNK_SIZE;
+
+    /**
+     * Cluster upon which methods will operate.
+     */
+    protected Cluster<ErasureFragment> cluster;
+
+    /**
+     * Amount of data pieces (k) to produce when fragmenting.
+     */
+    private final int dataPieces;
+
+    /**
+     * Kernel performing the actual XOR operations.
+     */
+    protected XORKernel kernel = XORKernel.getDefault();
+
+    /**
+     * Pool for parallel processing, or null to stay single-threaded.
+     */
+    protected ForkJoinPool pool = null;
+
+    /**
+     * Data size (in bytes) below which processing stays single-threaded even if a pool is set.
+     */
+    protected int parallelThreshold = Stripes.DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Digest used for the cluster and fragment IDs of new clusters.
+     */
+    protected DigestSpec digest = DigestSpec.getDefault();
+
+
+    /**
+     * Constructor for reconstruction.
+     * The amount of data pieces is taken from the fragment headers of the cluster.
+     * @param cluster The cluster to operate upon
+     */
+    public ParityXORAlgorithm(Cluster<ErasureFragment> cluster) {
+        this.cluster = cluster;
+        this.dataPieces = 0;
+    }
+
+    /**
+     * Constructor for fragmentation (and reconstruction).
+     * @param cluster The cluster to operate upon
+     * @param dataPieces Amount of data pieces (k), from MIN_DATA_PIECES to MAX_DATA_PIECES
+     * @throws IllegalArgumentException If the amount of data pieces is out of range
+     */
+    public ParityXORAlgorithm(Cluster<ErasureFragment> cluster, int dataPieces) {
+        if(dataPieces < MIN_DATA_PIECES || dataPieces > MAX_DATA_PIECES) {
+            throw new IllegalArgumentException("Unsupported amount of XOR data pieces: " + dataPieces);
+        }
+        this.cluster = cluster;
+        this.dataPieces = dataPieces;
+    }
+
+
+    /**
+     * Select the kernel performing the actual XOR operations.
+     * All kernels produce identical results, they only differ in speed.
+     * @param kernel Kernel to use
+     */
+    public void setKernel(XORKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    /**
+     * Enable parallel processing.
+     * Data at least as large as the parallel threshold is processed in stripes on the pool. The parallelism is that
+     * of the pool, e.g. ForkJoinPool.commonPool() or new ForkJoinPool(n).
+     * @param pool Pool to run on, or null to stay single-threaded
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the data size below which processing stays single-threaded even if a pool is set.
+     * @param parallelThreshold Threshold (in bytes)
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Select the digest used for the cluster and fragment IDs of new clusters.
+     * Reconstruction always uses the digest recorded in the fragment headers.
+     * @param digest Digest to use
+     */
+    public void setDigest(DigestSpec digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Perform data fragmentation.
+     * The remaining bytes of the input buffer (from its position to its limit) are fragmented. The buffer itself is
+     * left untouched.
+     * @param input The raw input data to frag
+     * @return A fresh complete cluster of k + 1 fragments
+     * @throws IllegalStateException If this instance wasn't given the amount of data pieces
+     */
+    @Override
+    public Cluster<ErasureFragment> fragment(ByteBuffer input) {
+        Metrics metrics = Metrics.getActive();
+        if(metrics == null) {
+            return fragmentBlock(input);
+        }
+        long start = System.nanoTime();
+        Cluster<ErasureFragment> clust = fragmentBlock(input);
+        metrics.encoded(input.remaining(), System.nanoTime() - start);
+        return clust;
+    }
+
+    private Cluster<ErasureFragment> fragmentBlock(ByteBuffer input) {
+        if(dataPieces == 0) {
+            throw new IllegalStateException("No amount of data pieces given for fragmentation");
+        }
+        final int k = dataPieces;
+
+        ByteBuffer data = input.duplicate();
+        int dataSize = data.remaining();
+
+        // Split the data into k pieces, the last one zero padded, digesting each piece as it's copied
+        int pieceSize = (dataSize + k - 1) / k;
+        final ByteBuffer[] pieces = new ByteBuffer[k + 1];
+        UUID[] pieceIds = new UUID[k + 1];
+        UUIDDigester dataDigester = digest.newDigester();
+        UUIDDigester digester = digest.newDigester();
+        for(int j = 0; j <= k; j++) {
+            byte[] piece = new byte[pieceSize];
+            if(j < k) {
+                int length = Math.min(pieceSize, data.remaining());
+                data.get(piece, 0, length);
+                dataDigester.update(piece, 0, length);
+                digester.update(piece, 0, pieceSize);
+                pieceIds[j] = digester.digest();
+            }
+            pieces[j] = ByteBuffer.wrap(piece);
+        }
+        Cluster<ErasureFragment> clust = new Cluster<ErasureFragment>(dataDigester.digest());
+
+        // Calculate the parity piece, chunk by chunk: the first data piece XORed with all of the others
+        final XORKernel xor = kernel;
+        Stripes.process(dataSize >= parallelThreshold ? pool : null, pieceSize, STRIPE_SIZE, new Stripes.Operation() {
+            @Override
+            public void process(int stripeOffset, int stripeLength) {
+                for(int offset = stripeOffset; offset < stripeOffset + stripeLength; offset += CHUNK_SIZE) {
+                    int length = Math.min(CHUNK_SIZE, stripeOffset + stripeLength - offset);
+                    System.arraycopy(pieces[0].array(), offset, pieces[k].array(), offset, length);
+                    for(int j = 1; j < k; j++) {
+                        xor.xor(at(pieces[j], offset), at(pieces[k], offset), length);
+                    }
+                }
+            }
+        });
+        digester.update(pieces[k].array(), 0, pieceSize);
+        pieceIds[k] = digester.digest();
+
+        for(int piece = 0; piece <= k; piece++) {
+            clust.add(new ErasureFragment(ErasureFragment.SUPPORTED_FRAGMENT_VERSION, AlgorithmSpec.XOR.headerValue(),
+                    digest, clust.getId(), pieceIds[piece], dataSize, k, 1, piece, pieces[piece]));
+        }
+        return clust;
+    }
+
+    /**
+     * Attempt a data reconstruction operation by the specified cluster.
+     * If all data pieces are present they are simply concatenated. Otherwise the missing data piece is recovered by
+     * XORing the parity piece with the other data pieces. The data is written directly to the output buffer, which is
+     * flipped afterwards. If the cluster digest check fails, the content of the output buffer is undefined.
+     * @param output Destination buffer to write the reconstructed data, if possible
+     * @return Reconstruction report with further details
+     * @throws InsufficientFragmentsException If fewer than k usable fragments are provided by the cluster
+     * @throws ReconstructionException if the cluster digest (UUID) check fails
+     * @throws IllegalStateException If the fragments aren't of a k+1 XOR cluster
+     * @throws BufferOverflowException If the output buffer has less room than the data size (checked up front)
+     * @throws ReadOnlyBufferException If the output buffer is read-only (checked up front)
+     */
+    @Override
+    public ReconstructionReport reconstruct(ByteBuffer output) throws InsufficientFragmentsException, ReconstructionException {
+        Metrics metrics = Metrics.getActive();
+        if(metrics == null) {
+            return reconstructBlock(output);
+        }
+        long start = System.nanoTime();
+        int position = output.position();
+        ReconstructionReport report = null;
+        try {
+            report = reconstructBlock(output);
+            return report;
+        } finally {
+            metrics.decoded(output.limit() - position, System.nanoTime() - start, report);
+        }
+    }
+
+    private ReconstructionReport reconstructBlock(ByteBuffer output) throws InsufficientFragmentsException, ReconstructionException {
+        // Concur upon the headers, then find/sort the different pieces among those consenting
+        int k;
+        long dataSize;
+        DigestSpec spec;
+        int pieceSize;
+        ByteBuffer[] pieces;
+        int present = 0;
+        Set<Fragment> dissenting;
+        HeaderConsensus consensus = concur();
+        try {
+            if(consensus.getAlgorithm() != AlgorithmSpec.XOR.headerValue() || consensus.getParityPieces() != 1) {
+                throw new IllegalStateException("Not a k+1 XOR cluster: algorithm " + consensus.getAlgorithm() +
+                        ", " + consensus.getParityPieces() + " parity pieces");
+            }
+            k = consensus.getDataPieces();
+            dataSize = consensus.getDataSize();
+            spec = consensus.getDigest();
+            if(dataSize > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Cluster data size exceeds block mode limits: " + dataSize);
+            }
+            pieceSize = (int)((dataSize + k - 1) / k);
+            pieces = new ByteBuffer[k + 1];
+            for(int i = 0; i < consensus.size(); i++) {
+                ErasureFragment f = (ErasureFragment)consensus.getFragment(i);
+                int piece = f.getPiece();
+                if(consensus.consents(i) && piece <= k && pieces[piece] == null &&
+                        f.getPayload().remaining() >= pieceSize) {
+                    pieces[piece] = f.getPayload();
+                    present++;
+                }
+            }
+            dissenting = consensus.getDissenters();
+        } finally {
+            consensus.reset();
+        }
+        if(output.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        if(output.remaining() < dataSize) {
+            throw new BufferOverflowException();
+        }
+        if(present < k) {
+            throw new InsufficientFragmentsException(k - present);
+        }
+
+        // Concatenate the present data pieces, leaving a gap for the missing one (if any)
+        int start = output.position();
+        int missing = -1;
+        for(int j = 0; j < k; j++) {
+            int length = dataLength(j, pieceSize, dataSize);
+            if(pieces[j] == null) {
+                missing = j;
+            } else if(length > 0) {
+                ByteBuffer piece = pieces[j].duplicate();
+                piece.limit(piece.position() + length);
+                output.position(start + j * pieceSize);
+                output.put(piece);
+            }
+        }
+        if(missing >= 0 && dataLength(missing, pieceSize, dataSize) > 0) {
+            recover(pieces, missing, pieceSize, dataSize, output, start, dataSize >= parallelThreshold ? pool : null);
+        }
+        output.position(start + (int)dataSize);
+
+        // Calculate (and verify) the supplied digest with the reconstructed data
+        ByteBuffer reconstructed = output.duplicate();
+        reconstructed.flip();
+        reconstructed.position(start);
+        UUIDDigester digester = UUIDDigester.forThread(spec);
+        digester.update(reconstructed);
+        if(!digester.digestEquals(cluster.getId())) {
+            throw new ReconstructionException(cluster.getId(), digester.lastDigest());
+        }
+        output.flip();
+        return new ReconstructionReport(k + 1 - present, new CopyOnWriteArraySet<Fragment>(), new CopyOnWriteArraySet<Fragment>(), dissenting);
+    }
+
+    /**
+     * Recover a missing data piece into its place in the output: the parity XORed with all other data pieces.
+     * @param pieces Payloads indexed by piece, only the missing data piece being null
+     * @param missing The missing data piece
+     * @param pieceSize Size of each piece
+     * @param dataSize Size of the original data
+     * @param output Destination buffer (its position is left untouched)
+     * @param start Position of the original data in the destination buffer
+     * @param pool Pool to run on, or null to stay single-threaded
+     */
+    private void recover(final ByteBuffer[] pieces, final int missing, int pieceSize, long dataSize, ByteBuffer output, int start, ForkJoinPool pool) {
+        final int k = pieces.length - 1;
+        final ByteBuffer dst = output.duplicate();
+        dst.position(start + missing * pieceSize);
+        final XORKernel xor = kernel;
+        Stripes.process(pool, dataLength(missing, pieceSize, dataSize), STRIPE_SIZE, new Stripes.Operation() {
+            @Override
+            public void process(int stripeOffset, int stripeLength) {
+                for(int offset = stripeOffset; offset < stripeOffset + stripeLength; offset += CHUNK_SIZE) {
+                    int length = Math.min(CHUNK_SIZE, stripeOffset + stripeLength - offset);
+                    ByteBuffer parity = at(pieces[k], offset);
+                    parity.limit(parity.position() + length);
+                    at(dst, offset).put(parity);
+                    for(int j = 0; j < k; j++) {
+                        if(j != missing) {
+                            xor.xor(at(pieces[j], offset), at(dst, offset), length);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Amount of original data (as opposed to padding) in a data piece.
+     */
+    private static int dataLength(int piece, int pieceSize, long dataSize) {
+        return (int)Math.max(0, Math.min(pieceSize, dataSize - (long)piece * pieceSize));
+    }
+
+    /**
+     * Get a view of a buffer, skipping some bytes from its current position.
+     */
+    private static ByteBuffer at(ByteBuffer buffer, int skip) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(buffer.position() + skip);
+        return view;
+    }
+
+    /**
+     * Concur upon the headers of the cluster, using the consensus engine of the calling thread.
+     * The engine must be reset when done with.
+     * @return Concurred engine
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    private HeaderConsensus concur() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = HeaderConsensus.forThread();
+        try {
+            for(ErasureFragment f : cluster) {
+                consensus.add(f);
+            }
+            consensus.concur();
+        } catch(InsufficientFragmentsException e) {
+            consensus.reset();
+            throw e;
+        }
+        return consensus;
+    }
+
+    /**
+     * Concur upon the data size.
+     * @see net.comploud.code.bitfrag.Algorithm
+     * @see HeaderConsensus
+     * @return Data size (in bytes)
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    @Override
+    public long concurDataSize() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = concur();
+        try {
+            return consensus.getDataSize();
+        } finally {
+            consensus.reset();
+        }
+    }
+
+    /**
+     * Concur upon the amount of data pieces (k).
+     * @return Data pieces
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    public int concurDataPieces() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = concur();
+        try {
+            return consensus.getDataPieces();
+        } finally {
+            consensus.reset();
+        }
+    }
+
+    /**
+     * Concur upon the digest the cluster and fragment IDs were calculated with.
+     * @return Digest
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    public DigestSpec concurDigest() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = concur();
+        try {
+            return consensus.getDigest();
+        } finally {
+            consensus.reset();
+        }
+    }
+}
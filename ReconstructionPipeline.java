@@ -0,0 +1,340 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency optimized reconstruction, attached to a FragmentMapper.
+ * Decoding of a cluster starts on the executor the moment the mapper has received sufficient distinct pieces (for
+ * XOR: any of x1+x2, x1+p or x2+p), rather than after all fragments have been collected. The restored data is
+ * delivered through a CompletableFuture per cluster.
+ * Fetches of the remaining fragments can be registered with addFetch(). They are cancelled as soon as the data has
+ * been restored and verified. Until then they're left running, since a fragment may turn out to be corrupted: if the
+ * cluster digest check fails, fragments failing their own digest check are left out and decoding is retried, and
+ * otherwise decoding is retried whenever another fragment arrives (whether mapped through the pipeline or directly
+ * through the mapper). Once the data has been restored the job is dropped, so the pipeline holds nothing of the
+ * cluster any more. Fragments arriving after the data of one of the last RECENTLY_COMPLETED clusters has been
+ * restored are dropped, rather than bringing the cluster back into the mapper (unless clusters are kept, see
+ * setRemoveOnCompletion()).
+ * Fragments must carry their payloads (header-only fragments can't be decoded in memory).
+ */
+public class ReconstructionPipeline {
+    /**
+     * Mapper delivering the fragments.
+     */
+    private final FragmentMapper mapper;
+
+    /**
+     * Executor running the decoding.
+     */
+    private final Executor executor;
+
+    /**
+     * Whether to remove clusters from the mapper once their data has been restored.
+     */
+    private volatile boolean removeOnCompletion = true;
+
+    /**
+     * Amount of restored clusters remembered, to tell late fragments apart from new clusters.
+     */
+    public static final int RECENTLY_COMPLETED = 1024;
+
+    /**
+     * Jobs by cluster ID, until their results are complete.
+     */
+    private final ConcurrentMap<UUID, Job> jobs = new ConcurrentHashMap<UUID, Job>();
+
+    /**
+     * IDs of the clusters restored most recently, oldest first in the queue.
+     */
+    private final Set<UUID> completed = ConcurrentHashMap.newKeySet();
+    private final Queue<UUID> completionOrder = new ConcurrentLinkedQueue<UUID>();
+    private final AtomicInteger completions = new AtomicInteger();
+
+
+    /**
+     * Attach a pipeline to a mapper, decoding on the common pool.
+     * @param mapper Mapper to attach to
+     */
+    public ReconstructionPipeline(FragmentMapper mapper) {
+        this(mapper, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Attach a pipeline to a mapper.
+     * @param mapper Mapper to attach to
+     * @param executor Executor to run the decoding on
+     */
+    public ReconstructionPipeline(FragmentMapper mapper, Executor executor) {
+        this.mapper = mapper;
+        this.executor = executor;
+        mapper.addListener(new FragmentMapper.Listener() {
+            @Override
+            public void clusterReconstructable(Cluster<Fragment> cluster) {
+                if(completed.contains(cluster.getId())) {
+                    return;     // Restored already, only late fragments brought it back
+                }
+                Job job = job(cluster.getId());
+                job.cluster = cluster;
+                job.schedule();
+            }
+        });
+        mapper.addFragmentListener(new FragmentMapper.FragmentListener() {
+            @Override
+            public void fragmentAdded(Cluster<Fragment> cluster, Fragment frag) {
+                Job job = jobs.get(cluster.getId());
+                if(job == null ? completed.contains(cluster.getId()) : job.result.isDone()) {
+                    if(removeOnCompletion) {
+                        ReconstructionPipeline.this.mapper.remove(cluster.getId());     // A late fragment
+                    }
+                } else if(job != null && job.cluster != null) {
+                    job.schedule();     // Retry, it may stand in for a corrupted fragment
+                }
+            }
+        });
+        mapper.addEvictionListener(new FragmentMapper.EvictionListener() {
+            @Override
+            public void clusterEvicted(Cluster<Fragment> cluster, FragmentMapper.EvictionCause cause) {
+                Job job = jobs.remove(cluster.getId());
+                if(job != null) {
+                    job.result.cancel(false);
+                    job.cancelFetches();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Choose whether clusters are removed from the mapper once their data has been restored (the default).
+     * @param removeOnCompletion true to remove, false to keep
+     */
+    public void setRemoveOnCompletion(boolean removeOnCompletion) {
+        this.removeOnCompletion = removeOnCompletion;
+    }
+
+    /**
+     * Map a fragment through the pipeline.
+     * This is the same as mapping it directly with the mapper.
+     * @param frag Fragment to map
+     * @return true if a new cluster was discovered, false if the cluster was already known
+     */
+    public boolean map(Fragment frag) {
+        return mapper.map(frag);
+    }
+
+    /**
+     * Get the future of the restored data of a cluster.
+     * The cluster doesn't have to be known yet. The future completes with a buffer holding the verified data (ready
+     * to be read), or is cancelled if the cluster is evicted from the mapper first.
+     * The pipeline forgets a job as soon as its future completes, leaving the data to whoever holds the future, so
+     * ask for it before the data can be restored. Asking again afterwards gets a new future that won't complete
+     * (unless all fragments are mapped again), so call remove() if it isn't wanted after all.
+     * @param clusterId Cluster ID
+     * @return Future of the data
+     */
+    public CompletableFuture<ByteBuffer> getResult(UUID clusterId) {
+        return job(clusterId).result;
+    }
+
+    /**
+     * Register an outstanding fetch of a fragment, to be cancelled once the cluster has been restored.
+     * If it already has been restored (recently, see RECENTLY_COMPLETED), the fetch is cancelled right away.
+     * @param clusterId Cluster ID
+     * @param fetch The fetch
+     */
+    public void addFetch(UUID clusterId, Future<?> fetch) {
+        Job job = job(clusterId);
+        job.fetches.add(fetch);
+        if(job.result.isDone()) {
+            job.cancelFetches();
+        } else if(completed.contains(clusterId)) {
+            // The job just created stands in for one that has completed meanwhile
+            job.cancelFetches();
+            jobs.remove(clusterId, job);
+        }
+    }
+
+    /**
+     * Forget a cluster and its result, cancelling any outstanding fetches.
+     * @param clusterId Cluster ID
+     */
+    public void remove(UUID clusterId) {
+        Job job = jobs.remove(clusterId);
+        if(job != null) {
+            job.result.cancel(false);
+            job.cancelFetches();
+        }
+    }
+
+    /**
+     * Get (or create) the job of a cluster.
+     */
+    private Job job(UUID clusterId) {
+        Job job = jobs.get(clusterId);
+        if(job == null) {
+            Job newJob = new Job(clusterId);
+            job = jobs.putIfAbsent(clusterId, newJob);
+            if(job == null) {
+                job = newJob;
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Restore the data of a cluster.
+     * @param clust Cluster to restore
+     * @return The verified data, ready to be read
+     */
+    private static ByteBuffer decode(Cluster<Fragment> clust) throws InsufficientFragmentsException, ReconstructionException {
+        Algorithm algo;
+        Fragment first = clust.iterator().next();
+        if(first instanceof ErasureFragment) {
+            Cluster<ErasureFragment> erasure = new Cluster<ErasureFragment>(clust.getId());
+            for(Fragment frag : clust) {
+                if(frag instanceof ErasureFragment) {
+                    erasure.add((ErasureFragment)frag);
+                }
+            }
+            if(((ErasureFragment)first).getAlgorithm() == AlgorithmSpec.XOR.headerValue()) {
+                algo = new ParityXORAlgorithm(erasure);
+            } else {
+                algo = new ReedSolomonAlgorithm(erasure);
+            }
+        } else {
+            Cluster<XORFragment> xor = new Cluster<XORFragment>(clust.getId());
+            for(Fragment frag : clust) {
+                if(frag instanceof XORFragment) {
+                    xor.add((XORFragment)frag);
+                }
+            }
+            algo = new XORAlgorithm(xor);
+        }
+        long dataSize = algo.concurDataSize();
+        if(dataSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Cluster data size exceeds block mode limits: " + dataSize);
+        }
+        ByteBuffer output = ByteBuffer.allocate((int)dataSize);
+        algo.reconstruct(output);
+        return output;
+    }
+
+    /**
+     * Decoding job of a single cluster.
+     * At most one attempt runs at a time. Requests for another attempt while one is running are folded into a single
+     * retry once it's done.
+     */
+    private class Job implements Runnable {
+        private final UUID clusterId;
+        private final CompletableFuture<ByteBuffer> result = new CompletableFuture<ByteBuffer>();
+        private final Queue<Future<?>> fetches = new ConcurrentLinkedQueue<Future<?>>();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile boolean again = false;
+        private volatile Cluster<Fragment> cluster = null;
+
+        private Job(UUID clusterId) {
+            this.clusterId = clusterId;
+        }
+
+        private void schedule() {
+            again = true;   // Before trying to start, so that a running attempt is sure to see it once it stops
+            if(running.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                again = false;
+                attempt();
+                running.set(false);
+                // Requests that came in while running are only seen now, after running has been cleared
+            } while(again && !result.isDone() && running.compareAndSet(false, true));
+        }
+
+        private void attempt() {
+            if(result.isDone()) {
+                return;
+            }
+
+            // Work on a snapshot, as more fragments may arrive meanwhile
+            Cluster<Fragment> cluster = this.cluster;
+            Cluster<Fragment> snapshot = new Cluster<Fragment>(clusterId);
+            snapshot.addAll(cluster);
+            ByteBuffer data = null;
+            try {
+                try {
+                    data = decode(snapshot);
+                } catch(ReconstructionException e) {
+                    // Something's corrupted. Leave out whatever fails its own digest check and try once more.
+                    // Fragments found intact are marked as such, so later attempts don't digest them again.
+                    Cluster<Fragment> intact = new Cluster<Fragment>(clusterId);
+                    for(Fragment frag : snapshot) {
+                        if(cluster.isVerified(frag) || frag.integrityCheck()) {
+                            cluster.markVerified(frag);
+                            intact.add(frag);
+                        }
+                    }
+                    if(intact.size() < snapshot.size() && !intact.isEmpty()) {
+                        data = decode(intact);
+                    }
+                }
+            } catch(ReconstructionException e) {
+                // Wait for more fragments
+            } catch(InsufficientFragmentsException e) {
+                // Wait for more fragments
+            } catch(RuntimeException e) {
+                if(result.completeExceptionally(e)) {
+                    complete();
+                }
+                return;
+            }
+
+            if(data != null && result.complete(data)) {
+                complete();
+                if(removeOnCompletion) {
+                    mapper.remove(clusterId);
+                }
+            }
+        }
+
+        /**
+         * Forget this job once its result is complete, remembering the cluster as recently completed.
+         */
+        private void complete() {
+            cancelFetches();
+            cluster = null;
+            if(completed.add(clusterId)) {
+                completionOrder.add(clusterId);
+                if(completions.incrementAndGet() > RECENTLY_COMPLETED) {
+                    UUID oldest = completionOrder.poll();
+                    if(oldest != null) {
+                        completed.remove(oldest);
+                        completions.decrementAndGet();
+                    }
+                }
+            }
+            jobs.remove(clusterId, this);
+        }
+
+        private void cancelFetches() {
+            Future<?> fetch;
+            while((fetch = fetches.poll()) != null) {
+                fetch.cancel(true);
+            }
+        }
+    }
+}
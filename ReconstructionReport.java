@@ -1,5 +1,6 @@
 package net.comploud.code.bitfrag;
 
+import java.util.Collections;
 import java.util.Set;
 
 /**
@@ -27,6 +28,13 @@ public class ReconstructionReport {
      */
     private final Set<Fragment> tampered;
 
+    /**
+     * The dissenting (and thus ignored) fragments during reconstruction.
+     * A dissenting fragment is a fragment whose cluster-level headers (data size, version,
+     * code parameters etc) disagree with the consensus of the cluster (see HeaderConsensus).
+     */
+    private final Set<Fragment> dissenting;
+
 
     /**
      * Create a fresh reconstruction report.
@@ -38,20 +46,32 @@ public class ReconstructionReport {
      * @param tampered Tampered fragments
      */
     public ReconstructionReport(int missing, Set<Fragment> corrupted, Set<Fragment> tampered) {
+        this(missing, corrupted, tampered, Collections.<Fragment>emptySet());
+    }
+
+    /**
+     * Create a fresh reconstruction report, including dissenting fragments.
+     * @param missing Amount of missing fragments
+     * @param corrupted Corrupted fragments
+     * @param tampered Tampered fragments
+     * @param dissenting Dissenting fragments
+     */
+    public ReconstructionReport(int missing, Set<Fragment> corrupted, Set<Fragment> tampered, Set<Fragment> dissenting) {
         this.missing = missing;
         this.corrupted = corrupted;
         this.tampered = tampered;
+        this.dissenting = dissenting;
     }
 
 
     /**
      * Checks if reconstruction succeeded flawlessly.
-     * If there were any complications (missing, corrupted and/or tempered fragments) this method will briefly hint such
+     * If there were any complications (missing, corrupted, tempered and/or dissenting fragments) this method will briefly hint such
      * with a boolean.
      * @returns true if there were no complications at all, or false otherwise
      */
     public boolean flawless() {
-        if(missing == 0 && corrupted.isEmpty() && tampered.isEmpty()) {
+        if(missing == 0 && corrupted.isEmpty() && tampered.isEmpty() && dissenting.isEmpty()) {
             return true;
         } else {
             return false;
@@ -81,4 +101,12 @@ public class ReconstructionReport {
     public Set<Fragment> getTampered() {
         return tampered;
     }
+
+    /**
+     * Returns the set of fragments whose headers disagreed with the consensus and were thus ignored.
+     * @return Dissenting fragments or an empty set if none
+     */
+    public Set<Fragment> getDissenting() {
+        return dissenting;
+    }
 }
@@ -0,0 +1,513 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reed-Solomon erasure code with k data pieces and m parity pieces.
+ * The original data is split into k contiguous data pieces of equal size (the last one padded with zeroes) and m
+ * parity pieces are calculated over GF(256). Any k of the k + m pieces are sufficient for reconstruction.
+ * Tolerance: m fragments lost/corrupted, at a storage overhead of m/k.
+ * The code is systematic (the data pieces are plain slices of the original data) and uses a Cauchy matrix for the
+ * parity, which guarantees that every set of k pieces can be decoded.
+ */
+public class ReedSolomonAlgorithm implements Algorithm {
+    /**
+     * Size (in bytes) of the piece chunks processed at a time.
+     * Keeps the working set of the inner loops within the CPU caches.
+     */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Size (in bytes) of the piece stripes processed as a unit when running in parallel.
+     */
+    public static final int STRIPE_SIZE = 4 * CHUNK_SIZE;
+
+    /**
+     * Cluster upon which methods will operate.
+     */
+    protected Cluster<ErasureFragment> cluster;
+
+    /**
+     * Amount of data pieces (k) to produce when fragmenting.
+     */
+    private final int dataPieces;
+
+    /**
+     * Amount of parity pieces (m) to produce when fragmenting.
+     */
+    private final int parityPieces;
+
+    /**
+     * Pool for parallel processing, or null to stay single-threaded.
+     */
+    protected ForkJoinPool pool = null;
+
+    /**
+     * Data size (in bytes) below which processing stays single-threaded even if a pool is set.
+     */
+    protected int parallelThreshold = Stripes.DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Digest used for the cluster and fragment IDs of new clusters.
+     */
+    protected DigestSpec digest = DigestSpec.getDefault();
+
+    /**
+     * Codecs by (k, m), shared between all instances.
+     */
+    private static final ConcurrentHashMap<Integer, Codec> codecs = new ConcurrentHashMap<Integer, Codec>();
+
+
+    /**
+     * Constructor for reconstruction.
+     * The code parameters are taken from the fragment headers of the cluster.
+     * @param cluster The cluster to operate upon
+     */
+    public ReedSolomonAlgorithm(Cluster<ErasureFragment> cluster) {
+        this.cluster = cluster;
+        this.dataPieces = 0;
+        this.parityPieces = 0;
+    }
+
+    /**
+     * Constructor for fragmentation (and reconstruction).
+     * @param cluster The cluster to operate upon
+     * @param dataPieces Amount of data pieces (k)
+     * @param parityPieces Amount of parity pieces (m)
+     * @throws IllegalArgumentException If the parameters are out of range (k + m may not exceed 256)
+     */
+    public ReedSolomonAlgorithm(Cluster<ErasureFragment> cluster, int dataPieces, int parityPieces) {
+        if(dataPieces < 1 || dataPieces > 255 || parityPieces < 1 || parityPieces > 255 || dataPieces + parityPieces > 256) {
+            throw new IllegalArgumentException("Unsupported Reed-Solomon parameters: " + dataPieces + "+" + parityPieces);
+        }
+        this.cluster = cluster;
+        this.dataPieces = dataPieces;
+        this.parityPieces = parityPieces;
+    }
+
+
+    /**
+     * Enable parallel processing.
+     * Data at least as large as the parallel threshold is processed in stripes on the pool. The parallelism is that
+     * of the pool, e.g. ForkJoinPool.commonPool() or new ForkJoinPool(n).
+     * @param pool Pool to run on, or null to stay single-threaded
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the data size below which processing stays single-threaded even if a pool is set.
+     * @param parallelThreshold Threshold (in bytes)
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Select the digest used for the cluster and fragment IDs of new clusters.
+     * Reconstruction always uses the digest recorded in the fragment headers.
+     * @param digest Digest to use
+     */
+    public void setDigest(DigestSpec digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Perform data fragmentation.
+     * The remaining bytes of the input buffer (from its position to its limit) are fragmented. The buffer itself is
+     * left untouched.
+     * @param input The raw input data to frag
+     * @return A fresh complete cluster of k + m fragments
+     * @throws IllegalStateException If this instance wasn't given any code parameters
+     */
+    @Override
+    public Cluster<ErasureFragment> fragment(ByteBuffer input) {
+        Metrics metrics = Metrics.getActive();
+        if(metrics == null) {
+            return fragmentBlock(input);
+        }
+        long start = System.nanoTime();
+        Cluster<ErasureFragment> clust = fragmentBlock(input);
+        metrics.encoded(input.remaining(), System.nanoTime() - start);
+        return clust;
+    }
+
+    private Cluster<ErasureFragment> fragmentBlock(ByteBuffer input) {
+        if(dataPieces == 0) {
+            throw new IllegalStateException("No Reed-Solomon parameters given for fragmentation");
+        }
+        final int k = dataPieces;
+        final int m = parityPieces;
+        final Codec codec = getCodec(k, m);
+
+        ByteBuffer data = input.duplicate();
+        int dataSize = data.remaining();
+
+        // Split the data into k pieces, the last one zero padded, digesting each piece as it's copied
+        int pieceSize = (dataSize + k - 1) / k;
+        final byte[][] pieces = new byte[k + m][pieceSize];
+        UUID[] pieceIds = new UUID[k + m];
+        UUIDDigester dataDigester = digest.newDigester();
+        UUIDDigester digester = digest.newDigester();
+        for(int j = 0; j < k; j++) {
+            int length = Math.min(pieceSize, data.remaining());
+            data.get(pieces[j], 0, length);
+            dataDigester.update(pieces[j], 0, length);
+            digester.update(pieces[j], 0, pieceSize);
+            pieceIds[j] = digester.digest();
+        }
+        Cluster<ErasureFragment> clust = new Cluster<ErasureFragment>(dataDigester.digest());
+
+        // Calculate the parity pieces, chunk by chunk
+        Stripes.process(dataSize >= parallelThreshold ? pool : null, pieceSize, STRIPE_SIZE, new Stripes.Operation() {
+            @Override
+            public void process(int stripeOffset, int stripeLength) {
+                for(int offset = stripeOffset; offset < stripeOffset + stripeLength; offset += CHUNK_SIZE) {
+                    int length = Math.min(CHUNK_SIZE, stripeOffset + stripeLength - offset);
+                    for(int i = 0; i < m; i++) {
+                        for(int j = 0; j < k; j++) {
+                            GF256.mulAdd(codec.parity[i][j], pieces[j], offset, pieces[k + i], offset, length);
+                        }
+                    }
+                }
+            }
+        });
+
+        for(int piece = 0; piece < k + m; piece++) {
+            if(pieceIds[piece] == null) {
+                digester.update(pieces[piece], 0, pieceSize);
+                pieceIds[piece] = digester.digest();
+            }
+            clust.add(new ErasureFragment(ErasureFragment.SUPPORTED_FRAGMENT_VERSION, AlgorithmSpec.REED_SOLOMON.headerValue(),
+                    digest, clust.getId(), pieceIds[piece], dataSize, k, m, piece, ByteBuffer.wrap(pieces[piece])));
+        }
+        return clust;
+    }
+
+    /**
+     * Attempt a data reconstruction operation by the specified cluster.
+     * If all data pieces are present they are simply concatenated. Otherwise the missing data pieces are decoded
+     * from any k present pieces. The data is written directly to the output buffer, which is flipped afterwards.
+     * If the cluster digest check fails, the content of the output buffer is undefined.
+     * @param output Destination buffer to write the reconstructed data, if possible
+     * @return Reconstruction report with further details
+     * @throws InsufficientFragmentsException If fewer than k usable fragments are provided by the cluster
+     * @throws ReconstructionException if the cluster digest (UUID) check fails
+     */
+    @Override
+    public ReconstructionReport reconstruct(ByteBuffer output) throws InsufficientFragmentsException, ReconstructionException {
+        Metrics metrics = Metrics.getActive();
+        if(metrics == null) {
+            return reconstructBlock(output);
+        }
+        long start = System.nanoTime();
+        int position = output.position();
+        ReconstructionReport report = null;
+        try {
+            report = reconstructBlock(output);
+            return report;
+        } finally {
+            metrics.decoded(output.limit() - position, System.nanoTime() - start, report);
+        }
+    }
+
+    private ReconstructionReport reconstructBlock(ByteBuffer output) throws InsufficientFragmentsException, ReconstructionException {
+        // Concur upon the headers, then find/sort the different pieces among those consenting
+        int k;
+        int m;
+        long dataSize;
+        DigestSpec spec;
+        int pieceSize;
+        ByteBuffer[] pieces;
+        int present = 0;
+        Set<Fragment> dissenting;
+        HeaderConsensus consensus = concur();
+        try {
+            k = consensus.getDataPieces();
+            m = consensus.getParityPieces();
+            dataSize = consensus.getDataSize();
+            spec = consensus.getDigest();
+            if(dataSize > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Cluster data size exceeds block mode limits: " + dataSize);
+            }
+            pieceSize = (int)((dataSize + k - 1) / k);
+            pieces = new ByteBuffer[k + m];
+            for(int i = 0; i < consensus.size(); i++) {
+                ErasureFragment f = (ErasureFragment)consensus.getFragment(i);
+                int piece = f.getPiece();
+                if(consensus.consents(i) && piece < k + m && pieces[piece] == null &&
+                        f.getPayload().remaining() >= pieceSize) {
+                    pieces[piece] = f.getPayload();
+                    present++;
+                }
+            }
+            dissenting = consensus.getDissenters();
+        } finally {
+            consensus.reset();
+        }
+        if(present < k) {
+            throw new InsufficientFragmentsException(k - present);
+        }
+
+        int start = output.position();
+        boolean allData = true;
+        for(int j = 0; j < k; j++) {
+            allData &= pieces[j] != null;
+        }
+        if(allData) {
+            // Fast path: This is plain concatenation
+            for(int j = 0; j < k; j++) {
+                ByteBuffer piece = pieces[j].duplicate();
+                piece.limit(piece.position() + dataLength(j, pieceSize, dataSize));
+                output.put(piece);
+            }
+        } else {
+            decode(getCodec(k, m), pieces, pieceSize, dataSize, output, dataSize >= parallelThreshold ? pool : null);
+        }
+
+        // Calculate (and verify) the supplied digest with the reconstructed data
+        ByteBuffer reconstructed = output.duplicate();
+        reconstructed.flip();
+        reconstructed.position(start);
+        UUIDDigester digester = UUIDDigester.forThread(spec);
+        digester.update(reconstructed);
+        if(!digester.digestEquals(cluster.getId())) {
+            throw new ReconstructionException(cluster.getId(), digester.lastDigest());
+        }
+        output.flip();
+        return new ReconstructionReport(k + m - present, new CopyOnWriteArraySet<Fragment>(), new CopyOnWriteArraySet<Fragment>(), dissenting);
+    }
+
+    /**
+     * Decode the original data from any k pieces.
+     * @param codec Codec for the code parameters
+     * @param pieces Payloads indexed by piece, null for missing pieces (at least k present)
+     * @param pieceSize Size of each piece
+     * @param dataSize Size of the original data
+     * @param output Destination buffer, which is advanced by dataSize bytes
+     * @param pool Pool to run on, or null to stay single-threaded
+     */
+    private static void decode(Codec codec, final ByteBuffer[] pieces, final int pieceSize, final long dataSize, ByteBuffer output, ForkJoinPool pool) {
+        final int k = codec.dataPieces;
+
+        // Pick the first k present pieces. Data pieces come first, which keeps the decode matrix as sparse as possible.
+        final int[] chosen = new int[k];
+        BitSet pattern = new BitSet(pieces.length);
+        for(int piece = 0, n = 0; n < k; piece++) {
+            if(pieces[piece] != null) {
+                chosen[n++] = piece;
+                pattern.set(piece);
+            }
+        }
+        final int[][] decodeMatrix = codec.getDecodeMatrix(pattern, chosen);
+
+        final int start = output.position();
+        final ByteBuffer out = output;
+        Stripes.process(pool, pieceSize, STRIPE_SIZE, new Stripes.Operation() {
+            @Override
+            public void process(int stripeOffset, int stripeLength) {
+                byte[][] in = new byte[k][Math.min(CHUNK_SIZE, stripeLength)];
+                byte[] acc = new byte[Math.min(CHUNK_SIZE, stripeLength)];
+                ByteBuffer dst = out.duplicate();
+                for(int offset = stripeOffset; offset < stripeOffset + stripeLength; offset += CHUNK_SIZE) {
+                    int length = Math.min(CHUNK_SIZE, stripeOffset + stripeLength - offset);
+                    for(int n = 0; n < k; n++) {
+                        ByteBuffer src = pieces[chosen[n]].duplicate();
+                        src.position(src.position() + offset);
+                        src.get(in[n], 0, length);
+                    }
+
+                    for(int j = 0; j < k; j++) {
+                        int outLength = Math.min(length, dataLength(j, pieceSize, dataSize) - offset);
+                        if(outLength <= 0) {
+                            continue;   // This chunk is all padding
+                        }
+                        dst.position(start + j * pieceSize + offset);
+                        if(pieces[j] != null) {
+                            // Present data piece, nothing to decode. It's among the chosen as data pieces are preferred.
+                            dst.put(in[Arrays.binarySearch(chosen, j)], 0, outLength);
+                        } else {
+                            Arrays.fill(acc, 0, length, (byte)0);
+                            for(int n = 0; n < k; n++) {
+                                GF256.mulAdd(decodeMatrix[j][n], in[n], 0, acc, 0, length);
+                            }
+                            dst.put(acc, 0, outLength);
+                        }
+                    }
+                }
+            }
+        });
+        output.position(start + (int)dataSize);
+    }
+
+    /**
+     * Amount of original data (as opposed to padding) in a data piece.
+     */
+    private static int dataLength(int piece, int pieceSize, long dataSize) {
+        return (int)Math.max(0, Math.min(pieceSize, dataSize - (long)piece * pieceSize));
+    }
+
+    /**
+     * Concur upon the headers of the cluster, using the consensus engine of the calling thread.
+     * The engine must be reset when done with.
+     * @return Concurred engine
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    private HeaderConsensus concur() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = HeaderConsensus.forThread();
+        try {
+            for(ErasureFragment f : cluster) {
+                consensus.add(f);
+            }
+            consensus.concur();
+        } catch(InsufficientFragmentsException e) {
+            consensus.reset();
+            throw e;
+        }
+        return consensus;
+    }
+
+    /**
+     * Concur upon the data size.
+     * @see net.comploud.code.bitfrag.Algorithm
+     * @see HeaderConsensus
+     * @return Data size (in bytes)
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    @Override
+    public long concurDataSize() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = concur();
+        try {
+            return consensus.getDataSize();
+        } finally {
+            consensus.reset();
+        }
+    }
+
+    /**
+     * Concur upon the amount of data pieces (k).
+     * @return Data pieces
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    public int concurDataPieces() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = concur();
+        try {
+            return consensus.getDataPieces();
+        } finally {
+            consensus.reset();
+        }
+    }
+
+    /**
+     * Concur upon the amount of parity pieces (m).
+     * @return Parity pieces
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    public int concurParityPieces() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = concur();
+        try {
+            return consensus.getParityPieces();
+        } finally {
+            consensus.reset();
+        }
+    }
+
+    /**
+     * Concur upon the digest the cluster and fragment IDs were calculated with.
+     * @return Digest
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    public DigestSpec concurDigest() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = concur();
+        try {
+            return consensus.getDigest();
+        } finally {
+            consensus.reset();
+        }
+    }
+
+    /**
+     * Get (or create) the codec for a set of code parameters.
+     */
+    private static Codec getCodec(int k, int m) {
+        Integer key = (k << 8) | m;
+        Codec codec = codecs.get(key);
+        if(codec == null) {
+            codec = new Codec(k, m);
+            Codec raced = codecs.putIfAbsent(key, codec);
+            if(raced != null) {
+                codec = raced;
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * The matrices of a particular (k, m) code.
+     */
+    private static class Codec {
+        /**
+         * Upper bound of cached decode matrices per codec.
+         * Wide codes have far too many erasure patterns to cache them all, but only a few are common in practice.
+         */
+        private static final int MAX_CACHED_MATRICES = 1024;
+
+        private final int dataPieces;
+
+        /**
+         * Parity rows of the (systematic) encoding matrix, m by k.
+         * This is a Cauchy matrix: parity[i][j] = 1 / ((k + i) ^ j)
+         */
+        private final int[][] parity;
+
+        /**
+         * Inverted decode matrices by erasure pattern (the set of pieces used for decoding).
+         */
+        private final Map<BitSet, int[][]> decodeMatrices = new ConcurrentHashMap<BitSet, int[][]>();
+
+        private Codec(int k, int m) {
+            this.dataPieces = k;
+            this.parity = new int[m][k];
+            for(int i = 0; i < m; i++) {
+                for(int j = 0; j < k; j++) {
+                    parity[i][j] = GF256.inv((k + i) ^ j);
+                }
+            }
+        }
+
+        /**
+         * Get the inverse of the encoding matrix rows of the chosen pieces.
+         * Multiplying it with the chosen pieces yields the data pieces.
+         */
+        private int[][] getDecodeMatrix(BitSet pattern, int[] chosen) {
+            int[][] inverse = decodeMatrices.get(pattern);
+            if(inverse == null) {
+                int k = dataPieces;
+                int[][] rows = new int[k][];
+                for(int n = 0; n < k; n++) {
+                    if(chosen[n] < k) {
+                        rows[n] = new int[k];
+                        rows[n][chosen[n]] = 1;     // Identity row of a data piece
+                    } else {
+                        rows[n] = parity[chosen[n] - k];
+                    }
+                }
+                inverse = GF256.invert(rows);
+                if(decodeMatrices.size() >= MAX_CACHED_MATRICES) {
+                    decodeMatrices.clear();     // Crude, but keeps the cache bounded
+                }
+                decodeMatrices.put(pattern, inverse);
+            }
+            return inverse;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The original byte-at-a-time XOR kernel.
+ * This is the reference implementation. It's slow but simple enough to be obviously correct.
+ */
+public class ScalarXORKernel extends XORKernel {
+    @Override
+    public void split(ByteBuffer data, ByteBuffer x1, ByteBuffer x2, ByteBuffer p, int length) {
+        int dri = data.position();
+        int end = dri + length;
+        int x1i = x1.position();
+        int x2i = x2.position();
+        int pi = p.position();
+        while(dri < end) {
+            // This is every even byte
+            byte x1b = data.get(dri++);
+            x1.put(x1i++, x1b);
+            if(dri < end) {  // Yes, same check, I know...
+                // This is every odd byte
+                byte x2b = data.get(dri++);
+                x2.put(x2i++, x2b);
+                p.put(pi++, (byte)(x1b ^ x2b));    // XOR operation to calculate parity
+            } else {
+                // Special case: There is no x2 for this x1 byte. Pad it!
+                p.put(pi++, x1b);   // Actually, XOR operation with 0x00 pad is not necessary as it evaluates to x1
+                // The payload size parameter will make sure that the x2 pad is not accidentally "included" during reconstruction
+            }
+        }
+        data.position(dri);
+        x1.position(x1i);
+        x2.position(x2i);
+        p.position(pi);
+    }
+
+    @Override
+    public void merge(ByteBuffer x1, ByteBuffer x2, ByteBuffer p, ByteBuffer data, int length) {
+        int pairs = length / 2;
+        boolean odd = length % 2 != 0;
+        int dri = data.position();
+        if(x1 != null && x2 != null) {
+            int x1i = x1.position();
+            int x2i = x2.position();
+            for(int i = 0; i < pairs; i++) {
+                data.put(dri++, x1.get(x1i++));     // Every even byte
+                data.put(dri++, x2.get(x2i++));     // Every odd byte
+            }
+            if(odd) {
+                data.put(dri++, x1.get(x1i++));     // There's an x1 but no x2. This is the last byte.
+            }
+            x1.position(x1i);
+            x2.position(x2i);
+        } else if(x1 != null) {
+            int x1i = x1.position();
+            int pi = p.position();
+            for(int i = 0; i < pairs; i++) {
+                byte x1b = x1.get(x1i++);
+                data.put(dri++, x1b);
+                data.put(dri++, (byte)(x1b ^ p.get(pi++)));     // XOR operation to calculate x2 from parity
+            }
+            if(odd) {
+                data.put(dri++, x1.get(x1i++));
+                pi++;
+            }
+            x1.position(x1i);
+            p.position(pi);
+        } else {
+            int x2i = x2.position();
+            int pi = p.position();
+            for(int i = 0; i < pairs; i++) {
+                byte x2b = x2.get(x2i++);
+                data.put(dri++, (byte)(x2b ^ p.get(pi++)));     // XOR operation to calculate x1 from parity
+                data.put(dri++, x2b);
+            }
+            if(odd) {
+                // Special case: There is an x1 byte (missing) and no x2 byte. Use padding with the last parity byte.
+                data.put(dri++, p.get(pi++)/* ^ 0x00*/);        // XOR with padding not necessary
+            }
+            x2.position(x2i);
+            p.position(pi);
+        }
+        data.position(dri);
+    }
+
+    @Override
+    public void xor(ByteBuffer src, ByteBuffer dst, int length) {
+        int si = src.position();
+        int di = dst.position();
+        for(int i = 0; i < length; i++) {
+            dst.put(di, (byte)(dst.get(di) ^ src.get(si++)));
+            di++;
+        }
+        src.position(si);
+        dst.position(di);
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,863 @@
+package net.comploud.code.bitfrag;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background verification (scrubbing) of a fragment store, so that corruption is found and dealt with while the
+ * cluster can still be restored, rather than when it's needed.
+ * A store is a directory tree of XOR fragment files (*.frag), as written by the CLI, Batch or AsyncFragmentWriter.
+ * Each pass reads all fragment headers, groups the fragments by cluster and scrubs the clusters on a small thread
+ * pool: every payload is checked against its fragment digest (ID) and, if all three pieces are present, the parity is
+ * checked against x1 and x2 in the same pass. A fragment that passes its own digest but breaks the parity is tampered
+ * with; which one it is takes another pass over a pair of pieces (see XORAlgorithm).
+ *
+ * Bad fragments (corrupted, tampered or missing altogether) are reported to the listeners and, if enabled, repaired by
+ * regenerating them from the two good pieces (see XORAlgorithm.repair()).
+ *
+ * Scrubbing is meant to stay out of the way of the real work, so reading is limited to a budget of bytes per second
+ * shared by all threads. Since digesting is proportional to the bytes read, this bounds the CPU time as well (as does
+ * the amount of threads). Clusters are scrubbed in order of their IDs, and the progress is saved to a checkpoint file
+ * every now and then, so that a pass interrupted by a restart resumes where it left off.
+ */
+public class Scrubber implements Closeable {
+    /**
+     * Callbacks upon the findings of the scrubber.
+     * They are called from the threads of the pool, so they must be thread-safe.
+     */
+    public interface Listener {
+        /**
+         * A fragment failed its own digest (or its payload is short).
+         * @param file Fragment file
+         * @param frag Fragment (header-only)
+         */
+        public void corrupted(Path file, XORFragment frag);
+
+        /**
+         * A fragment passed its own digest, but disagrees with the rest of its cluster.
+         * @param file Fragment file
+         * @param frag Fragment (header-only)
+         */
+        public void tampered(Path file, XORFragment frag);
+
+        /**
+         * A piece of a cluster isn't in the store.
+         * @param clusterId Cluster ID
+         * @param piece Piece (1 for x1, 2 for x2 or 3 for parity)
+         */
+        public void missing(UUID clusterId, int piece);
+
+        /**
+         * A bad or missing fragment has been regenerated.
+         * @param file The new fragment file
+         * @param frag Regenerated fragment (header-only)
+         */
+        public void repaired(Path file, XORFragment frag);
+
+        /**
+         * A fragment file couldn't be scrubbed (e.g. unreadable or malformed), or a cluster couldn't be repaired.
+         * @param file Fragment file
+         * @param e What went wrong
+         */
+        public void failed(Path file, Exception e);
+    }
+
+    /**
+     * Listener doing nothing, to subclass when only some of the callbacks are of interest.
+     */
+    public static class Adapter implements Listener {
+        @Override
+        public void corrupted(Path file, XORFragment frag) {
+        }
+
+        @Override
+        public void tampered(Path file, XORFragment frag) {
+        }
+
+        @Override
+        public void missing(UUID clusterId, int piece) {
+        }
+
+        @Override
+        public void repaired(Path file, XORFragment frag) {
+        }
+
+        @Override
+        public void failed(Path file, Exception e) {
+        }
+    }
+
+    /**
+     * Size (in bytes) of the piece chunks read at a time.
+     */
+    public static final int CHUNK_SIZE = 32 * 1024;
+
+    /**
+     * Amount of clusters scrubbed between checkpoints.
+     */
+    public static final int CHECKPOINT_INTERVAL = 64;
+
+    /**
+     * Root of the fragment store.
+     */
+    private final Path store;
+
+    /**
+     * Amount of clusters scrubbed concurrently.
+     */
+    private final int threads;
+
+    /**
+     * Reading budget (in bytes per second), or 0 for no limit.
+     */
+    private volatile long bytesPerSecond = 0;
+
+    /**
+     * Whether bad fragments are repaired.
+     */
+    private volatile boolean repair = false;
+
+    /**
+     * Checkpoint file, or null to not save the progress.
+     */
+    private volatile Path checkpoint = null;
+
+    /**
+     * Time (System.nanoTime()) from which the reading budget is free again.
+     */
+    private long budgetFree = 0;
+
+    private volatile boolean stopping = false;
+    private Thread background = null;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final BufferPool bufferPool = BufferPool.getShared();
+
+    private final LongAdder fragmentsScrubbed = new LongAdder();
+    private final LongAdder bytesScrubbed = new LongAdder();
+    private final LongAdder badFragments = new LongAdder();
+    private final LongAdder repairedFragments = new LongAdder();
+
+
+    /**
+     * Constructor.
+     * @param store Root of the fragment store
+     * @param threads Amount of clusters to scrub concurrently
+     */
+    public Scrubber(Path store, int threads) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        this.store = store;
+        this.threads = threads;
+    }
+
+
+    /**
+     * Limit the reading (and thus the digesting) of all threads together.
+     * @param bytesPerSecond Budget (in bytes per second), or 0 for no limit (the default)
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        if(bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid budget: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Enable the repair of bad fragments.
+     * A cluster with a single bad (or missing) piece gets it regenerated from the two others, replacing the bad
+     * fragment file. Clusters with more than that are only reported, as they can't be repaired.
+     * @param repair true to repair, false to only report (the default)
+     */
+    public void setRepair(boolean repair) {
+        this.repair = repair;
+    }
+
+    /**
+     * Save the progress of passes to a checkpoint file, so that an interrupted pass resumes where it left off.
+     * The file is deleted once a pass completes.
+     * @param checkpoint Checkpoint file, or null to always scrub from the beginning (the default)
+     */
+    public void setCheckpoint(Path checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Add a listener.
+     * @param listener Listener to call upon findings
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener.
+     * @param listener Listener to no longer call
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start scrubbing in the background, pass after pass.
+     * @param interval Pause (in milliseconds) between the end of a pass and the start of the next
+     * @throws IllegalStateException If already started
+     */
+    public synchronized void start(final long interval) {
+        if(background != null) {
+            throw new IllegalStateException("Scrubber already started");
+        }
+        stopping = false;
+        background = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(!stopping) {
+                        try {
+                            scrub();
+                        } catch(IOException e) {
+                            for(Listener listener : listeners) {
+                                listener.failed(store, e);
+                            }
+                        }
+                        Thread.sleep(interval);
+                    }
+                } catch(InterruptedException e) {
+                    // Stopped
+                }
+            }
+        }, "BitFrag scrubber");
+        background.setDaemon(true);
+        background.start();
+    }
+
+    /**
+     * Stop scrubbing, saving the progress of the current pass (if any) to the checkpoint file.
+     * Clusters being scrubbed are abandoned halfway and scrubbed anew by the next pass. Waits for the background
+     * thread (if started) to finish. Once stopped, scrub() returns right away until started again.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized(this) {
+            stopping = true;
+            thread = background;
+            background = null;
+        }
+        if(thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Run a single pass over the store in the calling thread (and the pool), resuming from the checkpoint (if any).
+     * @return true if the pass completed, false if it was stopped
+     * @throws IOException If the store can't be walked or the checkpoint can't be read or written
+     * @throws InterruptedException If interrupted while waiting for the pool, which stops the scrubber (as stop() does,
+     *                              the progress is saved first)
+     */
+    public boolean scrub() throws IOException, InterruptedException {
+        final String resume = readCheckpoint();
+
+        // Read all headers and group the fragments by cluster, in order of the cluster IDs
+        final Map<String, List<Entry>> clusters = new TreeMap<String, List<Entry>>();
+        final BinaryXORFragmentReader reader = new BinaryXORFragmentReader();
+        Files.walkFileTree(store, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(stopping) {
+                    return FileVisitResult.TERMINATE;
+                }
+                if(!attrs.isRegularFile() || !file.getFileName().toString().endsWith(".frag")) {
+                    return FileVisitResult.CONTINUE;
+                }
+                try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    XORFragment frag = reader.parseHeader(throttle(channel));
+                    String key = frag.getClusterId().toString();
+                    if(resume == null || key.compareTo(resume) > 0) {
+                        List<Entry> entries = clusters.get(key);
+                        if(entries == null) {
+                            entries = new ArrayList<Entry>();
+                            clusters.put(key, entries);
+                        }
+                        entries.add(new Entry(file, frag));
+                    }
+                } catch(IOException e) {
+                    fail(file, e);
+                } catch(FragmentFormatException e) {
+                    fail(file, e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // Scrub the clusters, keeping track of the completed prefix for the checkpoint
+        final List<String> keys = new ArrayList<String>(clusters.keySet());
+        final boolean[] completed = new boolean[keys.size()];
+        final int[] prefix = { 0 };
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for(int i = 0; i < keys.size(); i++) {
+                final int index = i;
+                final List<Entry> entries = clusters.get(keys.get(i));
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(stopping) {
+                            return;
+                        }
+                        try {
+                            scrubCluster(entries);
+                        } catch(InterruptedIOException e) {
+                            return;     // Stopped halfway, so not completed
+                        }
+                        String save = null;
+                        synchronized(completed) {
+                            completed[index] = true;
+                            int before = prefix[0];
+                            while(prefix[0] < completed.length && completed[prefix[0]]) {
+                                prefix[0]++;
+                            }
+                            if(prefix[0] / CHECKPOINT_INTERVAL != before / CHECKPOINT_INTERVAL) {
+                                save = keys.get(prefix[0] - 1);
+                            }
+                        }
+                        if(save != null) {
+                            try {
+                                writeCheckpoint(save);
+                            } catch(IOException e) {
+                                fail(checkpoint, e);
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        boolean interrupted = false;
+        while(!executor.isTerminated()) {
+            try {
+                if(!executor.awaitTermination(1, TimeUnit.SECONDS) && stopping) {
+                    executor.shutdownNow();     // Interrupts the throttled reads
+                }
+            } catch(InterruptedException e) {
+                interrupted = true;
+                stopping = true;
+                executor.shutdownNow();
+            }
+        }
+
+        synchronized(completed) {
+            if(prefix[0] == completed.length && !stopping) {
+                if(checkpoint != null) {
+                    Files.deleteIfExists(checkpoint);
+                }
+                return true;
+            }
+            if(prefix[0] > 0) {
+                writeCheckpoint(keys.get(prefix[0] - 1));
+            }
+        }
+        if(interrupted) {
+            throw new InterruptedException("Scrubbing interrupted");
+        }
+        return false;
+    }
+
+    /**
+     * Get the amount of fragments scrubbed (by all passes).
+     * @return Fragments
+     */
+    public long getFragmentsScrubbed() {
+        return fragmentsScrubbed.sum();
+    }
+
+    /**
+     * Get the amount of bytes read (by all passes).
+     * @return Bytes
+     */
+    public long getBytesScrubbed() {
+        return bytesScrubbed.sum();
+    }
+
+    /**
+     * Get the amount of bad fragments found (by all passes): corrupted, tampered, missing or unreadable.
+     * @return Fragments
+     */
+    public long getBadFragments() {
+        return badFragments.sum();
+    }
+
+    /**
+     * Get the amount of fragments repaired (by all passes).
+     * @return Fragments
+     */
+    public long getRepairedFragments() {
+        return repairedFragments.sum();
+    }
+
+    /**
+     * Scrub (and possibly repair) a cluster.
+     * @throws InterruptedIOException If stopped halfway
+     */
+    private void scrubCluster(List<Entry> entries) throws InterruptedIOException {
+        UUID clusterId = entries.get(0).frag.getClusterId();
+        Entry[] pieces = new Entry[3];
+        for(Entry entry : entries) {
+            int piece = entry.frag.getPiece();
+            if(piece >= 1 && piece <= 3 && pieces[piece - 1] == null) {
+                pieces[piece - 1] = entry;
+            }
+        }
+        boolean parity = pieces[0] != null && pieces[1] != null && pieces[2] != null &&
+                pieces[0].frag.getClusterDataSize() == pieces[1].frag.getClusterDataSize() &&
+                pieces[0].frag.getClusterDataSize() == pieces[2].frag.getClusterDataSize();
+        boolean parityHolds = verify(entries, parity ? pieces : null);
+
+        // Sort out the bad pieces
+        boolean[] bad = new boolean[3];
+        boolean anyCorrupted = false;
+        for(Entry entry : entries) {
+            fragmentsScrubbed.increment();
+            if(entry.corrupted) {
+                anyCorrupted = true;
+                badFragments.increment();
+                for(Listener listener : listeners) {
+                    listener.corrupted(entry.file, entry.frag);
+                }
+                if(entry == pieces[entry.frag.getPiece() - 1]) {
+                    bad[entry.frag.getPiece() - 1] = true;
+                }
+            }
+        }
+        if(parity && !parityHolds && !anyCorrupted) {
+            int culprit = culprit(clusterId, pieces);
+            if(culprit == 0) {
+                fail(pieces[2].file, new InvalidClusterException("Cluster " + clusterId + " is inconsistent beyond repair"));
+                return;
+            }
+            Entry entry = pieces[culprit - 1];
+            badFragments.increment();
+            for(Listener listener : listeners) {
+                listener.tampered(entry.file, entry.frag);
+            }
+            bad[culprit - 1] = true;
+        }
+        for(int piece = 1; piece <= 3; piece++) {
+            if(pieces[piece - 1] == null) {
+                badFragments.increment();
+                for(Listener listener : listeners) {
+                    listener.missing(clusterId, piece);
+                }
+                bad[piece - 1] = true;
+            }
+        }
+
+        // A single bad piece can be regenerated from the two others
+        int badPiece = 0;
+        int badCount = 0;
+        for(int piece = 1; piece <= 3; piece++) {
+            if(bad[piece - 1]) {
+                badPiece = piece;
+                badCount++;
+            }
+        }
+        if(repair && badCount == 1) {
+            repair(clusterId, pieces, badPiece);
+        }
+    }
+
+    /**
+     * Read the payloads of a cluster in lockstep, checking each against its fragment digest and (optionally) the
+     * parity against x1 and x2. Fragments failing their digest are marked as corrupted.
+     * @param entries Fragments of the cluster
+     * @param pieces The pieces to check the parity of, or null to skip the parity
+     * @return true unless the parity was checked and didn't hold
+     * @throws InterruptedIOException If stopped halfway
+     */
+    private boolean verify(List<Entry> entries, Entry[] pieces) throws InterruptedIOException {
+        int n = entries.size();
+        ReadableByteChannel[] channels = new ReadableByteChannel[n];
+        UUIDDigester[] digesters = new UUIDDigester[n];
+        ByteBuffer[] chunks = new ByteBuffer[n];
+        long size = 0;
+        boolean parityHolds = true;
+        try {
+            for(int i = 0; i < n; i++) {
+                Entry entry = entries.get(i);
+                try {
+                    FileChannel channel = FileChannel.open(entry.file, StandardOpenOption.READ);
+                    channel.position(entry.frag.getHeaderSize());
+                    channels[i] = throttle(channel);
+                } catch(IOException e) {
+                    checkStopped(e);
+                    entry.corrupted = true;
+                    continue;
+                }
+                digesters[i] = entry.frag.getDigest().newDigester();
+                chunks[i] = bufferPool.acquire(CHUNK_SIZE);
+                size = Math.max(size, entry.frag.getPayloadSize());
+            }
+
+            for(long offset = 0; offset < size; offset += CHUNK_SIZE) {
+                for(int i = 0; i < n; i++) {
+                    Entry entry = entries.get(i);
+                    int length = (int)Math.max(0, Math.min(CHUNK_SIZE, entry.frag.getPayloadSize() - offset));
+                    if(entry.corrupted) {
+                        continue;
+                    }
+                    chunks[i].clear();
+                    chunks[i].limit(length);
+                    try {
+                        if(ChannelUtil.readFully(channels[i], chunks[i]) != length) {
+                            throw new EOFException("Fragment payload ended prematurely");
+                        }
+                    } catch(IOException e) {
+                        checkStopped(e);
+                        entry.corrupted = true;     // Short or unreadable, either way it's lost
+                        continue;
+                    }
+                    chunks[i].flip();
+                    digesters[i].update(chunks[i]);
+                }
+                if(pieces != null && parityHolds && !pieces[0].corrupted && !pieces[1].corrupted && !pieces[2].corrupted) {
+                    long dataLength = Math.min(2L * CHUNK_SIZE, pieces[0].frag.getClusterDataSize() - 2 * offset);
+                    if(dataLength > 0) {
+                        parityHolds = XORAlgorithm.parityHolds(chunk(entries, chunks, pieces[0]), 0, chunk(entries, chunks, pieces[1]), 0,
+                                chunk(entries, chunks, pieces[2]), 0, (int)dataLength);
+                    }
+                }
+            }
+            for(int i = 0; i < n; i++) {
+                Entry entry = entries.get(i);
+                if(!entry.corrupted && !digesters[i].digestEquals(entry.frag.getId())) {
+                    entry.corrupted = true;
+                }
+            }
+        } finally {
+            for(int i = 0; i < n; i++) {
+                if(chunks[i] != null) {
+                    bufferPool.release(chunks[i]);
+                }
+                if(channels[i] != null) {
+                    try {
+                        channels[i].close();
+                    } catch(IOException e) {
+                        // Nothing more to do about it
+                    }
+                }
+            }
+        }
+        return parityHolds;
+    }
+
+    /**
+     * Get the chunk of an entry.
+     */
+    private static ByteBuffer chunk(List<Entry> entries, ByteBuffer[] chunks, Entry entry) {
+        return chunks[entries.indexOf(entry)];
+    }
+
+    /**
+     * Find the tampered piece of a cluster whose fragments all pass their own digests but break the parity: the piece
+     * left out by the pair of pieces that reproduces the cluster digest.
+     * @return The tampered piece, or 0 if no pair reproduces the cluster digest
+     * @throws InterruptedIOException If stopped halfway
+     */
+    private int culprit(UUID clusterId, Entry[] pieces) throws InterruptedIOException {
+        Cluster<XORFragment> clust = new Cluster<XORFragment>(clusterId);
+        for(Entry entry : pieces) {
+            clust.add(entry.frag);
+        }
+        for(int leftOut = 3; leftOut >= 1; leftOut--) {
+            ReadableByteChannel[] channels = new ReadableByteChannel[3];
+            try {
+                for(int piece = 1; piece <= 3; piece++) {
+                    if(piece != leftOut) {
+                        channels[piece - 1] = open(pieces[piece - 1]);
+                    }
+                }
+                new XORAlgorithm(clust).reconstruct(DISCARD, channels[0], channels[1], channels[2]);
+                return leftOut;
+            } catch(IOException e) {
+                checkStopped(e);    // Otherwise, try the next pair
+            } catch(InsufficientFragmentsException e) {
+                // Try the next pair
+            } catch(ReconstructionException e) {
+                // Try the next pair
+            } finally {
+                closeAll(channels);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Regenerate a bad (or missing) piece from the two others, replacing the bad fragment file (if any).
+     * The new fragment is written to a temporary file, then moved into place next to the bad fragment file (or a
+     * surviving one, if missing), named by its cluster ID and piece index (like the CLI does), and the bad fragment
+     * file is deleted. Fragment IDs can't be used for the name, since the pieces of clusters of a couple of bytes share
+     * them. An existing file is never replaced unless it's the bad fragment file.
+     * @throws InterruptedIOException If stopped halfway
+     */
+    private void repair(UUID clusterId, Entry[] pieces, int badPiece) throws InterruptedIOException {
+        Cluster<XORFragment> clust = new Cluster<XORFragment>(clusterId);
+        Entry survivor = null;
+        for(int piece = 1; piece <= 3; piece++) {
+            if(piece != badPiece) {
+                clust.add(pieces[piece - 1].frag);
+                survivor = pieces[piece - 1];
+            }
+        }
+        Entry bad = pieces[badPiece - 1];
+        Path dir = (bad != null ? bad : survivor).file.toAbsolutePath().getParent();
+        Path file = dir.resolve(clusterId + "-" + (badPiece - 1) + ".frag");
+        boolean replacesBad = bad != null && bad.file.toAbsolutePath().normalize().equals(file.normalize());
+        Path temp = null;
+        ReadableByteChannel[] channels = new ReadableByteChannel[3];
+        try {
+            if(!replacesBad && Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+                throw new FileAlreadyExistsException(file.toString(), null, "Belongs to another fragment");
+            }
+            temp = Files.createTempFile(dir, ".scrub", ".tmp");
+            XORFragment frag;
+            try(FileChannel output = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                for(int piece = 1; piece <= 3; piece++) {
+                    if(piece != badPiece) {
+                        channels[piece - 1] = open(pieces[piece - 1]);
+                    }
+                }
+                frag = new XORAlgorithm(clust).repair(output, channels[0], channels[1], channels[2]);
+                output.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            if(bad != null && !replacesBad) {
+                Files.deleteIfExists(bad.file);
+            }
+            repairedFragments.increment();
+            for(Listener listener : listeners) {
+                listener.repaired(file, frag);
+            }
+        } catch(IOException e) {
+            checkStopped(e);
+            fail(survivor.file, e);
+        } catch(InsufficientFragmentsException e) {
+            fail(survivor.file, e);
+        } catch(ReconstructionException e) {
+            fail(survivor.file, e);     // A survivor went bad meanwhile
+        } finally {
+            closeAll(channels);
+            if(temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch(IOException e) {
+                    // Nothing more to do about it
+                }
+            }
+        }
+    }
+
+    /**
+     * Rethrow a failure as an InterruptedIOException if the scrubber is stopping, as it's then most likely due to that
+     * (e.g. a FileChannel closed by an interrupt) rather than to the fragment.
+     */
+    private void checkStopped(IOException e) throws InterruptedIOException {
+        if(e instanceof InterruptedIOException) {
+            throw (InterruptedIOException)e;
+        } else if(stopping) {
+            InterruptedIOException stopped = new InterruptedIOException("Scrubber stopped");
+            stopped.initCause(e);
+            throw stopped;
+        }
+    }
+
+    /**
+     * Open the payload of a fragment file for throttled reading.
+     */
+    private ReadableByteChannel open(Entry entry) throws IOException {
+        FileChannel channel = FileChannel.open(entry.file, StandardOpenOption.READ);
+        channel.position(entry.frag.getHeaderSize());
+        return throttle(channel);
+    }
+
+    private static void closeAll(ReadableByteChannel[] channels) {
+        for(ReadableByteChannel channel : channels) {
+            if(channel != null) {
+                try {
+                    channel.close();
+                } catch(IOException e) {
+                    // Nothing more to do about it
+                }
+            }
+        }
+    }
+
+    /**
+     * Report a file that couldn't be scrubbed.
+     */
+    private void fail(Path file, Exception e) {
+        badFragments.increment();
+        for(Listener listener : listeners) {
+            listener.failed(file, e);
+        }
+    }
+
+    /**
+     * Wrap a channel so that reading from it is charged to the budget.
+     * Reading fails with an InterruptedIOException once the scrubber is stopped.
+     */
+    private ReadableByteChannel throttle(final ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if(stopping) {
+                    throw new InterruptedIOException("Scrubber stopped");
+                }
+                int read = channel.read(dst);
+                if(read > 0) {
+                    bytesScrubbed.add(read);
+                    charge(read);
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Charge bytes to the budget, sleeping as long as it takes to stay within it.
+     * The budget doesn't accumulate while idle, so there are no bursts.
+     */
+    private void charge(long bytes) throws InterruptedIOException {
+        long rate = bytesPerSecond;
+        if(rate == 0) {
+            return;
+        }
+        long wait;
+        synchronized(this) {
+            long now = System.nanoTime();
+            if(budgetFree - now < 0) {
+                budgetFree = now;
+            }
+            wait = budgetFree - now;
+            budgetFree += bytes * 1000000000L / rate;
+        }
+        if(wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException("Scrubber stopped");
+            }
+        }
+    }
+
+    /**
+     * Read the ID of the last cluster scrubbed by an interrupted pass.
+     * @return Cluster ID, or null to start from the beginning
+     */
+    private String readCheckpoint() throws IOException {
+        Path file = checkpoint;
+        if(file == null || !Files.exists(file)) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        return lines.isEmpty() ? null : lines.get(0).trim();
+    }
+
+    /**
+     * Save the ID of the last cluster scrubbed (along with all before it), atomically.
+     */
+    private void writeCheckpoint(String clusterId) throws IOException {
+        Path file = checkpoint;
+        if(file == null) {
+            return;
+        }
+        synchronized(this) {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, Collections.singletonList(clusterId), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Sink for the data reconstructed just to check it.
+     */
+    private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * A fragment file of the store.
+     */
+    private static class Entry {
+        private final Path file;
+        private final XORFragment frag;
+        private boolean corrupted = false;
+
+        private Entry(Path file, XORFragment frag) {
+            this.file = file;
+            this.frag = frag;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.comploud.code.bitfrag;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Helper for processing data in stripes, in parallel on a ForkJoinPool.
+ * The data is divided into stripes of a fixed size (the last one may be shorter) which are handed to an operation
+ * that processes the corresponding region of every input and output. The stripes are independent of each other,
+ * so they may be processed in any order and concurrently.
+ */
+public class Stripes {
+    /**
+     * Default stripe size (in bytes).
+     * Large enough to make the task overhead negligible, small enough to balance the load across cores.
+     */
+    public static final int DEFAULT_STRIPE_SIZE = 256 * 1024;
+
+    /**
+     * Default size (in bytes) of data below which algorithms should stay single-threaded.
+     * Spawning tasks for less than this simply doesn't pay off.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1024 * 1024;
+
+    /**
+     * An operation processing a single stripe.
+     */
+    public interface Operation {
+        /**
+         * Process a stripe.
+         * This may be called concurrently for different stripes.
+         * @param offset Offset of the stripe
+         * @param length Length of the stripe
+         */
+        public void process(int offset, int length);
+    }
+
+    private Stripes() {
+    }
+
+    /**
+     * Process data in stripes.
+     * If no pool is given, or the data fits in a single stripe, the whole data is processed by the calling thread in
+     * one go. Otherwise the stripes are processed on the pool and this method returns when all are done.
+     * @param pool Pool to run on, or null to stay single-threaded
+     * @param length Total length of the data
+     * @param stripeSize Size of each stripe (must be a multiple of whatever alignment the operation requires)
+     * @param op Operation to perform on each stripe
+     */
+    public static void process(ForkJoinPool pool, int length, int stripeSize, Operation op) {
+        if(pool == null || length <= stripeSize) {
+            op.process(0, length);
+        } else {
+            int stripes = (length + stripeSize - 1) / stripeSize;
+            pool.invoke(new StripeTask(op, length, stripeSize, 0, stripes));
+        }
+    }
+
+    /**
+     * Recursively halves a range of stripes until a single stripe remains.
+     */
+    private static class StripeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Operation op;
+        private final int length;
+        private final int stripeSize;
+        private final int first;
+        private final int last;
+
+        private StripeTask(Operation op, int length, int stripeSize, int first, int last) {
+            this.op = op;
+            this.length = length;
+            this.stripeSize = stripeSize;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if(last - first == 1) {
+                int offset = first * stripeSize;
+                op.process(offset, Math.min(stripeSize, length - offset));
+            } else {
+                int middle = (first + last) >>> 1;
+                invokeAll(new StripeTask(op, length, stripeSize, first, middle),
+                        new StripeTask(op, length, stripeSize, middle, last));
+            }
+        }
+    }
+}
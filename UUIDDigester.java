@@ -0,0 +1,238 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Incremental calculation of digest UUIDs.
+ * The data may be fed in chunks rather than as one big array, so a digest can be calculated in the same pass as the
+ * data is produced or consumed. See DigestSpec for the available digests. With MD5, this yields exactly the same
+ * UUID as UUID.nameUUIDFromBytes() would for the concatenation of all updates.
+ */
+public class UUIDDigester {
+    /**
+     * The digest calculated.
+     */
+    private final DigestSpec spec;
+
+    /**
+     * The underlying message digest (MD5 and SHA256 only).
+     */
+    private final MessageDigest md;
+
+    /**
+     * The underlying checksums and length counter (CRC32C only).
+     */
+    private final CRC32C crc32c;
+    private final CRC32 crc32;
+    private long length;
+
+    /**
+     * Scratch space for the hash (MD5 and SHA256 only), so that verifying doesn't allocate.
+     */
+    private final byte[] hash;
+
+    /**
+     * The most recently completed digest.
+     */
+    private long msb;
+    private long lsb;
+
+    /**
+     * Digesters reused by threads, by DigestSpec ordinal.
+     */
+    private static final ThreadLocal<UUIDDigester[]> local = new ThreadLocal<UUIDDigester[]>() {
+        @Override
+        protected UUIDDigester[] initialValue() {
+            return new UUIDDigester[DigestSpec.values().length];
+        }
+    };
+
+    /**
+     * Create a fresh MD5 digester.
+     */
+    public UUIDDigester() {
+        this(DigestSpec.MD5);
+    }
+
+    /**
+     * Create a fresh digester.
+     * @param spec Digest to calculate
+     */
+    public UUIDDigester(DigestSpec spec) {
+        this.spec = spec;
+        if(spec == DigestSpec.CRC32C) {
+            md = null;
+            crc32c = new CRC32C();
+            crc32 = new CRC32();
+            hash = null;
+        } else {
+            try {
+                md = MessageDigest.getInstance(spec == DigestSpec.MD5 ? "MD5" : "SHA-256");
+            } catch(NoSuchAlgorithmException e) {
+                // Every Java platform is required to support MD5 and SHA-256, so this should never happen
+                throw new InternalError(spec + " not supported", e);
+            }
+            crc32c = null;
+            crc32 = null;
+            hash = new byte[md.getDigestLength()];
+        }
+    }
+
+    /**
+     * Get a reset digester owned by the calling thread.
+     * This saves setting up a fresh digester (and its underlying message digest) for every small piece of data. The
+     * digester must not be handed to other threads, nor be used across calls that may use it themselves.
+     * @param spec Digest to calculate
+     * @return The digester of this thread for the digest
+     */
+    public static UUIDDigester forThread(DigestSpec spec) {
+        UUIDDigester[] digesters = local.get();
+        UUIDDigester digester = digesters[spec.ordinal()];
+        if(digester == null) {
+            digester = new UUIDDigester(spec);
+            digesters[spec.ordinal()] = digester;
+        } else {
+            digester.reset();
+        }
+        return digester;
+    }
+
+    /**
+     * Get the digest calculated by this digester.
+     * @return Digest
+     */
+    public DigestSpec getSpec() {
+        return spec;
+    }
+
+    /**
+     * Feed a portion of an array into the digest.
+     * @param data Data array
+     * @param offset Offset of the first byte to digest
+     * @param length Amount of bytes to digest
+     */
+    public void update(byte[] data, int offset, int length) {
+        if(md != null) {
+            md.update(data, offset, length);
+        } else {
+            crc32c.update(data, offset, length);
+            crc32.update(data, offset, length);
+            this.length += length;
+        }
+    }
+
+    /**
+     * Feed the remaining bytes of a buffer into the digest.
+     * The buffer position will be advanced to its limit.
+     * @param data Data buffer
+     */
+    public void update(ByteBuffer data) {
+        if(md != null) {
+            md.update(data);
+        } else {
+            int start = data.position();
+            length += data.remaining();
+            crc32c.update(data);
+            data.position(start);
+            crc32.update(data);
+        }
+    }
+
+    /**
+     * Discard all data fed so far.
+     */
+    public void reset() {
+        if(md == null) {
+            crc32c.reset();
+            crc32.reset();
+            length = 0;
+        } else {
+            md.reset();
+        }
+    }
+
+    /**
+     * Complete the digest calculation and return it as a UUID.
+     * The digester is reset afterwards and may be reused.
+     * @return UUID of all data fed since creation (or last reset)
+     */
+    public UUID digest() {
+        complete();
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Complete the digest calculation and compare it to an expected UUID, without allocating anything.
+     * The digester is reset afterwards and may be reused.
+     * @param expected Expected UUID
+     * @return true if the UUID of all data fed since creation (or last reset) equals the expected one
+     */
+    public boolean digestEquals(UUID expected) {
+        complete();
+        return msb == expected.getMostSignificantBits() && lsb == expected.getLeastSignificantBits();
+    }
+
+    /**
+     * Get the most recently completed digest as a UUID.
+     * @return UUID calculated by the last digest() or digestEquals() call
+     */
+    public UUID lastDigest() {
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Complete the digest calculation into msb and lsb, then reset.
+     */
+    private void complete() {
+        if(md == null) {
+            msb = (crc32c.getValue() << 32) | crc32.getValue();
+            lsb = length;
+            reset();
+            return;
+        }
+
+        try {
+            md.digest(hash, 0, hash.length);
+        } catch(DigestException e) {
+            // The scratch space is exactly the digest length, so this should never happen
+            throw new InternalError(spec + " digest failed", e);
+        }
+        hash[6] &= 0x0f;    // Clear version
+        hash[6] |= spec == DigestSpec.MD5 ? 0x30 : 0x50;    // Set to version 3 (MD5) or 5 (SHA)
+        hash[8] &= 0x3f;    // Clear variant
+        hash[8] |= 0x80;    // Set to IETF variant
+
+        msb = 0;
+        lsb = 0;
+        for(int i = 0; i < 8; i++) {
+            msb = (msb << 8) | (hash[i] & 0xff);
+        }
+        for(int i = 8; i < 16; i++) {
+            lsb = (lsb << 8) | (hash[i] & 0xff);
+        }
+    }
+
+    /**
+     * Convenience method to digest a whole buffer at once.
+     * @param spec Digest to calculate
+     * @param data Data to digest (the remaining bytes, the buffer itself is left untouched)
+     * @return Digest UUID
+     */
+    public static UUID digest(DigestSpec spec, ByteBuffer data) {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        UUIDDigester digester = new UUIDDigester(spec);
+        digester.update(data.duplicate());
+        UUID digest = digester.digest();
+        if(metrics != null) {
+            metrics.digested(data.remaining(), System.nanoTime() - start);
+        }
+        return digest;
+    }
+}
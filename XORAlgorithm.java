@@ -1,11 +1,21 @@
 package net.comploud.code.bitfrag;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Simple "Proof of Concept" prototype algorithm.
@@ -20,6 +30,41 @@ public class XORAlgorithm implements Algorithm {
     protected Cluster<XORFragment> cluster;
     // TODO This is a bad programming pattern. Use generics in the interface instead. But how!? (See Algorithm.java)
 
+    /**
+     * Kernel performing the actual splitting and merging.
+     */
+    protected XORKernel kernel = XORKernel.getDefault();
+
+    /**
+     * Pool for parallel processing in block mode, or null to stay single-threaded.
+     */
+    protected ForkJoinPool pool = null;
+
+    /**
+     * Data size (in bytes) below which block mode stays single-threaded even if a pool is set.
+     */
+    protected int parallelThreshold = Stripes.DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Digest used for the cluster and fragment IDs of new clusters.
+     */
+    protected DigestSpec digest = DigestSpec.getDefault();
+
+    /**
+     * Whether block mode reconstruction of a full cluster checks upon every fragment.
+     */
+    protected boolean verify = false;
+
+    /**
+     * Pool of the intermediate chunk buffers of stream mode.
+     */
+    protected BufferPool bufferPool = BufferPool.getShared();
+
+    /**
+     * Stripe size of new clusters, or 0 to not stripe them.
+     */
+    protected int stripeSize = 0;
+
     /**
      * Supported fragment format as of this version.
      * This works like a magic cookie to identify the fragment format. When the fragment format is changed, this number
@@ -28,7 +73,13 @@ public class XORAlgorithm implements Algorithm {
      * This may change in future versions with no backwards compatibility. However, when BitFrag hits its first stable
      * release, there will be backwards compatibility in case of fragment format is changed.
      */
-    public static final short SUPPORTED_FRAGMENT_VERSION = (short)0xDCA1;    // Calculated by fair die roll
+    public static final short SUPPORTED_FRAGMENT_VERSION = (short)0x5E27;    // Calculated by fair die roll
+
+    /**
+     * Size (in bytes) of the chunks of original data processed at a time in stream mode.
+     * This must be even in order to keep the byte interleaving of x1 and x2 aligned between chunks.
+     */
+    public static final int STREAM_CHUNK_SIZE = 64 * 1024;
 
 
     /**
@@ -40,238 +91,1589 @@ public class XORAlgorithm implements Algorithm {
     }
 
 
+    /**
+     * Select the kernel performing the actual splitting and merging.
+     * All kernels produce identical results, they only differ in speed.
+     * @param kernel Kernel to use
+     */
+    public void setKernel(XORKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    /**
+     * Get the kernel performing the actual splitting and merging.
+     * @return Kernel in use
+     */
+    public XORKernel getKernel() {
+        return kernel;
+    }
+
+    /**
+     * Enable parallel processing in block mode.
+     * Data at least as large as the parallel threshold is split into stripes that are processed on the pool, and the
+     * digests (which are independent of each other) are calculated concurrently. The parallelism is that of the pool,
+     * e.g. ForkJoinPool.commonPool() or new ForkJoinPool(n).
+     * @param pool Pool to run on, or null to stay single-threaded
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the data size below which block mode stays single-threaded even if a pool is set.
+     * @param parallelThreshold Threshold (in bytes)
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+
+    /**
+     * Select the digest used for the cluster and fragment IDs of new clusters.
+     * The digest is recorded in the fragment headers, so reconstruction always uses whatever the fragments were
+     * created with.
+     * @param digest Digest to use
+     */
+    public void setDigest(DigestSpec digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Get the digest used for the cluster and fragment IDs of new clusters.
+     * @return Digest in use
+     */
+    public DigestSpec getDigest() {
+        return digest;
+    }
+
+
+    /**
+     * Enable verify mode.
+     * Normally, a full cluster is reconstructed from x1 and x2 alone and the parity is never looked at. In verify mode
+     * the surplus parity is used to check upon the other pieces, so that the report tells exactly which fragment (if
+     * any) is corrupted (fails its own digest) or tampered (passes its own digest but disagrees with the rest). This
+     * is done in the same pass as the reconstruction, at the cost of reading the parity and digesting all payloads.
+     * Only block mode with all three pieces present is affected.
+     * @param verify true to enable, false to disable
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Enable the striped layout for new clusters.
+     * The original data is divided into stripes of this size, and the digest of each stripe is recorded in the stripe
+     * table of every fragment header. This lets reconstructRange() restore and verify any range of the data while only
+     * reading the stripes covering it. Smaller stripes mean less surplus reading, but larger headers (16 bytes per
+     * stripe). The payloads themselves are laid out exactly the same either way.
+     * @param stripeSize Stripe size (in bytes, even), or 0 to not stripe
+     */
+    public void setStripeSize(int stripeSize) {
+        if(stripeSize < 0 || stripeSize % 2 != 0) {
+            throw new IllegalArgumentException("Stripe size must be even: " + stripeSize);
+        }
+        this.stripeSize = stripeSize;
+    }
+
+    /**
+     * Get the stripe size of new clusters.
+     * @return Stripe size (in bytes), or 0 if not striped
+     */
+    public int getStripeSize() {
+        return stripeSize;
+    }
+
+    /**
+     * Select the pool of the intermediate chunk buffers of stream mode.
+     * @param bufferPool Pool with buffers of at least STREAM_CHUNK_SIZE bytes
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        if(bufferPool.getBufferSize() < STREAM_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Pool buffers are smaller than STREAM_CHUNK_SIZE: " + bufferPool.getBufferSize());
+        }
+        this.bufferPool = bufferPool;
+    }
+
+
     /**
      * Perform data fragmentation.
-     * @param input The raw input data to frag
+     * Single-threaded, the data is split and digested a chunk at a time so that every byte is only brought into the
+     * cache once. In parallel, the stripes are split first and the four digests are then calculated concurrently.
+     * @param input The raw input data to frag, i.e. its remaining bytes, in a heap or direct buffer (its position is
+     * left untouched)
      * @return A fresh complete cluster
      */
     public Cluster<XORFragment> fragment(ByteBuffer input) {
-        Cluster<XORFragment> clust = new Cluster<XORFragment>(UUID.nameUUIDFromBytes(input.array()));
+        Metrics metrics = Metrics.getActive();
+        if(metrics == null) {
+            return fragmentBlock(input);
+        }
+        long start = System.nanoTime();
+        Cluster<XORFragment> clust = fragmentBlock(input);
+        metrics.encoded(input.remaining(), System.nanoTime() - start);
+        return clust;
+    }
+
+    private Cluster<XORFragment> fragmentBlock(ByteBuffer input) {
+        // Work on the remaining bytes straight from the backing array if there is one, otherwise on a copy
+        final int size = input.remaining();
+        final byte[] dataRaw;
+        final int base;
+        if(input.hasArray()) {
+            dataRaw = input.array();
+            base = input.arrayOffset() + input.position();
+        } else {
+            dataRaw = new byte[size];
+            input.duplicate().get(dataRaw);
+            base = 0;
+        }
+        final ForkJoinPool pool = size >= parallelThreshold ? this.pool : null;
 
         // Perform fragmentation
-        byte[] dataRaw = input.array();                      int dri = 0;
-        int fragSize = dataRaw.length / 2;
-        int fragSizeSpare = dataRaw.length % 2;             // Is, clearly, either 0 or 1
-        byte[] x1 = new byte[fragSize + fragSizeSpare];     int x1i = 0;
-        byte[] x2 = new byte[fragSize];                     int x2i = 0;
-        byte[] p = new byte[fragSize + fragSizeSpare];      int pi = 0;
-        while(dri < dataRaw.length) {
-            // This is every even byte
-            x1[x1i++] = dataRaw[dri++];
-            if(dri < dataRaw.length) {  // Yes, same check, I know...
-                // This is every odd byte
-                x2[x2i++] = dataRaw[dri++];
-                p[pi++] = (byte)(x1[x1i-1] ^ x2[x2i-1]);  // XOR operation to calculate parity
-            } else {
-                // Special case: There is no x2 for this x1 byte. Pad it!
-                p[pi++] = x1[x1i-1];    // Actually, XOR operation with 0x00 pad is not necessary as it evaluates to x1
-                // The payload size parameter will make sure that the x2 pad is not accidentally "included" during reconstruction
+        int fragSize = size / 2;
+        int fragSizeSpare = size % 2;             // Is, clearly, either 0 or 1
+        byte[] x1 = new byte[fragSize + fragSizeSpare];
+        byte[] x2 = new byte[fragSize];
+        byte[] p = new byte[fragSize + fragSizeSpare];
+        final ByteBuffer data = ByteBuffer.wrap(dataRaw, base, size);
+        final ByteBuffer x1Buf = ByteBuffer.wrap(x1);
+        final ByteBuffer x2Buf = ByteBuffer.wrap(x2);
+        final ByteBuffer pBuf = ByteBuffer.wrap(p);
+        final int stripeSize = this.stripeSize;
+        final UUID[] stripeDigests = stripeSize == 0 ? null : new UUID[stripeCount(size, stripeSize)];
+        UUID clusterId, x1Id, x2Id, pId;
+        if(pool == null) {
+            UUIDDigester dataDigest = digest.newDigester();
+            UUIDDigester x1Digest = digest.newDigester();
+            UUIDDigester x2Digest = digest.newDigester();
+            UUIDDigester pDigest = digest.newDigester();
+            UUIDDigester stripeDigest = stripeSize == 0 ? null : digest.newDigester();
+            for(int offset = 0; offset < size; offset += STREAM_CHUNK_SIZE) {
+                int length = Math.min(STREAM_CHUNK_SIZE, size - offset);
+                int half = offset / 2;
+                kernel.split(at(data, offset), at(x1Buf, half), at(x2Buf, half), at(pBuf, half), length);
+                dataDigest.update(dataRaw, base + offset, length);
+                if(stripeDigest != null) {
+                    updateStripes(stripeDigest, stripeDigests, stripeSize, dataRaw, base + offset, offset, length, size);
+                }
+                x1Digest.update(x1, half, (length + 1) / 2);
+                x2Digest.update(x2, half, length / 2);
+                pDigest.update(p, half, (length + 1) / 2);
+            }
+            clusterId = dataDigest.digest();
+            x1Id = x1Digest.digest();
+            x2Id = x2Digest.digest();
+            pId = pDigest.digest();
+        } else {
+            ForkJoinTask<UUID> clusterTask = digest(pool, digest, data);    // Runs alongside the fragmentation
+            Stripes.process(pool, size, Stripes.DEFAULT_STRIPE_SIZE, new Stripes.Operation() {
+                @Override
+                public void process(int offset, int length) {
+                    // Stripes are of even size, so every stripe starts with an x1 byte
+                    kernel.split(at(data, offset), at(x1Buf, offset / 2), at(x2Buf, offset / 2), at(pBuf, offset / 2), length);
+                }
+            });
+            if(stripeSize != 0) {
+                // Digest batches of whole stripes per task, so that small stripes don't make for millions of tasks
+                final DigestSpec spec = digest;
+                int batchSize = stripeSize * Math.max(1, Stripes.DEFAULT_STRIPE_SIZE / stripeSize);
+                Stripes.process(pool, size, batchSize, new Stripes.Operation() {
+                    @Override
+                    public void process(int offset, int length) {
+                        UUIDDigester stripeDigest = UUIDDigester.forThread(spec);
+                        updateStripes(stripeDigest, stripeDigests, stripeSize, dataRaw, base + offset, offset, length, size);
+                    }
+                });
+            }
+            ForkJoinTask<UUID> x1Task = digest(pool, digest, x1Buf);
+            ForkJoinTask<UUID> x2Task = digest(pool, digest, x2Buf);
+            ForkJoinTask<UUID> pTask = digest(pool, digest, pBuf);
+            clusterId = clusterTask.join();
+            x1Id = x1Task.join();
+            x2Id = x2Task.join();
+            pId = pTask.join();
+        }
+
+        Cluster<XORFragment> clust = new Cluster<XORFragment>(clusterId);
+        int clusterDataSize = size;
+        clust.add(new XORFragment(SUPPORTED_FRAGMENT_VERSION, digest, clust.getId(), x1Id, clusterDataSize, (byte)1, stripeSize, stripeDigests, x1Buf));   // TODO Use enum or something neat to represent the piece parameter?
+        clust.add(new XORFragment(SUPPORTED_FRAGMENT_VERSION, digest, clust.getId(), x2Id, clusterDataSize, (byte)2, stripeSize, stripeDigests, x2Buf));
+        clust.add(new XORFragment(SUPPORTED_FRAGMENT_VERSION, digest, clust.getId(), pId, clusterDataSize, (byte)3, stripeSize, stripeDigests, pBuf));
+        return clust;
+    }
+
+    /**
+     * Calculate the amount of stripes of new data, making sure the stripe table can be parsed back.
+     */
+    private static int stripeCount(long dataSize, int stripeSize) {
+        long count = XORFragment.stripeCount(dataSize, stripeSize);
+        if(count > XORFragment.MAX_STRIPE_COUNT) {
+            throw new IllegalArgumentException("Too many stripes (" + count + "), use a larger stripe size");
+        }
+        return (int)count;
+    }
+
+    /**
+     * Feed original data into the stripe digests, completing the digest of every stripe that ends within it.
+     * The data of each stripe must be fed in order, starting at a stripe boundary.
+     * @param stripeDigest Digester to use (left reset)
+     * @param stripeDigests Stripe table to fill in
+     * @param stripeSize Stripe size
+     * @param data Array holding the data
+     * @param index Index of the data within the array
+     * @param offset Offset of the data within the original data
+     * @param length Length of the data
+     * @param dataSize Size of all original data
+     */
+    private static void updateStripes(UUIDDigester stripeDigest, UUID[] stripeDigests, int stripeSize, byte[] data, int index, long offset, int length, long dataSize) {
+        while(length > 0) {
+            int stripe = (int)(offset / stripeSize);
+            long stripeEnd = Math.min((long)(stripe + 1) * stripeSize, dataSize);
+            int n = (int)Math.min(length, stripeEnd - offset);
+            stripeDigest.update(data, index, n);
+            index += n;
+            offset += n;
+            length -= n;
+            if(offset == stripeEnd) {
+                stripeDigests[stripe] = stripeDigest.digest();
+            }
+        }
+    }
+
+    /**
+     * Calculate the digest (UUID) of a buffer on a pool.
+     * @param pool Pool to run on
+     * @param spec Digest to calculate
+     * @param data Data to digest (the remaining bytes, the buffer itself is left untouched)
+     * @return Task to join for the digest
+     */
+    private static ForkJoinTask<UUID> digest(ForkJoinPool pool, final DigestSpec spec, final ByteBuffer data) {
+        ForkJoinTask<UUID> task = ForkJoinTask.adapt(new Callable<UUID>() {
+            @Override
+            public UUID call() {
+                return UUIDDigester.digest(spec, data);
+            }
+        });
+        pool.execute(task);
+        return task;
+    }
+
+    /**
+     * Get an independent view of a buffer positioned a number of bytes past its current position.
+     * @return Positioned duplicate, or null if the buffer is null
+     */
+    private static ByteBuffer at(ByteBuffer buffer, int skip) {
+        if(buffer == null) {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(buffer.position() + skip);
+        return view;
+    }
+
+    /**
+     * Perform data fragmentation in stream mode.
+     * The input is consumed in chunks of STREAM_CHUNK_SIZE bytes, so only a bounded amount of memory is used no matter
+     * how large the input is. All digests (UUIDs) are calculated incrementally as the data flows through.
+     * Since the digests are part of the fragment headers but aren't known until all data has been processed, a blank
+     * header is reserved at the current position of each output channel and filled in once the payload is written.
+     * When this method returns, each output channel is positioned at the end of its fragment.
+     * The striped layout (see setStripeSize()) needs the size of the stripe table, and hence of the input, up front. It
+     * is thus only supported for inputs that are a SeekableByteChannel (e.g. a FileChannel), read from their position.
+     * @param input Channel to read the raw input data from (until end-of-stream)
+     * @param x1 Destination channel for the x1 fragment
+     * @param x2 Destination channel for the x2 fragment
+     * @param p Destination channel for the parity fragment
+     * @return A fresh complete cluster of header-only fragments (the payloads reside in the output channels)
+     * @throws IOException Upon a failed channel operation, or if a striped input changes size meanwhile
+     * @throws IllegalArgumentException If striped, but the input isn't a SeekableByteChannel
+     */
+    public Cluster<XORFragment> fragment(ReadableByteChannel input, SeekableByteChannel x1, SeekableByteChannel x2, SeekableByteChannel p) throws IOException {
+        Metrics metrics = Metrics.getActive();
+        if(metrics == null) {
+            return fragmentStream(input, x1, x2, p);
+        }
+        long start = System.nanoTime();
+        Cluster<XORFragment> clust = fragmentStream(input, x1, x2, p);
+        metrics.encoded(clust.iterator().next().getClusterDataSize(), System.nanoTime() - start);
+        return clust;
+    }
+
+    private Cluster<XORFragment> fragmentStream(ReadableByteChannel input, SeekableByteChannel x1, SeekableByteChannel x2, SeekableByteChannel p) throws IOException {
+        int stripeSize = this.stripeSize;
+        long expectedSize = -1;
+        UUID[] stripeDigests = null;
+        UUIDDigester stripeDigest = null;
+        if(stripeSize != 0) {
+            if(!(input instanceof SeekableByteChannel)) {
+                throw new IllegalArgumentException("Striped stream mode requires the input size to be known up front");
             }
+            SeekableByteChannel seekable = (SeekableByteChannel)input;
+            expectedSize = seekable.size() - seekable.position();
+            stripeDigests = new UUID[stripeCount(expectedSize, stripeSize)];
+            stripeDigest = digest.newDigester();
         }
 
-        int clusterDataSize = dataRaw.length;
-        clust.add(new XORFragment(SUPPORTED_FRAGMENT_VERSION, clust.getId(), UUID.nameUUIDFromBytes(x1), clusterDataSize, (byte)1, ByteBuffer.wrap(x1)));   // TODO Use enum or something neat to represent the piece parameter?
-        clust.add(new XORFragment(SUPPORTED_FRAGMENT_VERSION, clust.getId(), UUID.nameUUIDFromBytes(x2), clusterDataSize, (byte)2, ByteBuffer.wrap(x2)));
-        clust.add(new XORFragment(SUPPORTED_FRAGMENT_VERSION, clust.getId(), UUID.nameUUIDFromBytes(p), clusterDataSize, (byte)3, ByteBuffer.wrap(p)));
+        // Reserve room for the headers
+        int headerSize = XORFragment.HEADER_SIZE + (stripeDigests == null ? 0 : stripeDigests.length * XORFragment.STRIPE_ENTRY_SIZE);
+        long x1Start = x1.position();
+        long x2Start = x2.position();
+        long pStart = p.position();
+        ChannelUtil.writeFully(x1, ByteBuffer.allocate(headerSize));
+        ChannelUtil.writeFully(x2, ByteBuffer.allocate(headerSize));
+        ChannelUtil.writeFully(p, ByteBuffer.allocate(headerSize));
+
+        UUIDDigester dataDigest = digest.newDigester();
+        UUIDDigester x1Digest = digest.newDigester();
+        UUIDDigester x2Digest = digest.newDigester();
+        UUIDDigester pDigest = digest.newDigester();
+        ByteBuffer chunk = bufferPool.acquire(STREAM_CHUNK_SIZE);
+        ByteBuffer x1Chunk = bufferPool.acquire(STREAM_CHUNK_SIZE / 2);
+        ByteBuffer x2Chunk = bufferPool.acquire(STREAM_CHUNK_SIZE / 2);
+        ByteBuffer pChunk = bufferPool.acquire(STREAM_CHUNK_SIZE / 2);
+        long dataSize = 0;
+        long x1Size = 0;
+        long x2Size = 0;
+        long pSize = 0;
+
+        try {
+            // Chunks are always read full, so only the very last chunk may be of odd length
+            int read;
+            while((read = ChannelUtil.readFully(input, chunk)) > 0) {
+                chunk.flip();
+                dataDigest.update(chunk.array(), 0, read);
+                if(stripeDigest != null) {
+                    if(dataSize + read > expectedSize) {
+                        throw new IOException("Input grew during fragmentation");
+                    }
+                    updateStripes(stripeDigest, stripeDigests, stripeSize, chunk.array(), 0, dataSize, read, expectedSize);
+                }
+                dataSize += read;
+
+                kernel.split(chunk, x1Chunk, x2Chunk, pChunk, read);
+                x1Chunk.flip();
+                x2Chunk.flip();
+                pChunk.flip();
+                x1Digest.update(x1Chunk.array(), 0, x1Chunk.limit());
+                x2Digest.update(x2Chunk.array(), 0, x2Chunk.limit());
+                pDigest.update(pChunk.array(), 0, pChunk.limit());
+                x1Size += x1Chunk.limit();
+                x2Size += x2Chunk.limit();
+                pSize += pChunk.limit();
+                ChannelUtil.writeFully(x1, x1Chunk);
+                ChannelUtil.writeFully(x2, x2Chunk);
+                ChannelUtil.writeFully(p, pChunk);
+
+                chunk.clear();
+                x1Chunk.clear();
+                x2Chunk.clear();
+                pChunk.clear();
+            }
+        } finally {
+            bufferPool.release(chunk);
+            bufferPool.release(x1Chunk);
+            bufferPool.release(x2Chunk);
+            bufferPool.release(pChunk);
+        }
+
+        if(stripeDigest != null && dataSize != expectedSize) {
+            throw new IOException("Input shrunk during fragmentation");
+        }
+
+        // Now that the digests are known, fill in the headers
+        Cluster<XORFragment> clust = new Cluster<XORFragment>(dataDigest.digest());
+        XORFragment x1Frag = new XORFragment(SUPPORTED_FRAGMENT_VERSION, digest, clust.getId(), x1Digest.digest(), dataSize, (byte)1, stripeSize, stripeDigests, x1Size);
+        XORFragment x2Frag = new XORFragment(SUPPORTED_FRAGMENT_VERSION, digest, clust.getId(), x2Digest.digest(), dataSize, (byte)2, stripeSize, stripeDigests, x2Size);
+        XORFragment pFrag = new XORFragment(SUPPORTED_FRAGMENT_VERSION, digest, clust.getId(), pDigest.digest(), dataSize, (byte)3, stripeSize, stripeDigests, pSize);
+        writeHeaderAt(x1, x1Start, x1Frag);
+        writeHeaderAt(x2, x2Start, x2Frag);
+        writeHeaderAt(p, pStart, pFrag);
+        clust.add(x1Frag);
+        clust.add(x2Frag);
+        clust.add(pFrag);
         return clust;
     }
 
+    /**
+     * Write a fragment header into a previously reserved spot of a channel, then restore the channel position.
+     */
+    private static void writeHeaderAt(SeekableByteChannel channel, long position, XORFragment frag) throws IOException {
+        long end = channel.position();
+        channel.position(position);
+        new BinaryXORFragmentWriter(frag).writeHeader(channel);
+        channel.position(end);
+    }
+
     /**
      * Attempt a data reconstruction operation by the specified cluster.
+     * The data is merged straight into the output buffer (from its position), which is flipped afterwards. Payloads
+     * and output may be heap, direct or mapped buffers alike, so e.g. mapped fragment files can be reconstructed
+     * into a mapped output file without any heap copies. If the cluster digest check fails, the content of the output
+     * buffer is undefined.
+     * The headers are concurred upon in a single pass over the cluster, the pieces are looked up by their slots and
+     * the digest is verified with a digester owned by the calling thread, so apart from a few buffer views nothing
+     * is allocated per call. This keeps the garbage collector out of the way when lots of small clusters are reconstructed into
+     * reused output buffers.
      * @param output Destination buffer to write the reconstructed data, if possible
      * @return Reconstruction report with further details
      * @throws InsufficientFragmentsException If insufficient fragments are provided by the cluster
      * @throws ReconstructionException if the cluster digest (UUID) check fails
+     * @throws BufferOverflowException If the output buffer has less room than the data size (checked up front)
+     * @throws ReadOnlyBufferException If the output buffer is read-only (checked up front)
      */
     public ReconstructionReport reconstruct(ByteBuffer output) throws InsufficientFragmentsException, ReconstructionException {
-        Iterator<XORFragment> iter = cluster.iterator();
-        byte[] dataRaw = new byte[concurDataSize()];    int dri = 0;    // TODO Use Java NIO? Yes, use Java NIO!
-        byte[] x1 = null;                       int x1i = 0;
-        byte[] x2 = null;                       int x2i = 0;
-        byte[] p = null;                        int pi = 0;
-
-        // Find/sort the different pieces (fragments)
-        while(iter.hasNext()) {
-            XORFragment f = iter.next();
-            switch(f.getPiece()) {      // Heh, it's not everyday you get a reason to use switch-case... Is this uncool?
-                case 1:
-                    x1 = f.getPayload().array();
-                    break;
-                case 2:
-                    x2 = f.getPayload().array();
-                    break;
-                case 3:
-                    p = f.getPayload().array();
-                    break;
-                default:
-                    // This wrong (at the moment of XOR test implementation)
-                    break;
-            }
+        Metrics metrics = Metrics.getActive();
+        if(metrics == null) {
+            return reconstructBlock(output);
         }
+        long start = System.nanoTime();
+        int position = output.position();
+        ReconstructionReport report = null;
+        try {
+            report = reconstructBlock(output);
+            return report;
+        } finally {
+            metrics.decoded(output.limit() - position, System.nanoTime() - start, report);
+        }
+    }
+
+    private ReconstructionReport reconstructBlock(ByteBuffer output) throws InsufficientFragmentsException, ReconstructionException {
+        // Concur upon the headers, then find the different pieces (fragments) among those consenting
+        XORFragment[] frags = new XORFragment[3];
+        long dataSize;
+        DigestSpec spec;
+        Set<Fragment> dissenting;
+        HeaderConsensus consensus = concur();
+        try {
+            dataSize = consensus.getDataSize();
+            spec = consensus.getDigest();
+            select(consensus, frags);
+            dissenting = consensus.getDissenters();
+        } finally {
+            consensus.reset();
+        }
+        if(dataSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Cluster data size exceeds block mode limits: " + dataSize);
+        }
+        final int size = (int)dataSize;
+        if(output.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        if(output.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        final ForkJoinPool pool = size >= parallelThreshold ? this.pool : null;
+        XORFragment x1Frag = frags[0];
+        XORFragment x2Frag = frags[1];
+        XORFragment pFrag = frags[2];
+        ByteBuffer x1 = x1Frag == null ? null : x1Frag.getPayload();
+        ByteBuffer x2 = x2Frag == null ? null : x2Frag.getPayload();
+        ByteBuffer p = pFrag == null ? null : pFrag.getPayload();
 
         // Now, let's see what we have
-        // TODO Add the case where all fragments are known. In this case, parity should be used as a verification to detect/correct malicious fragment modifications
-        // Call this "consensus check"
+        int missing = (x1 == null ? 1 : 0) + (x2 == null ? 1 : 0) + (p == null ? 1 : 0);
         if(x1 != null && x2 != null) {
             // This is the easiest case: Just byte-by-byte concatenate x1 and x2
-            while(dri < dataRaw.length) {
-                if(dri % 2 == 0) {
-                    // This is every even byte
-                    if(x1i < x1.length) {
-                        dataRaw[dri++] = x1[x1i++];
-                    } else {
-                        // This is an erroneous state (x1 is less than required)!
-                        throw new Error("Erroneous state during reconstruction!");
-                    }
-                } else {
-                    // This is every odd byte
-                    if(x2i < x2.length) {
-                        dataRaw[dri++] = x2[x2i++];
-                    } else {
-                        // There's an x1 but no x2. The previous byte was the last one. We're done here.
-                        // Actually, this is an erroneous state (x2 is smaller than required)
-                        throw new Error("Erroneous state during reconstruction!");
-                    }
-                }
-            }
         } else if(x1 != null && p != null) {
             // In this case, we've got x1 and the parity
-            while(dri < dataRaw.length) {
-                if(x1i < x1.length) {
-                    if(dri % 2 == 0) {
-                        // Even: Time for a x1 byte (this is trivial)
-                        dataRaw[dri++] = x1[x1i];   // Note that x1i is NOT incremented! The next byte (parity) will need this intact (see the while statement)
-                    } else {
-                        // Odd: Time for an x2 byte. This need to be calculated from parity.
-                        if(pi < p.length) {
-                            dataRaw[dri++] = (byte)(x1[x1i++] ^ p[pi++]);   // XOR operation to calculate x2 from parity
-                        } else {
-                            // This is an erroneous state (p is smaller than necessary)!
-                            throw new Error("Erroneous state during reconstruction!");
-                            // Special case: There's an x1 but no p. This is the last byte.
-                            //dataRaw[dri++] = x1[x1i++] /* ^ 0x00*/;         // XOR with padding not necessary
-                        }
-                    }
-                } else {
-                    // This is an erroneous condition (x1 is smaller than necessary)!
-                    throw new Error("Erroneous state during reconstruction!");
-                }
-            }
         } else if(x2 != null && p != null) {
             // This is _almost_ the same case as above, but with x2 instead if x1 (and a different special case)
-            while(dri < dataRaw.length) {
-                if(x2i < x2.length) {
-                    if(dri % 2 == 0) {
-                        // Even: Time for an x1 byte. This needs to be calculated from parity.
-                        if(pi < p.length) {
-                            dataRaw[dri++] = (byte)(x2[x2i] ^ p[pi++]); // XOR operation to calculate x1 from parity
-                            // Note that x2i is NOT incremented!
-                        } else {
-                            // This is an erroneous condition (p is smaller than necessary)!
-                            throw new Error("Erroneous state during reconstruction!");
-                            // Special case: There's an x2 but no p left. Use padding.
-                            //dataRaw[dri++] = x2[x2i++]/* ^ 0x00*/;  // XOR with padding not necessary
-                        }
-                    } else {
-                        // Odd: This is an x2 byte
-                        dataRaw[dri++] = x2[x2i++];
-                    }
-                } else {
-                    // Special case: There is an x1 byte (missing) and no x2 byte. Use padding with the next (last) parity byte.
-                    if(pi < p.length) {
-                        dataRaw[dri++] = p[pi++]/* ^ 0x00*/;    // XOR with padding not necessary
-                    } else {
-                        // This is an erroneous state (p is smaller than necessary)!
-                        throw new Error("Erroneous state during reconstruction!");
-                    }
-                }
-            }
         } else {
             // There are insufficient fragments to reconstruct the data!
-            int missing = 3 - (x1 == null ? 1 : 0) - (x2 == null ? 1 : 0) - (p == null ? 1 : 0);
             throw new InsufficientFragmentsException(missing);
         }
+        if((x1 != null && x1.remaining() < (size + 1) / 2) ||
+                (x2 != null && x2.remaining() < size / 2) ||
+                (p != null && p.remaining() < (size + 1) / 2)) {
+            // This is an erroneous state (some fragment is smaller than required)!
+            throw new Error("Erroneous state during reconstruction!");
+        }
+        if(missing == 0 && verify) {
+            // The parity is surplus, so use it to check upon the others (this is the "consensus check")
+            return verify(x1Frag, x2Frag, pFrag, output, size, spec, dissenting);
+        }
 
-        // Calculate (and verify) the supplied digest with the reconstructed data
-        UUID verification = UUID.nameUUIDFromBytes(dataRaw);
-        if(!verification.equals(cluster.getId())) {
+        // Verify the supplied digest with the reconstructed data
+        UUIDDigester dataDigest = merge(x1, x2, x1 != null && x2 != null ? null : p, output, size, spec, pool);
+        if(!dataDigest.digestEquals(cluster.getId())) {
             // Verification failed
-            throw new ReconstructionException(cluster.getId(), verification);
+            throw new ReconstructionException(cluster.getId(), dataDigest.lastDigest());
         } else {
             // All cases have been covered. Success!
-            output.put(dataRaw);    // Copy the internal buffer into the caller specified buffer
+            output.position(output.position() + size);
             output.flip();
-            // TODO Not sure about this... Just returning this might be easier? Or put() in the output buffer in the first place!
 
-            int missing = (x1 == null ? 1 : 0) + (x2 == null ? 1 : 0) + (p == null ? 1 : 0);
-            // TODO Actually identify the corrupted and tempered fragments
-            return new ReconstructionReport(missing, new CopyOnWriteArraySet<Fragment>(), new CopyOnWriteArraySet<Fragment>());
+            // Corrupted and tampered fragments are only identified in verify mode (see setVerify())
+            return report(missing, dissenting);
         }
 
         /*
-         * In theory, this algorithm is very parallelizable ("parallelizable" is now a word!). But given the simplicity
-         * of the core operations (the XOR operation and some occasional branches) this may be counter productive.
-         * The added complexity of spawning threads and distributing work - not to mention cache coherency - might
-         * simply end up with greater execution times. However, if the core algorithm operations were more
-         * computationally complex, parallelizing this method could be beneficial (if the computations exceeds the
-         * IO_WAIT time). Might be worthwhile a consideration for the Reed-Solomon algorithm?
+         * In theory, this algorithm is very parallelizable ("parallelizable" is now a word!). Given the simplicity of
+         * the core operations, spawning a task per byte (or per cache line) would be counter productive, so the data
+         * is processed in large stripes instead (see setForkJoinPool()). Stripes never share a cache line except at
+         * their edges, and the digest calculation - which is inherently sequential - is what bounds the speedup.
          */
     }
 
-    // TODO Add consensus check for the fragment headers (concurDataSize(), etc)
-
     /**
-     * Concur upon the data size.
-     * This is a non-trivial operation.
-     * @see net.comploud.code.bitfrag.Algorithm
-     * @return Data size (in bytes)
-     * @throws InsufficientFragmentsException If cluster is empty
+     * Merge a sufficient pair of pieces into the output and digest the result.
+     * The output buffer itself is left untouched (its position is where the data starts).
+     * @param x1 x1 payload, or null if not used
+     * @param x2 x2 payload, or null if not used
+     * @param p Parity payload, or null if not used
+     * @param output Destination buffer
+     * @param size Data size
+     * @param spec Digest to calculate
+     * @param pool Pool to run on, or null to stay single-threaded
+     * @return Digester of the calling thread, fed with the merged data
      */
-    @Override
-    public int concurDataSize() throws InsufficientFragmentsException {
-        // Perform consensus negotiation recursively upon the cluster
-        return concurDataSizeRecv(new HashMap<Integer, Integer>(), cluster.iterator());
-    }
-    // TODO Move this method (and helper method) to an AbstractAlgorithm implementation? If moving of getClusterDataSize() to Fragment interface is a good idea, that is...
-    private int concurDataSizeRecv(Map<Integer, Integer> observed, Iterator<XORFragment> left) throws InsufficientFragmentsException {
-        if(left.hasNext()) {
-            // Process the next fragment
-            XORFragment frag = left.next();
-            int fragValue = frag.getClusterDataSize();
-            Integer count = observed.get(fragValue);
-            if(count == null) {
-                // This is the first observation of this value
-                observed.put(fragValue, 1);
-            } else {
-                // Increase the count of this observation
-                ++count;
-                //observed.put(fragValue, count);   // Not necessary since count is a reference to the Integer object already in the map
+    private UUIDDigester merge(ByteBuffer x1, ByteBuffer x2, ByteBuffer p, ByteBuffer output, int size, DigestSpec spec, ForkJoinPool pool) {
+        // The kernel moves buffer positions, so work on views rather than the shared payloads themselves
+        final ByteBuffer x1Buf = x1 == null ? null : x1.duplicate();
+        final ByteBuffer x2Buf = x2 == null ? null : x2.duplicate();
+        final ByteBuffer pBuf = p == null ? null : p.duplicate();
+        final ByteBuffer data = output.duplicate();
+        data.limit(data.position() + size);
+        UUIDDigester dataDigest;
+        if(pool == null) {
+            // Merge and digest a chunk at a time, while it's still in the cache
+            dataDigest = UUIDDigester.forThread(spec);
+            int start = data.position();
+            for(int offset = 0; offset < size; offset += STREAM_CHUNK_SIZE) {
+                int length = Math.min(STREAM_CHUNK_SIZE, size - offset);
+                data.position(start + offset);
+                kernel.merge(x1Buf, x2Buf, pBuf, data, length);
+                data.position(start + offset);
+                data.limit(start + offset + length);
+                dataDigest.update(data);
+                data.limit(start + size);
             }
+        } else {
+            Stripes.process(pool, size, Stripes.DEFAULT_STRIPE_SIZE, new Stripes.Operation() {
+                @Override
+                public void process(int offset, int length) {
+                    kernel.merge(at(x1Buf, offset / 2), at(x2Buf, offset / 2), at(pBuf, offset / 2), at(data, offset), length);
+                }
+            });
+            dataDigest = UUIDDigester.forThread(spec);
+            dataDigest.update(data);
+        }
+        return dataDigest;
+    }
+
+    /**
+     * Reconstruct from a full cluster while checking upon every fragment (see setVerify()).
+     * A single fused pass merges x1 and x2, checks the parity against them and digests the data as well as all three
+     * payloads, a chunk at a time while it's in the cache. That is enough to tell which fragment (if any) is bad:
+     * <ul>
+     * <li>Data digest correct: x1 and x2 are fine. A parity failing its own digest is corrupted, a parity with a
+     * valid digest that doesn't match x1 ^ x2 is tampered.</li>
+     * <li>Data digest incorrect: x1 or x2 is bad. The one failing its own digest (or, if neither does, each in turn)
+     * is recovered from the parity instead, and whichever replacement verifies pinpoints the bad fragment.</li>
+     * </ul>
+     * Only the second case takes further passes over the data.
+     */
+    private ReconstructionReport verify(XORFragment x1Frag, XORFragment x2Frag, XORFragment pFrag, ByteBuffer output, int size, DigestSpec spec, Set<Fragment> dissenting) throws ReconstructionException {
+        ByteBuffer x1 = x1Frag.getPayload().duplicate();
+        ByteBuffer x2 = x2Frag.getPayload().duplicate();
+        ByteBuffer p = pFrag.getPayload().duplicate();
+        ByteBuffer data = output.duplicate();
+        int start = data.position();
+        int x1Start = x1.position();
+        int x2Start = x2.position();
+        int pStart = p.position();
+        data.limit(start + size);
+        UUIDDigester dataDigest = spec.newDigester();
+        UUIDDigester x1Digest = spec.newDigester();
+        UUIDDigester x2Digest = spec.newDigester();
+        UUIDDigester pDigest = spec.newDigester();
+        boolean parityOk = true;
+        for(int offset = 0; offset < size; offset += STREAM_CHUNK_SIZE) {
+            int length = Math.min(STREAM_CHUNK_SIZE, size - offset);
+            int half = offset / 2;
+            data.position(start + offset);
+            x1.position(x1Start + half);
+            x2.position(x2Start + half);
+            kernel.merge(x1, x2, null, data, length);
+            parityOk = parityOk && parityHolds(x1, x1Start + half, x2, x2Start + half, p, pStart + half, length);
+            update(dataDigest, data, start + offset, length);
+            update(x1Digest, x1, x1Start + half, (length + 1) / 2);
+            update(x2Digest, x2, x2Start + half, length / 2);
+            update(pDigest, p, pStart + half, (length + 1) / 2);
+        }
+
+        // Payloads may be longer than required, and the fragment digests cover all of it
+        int x1Used = (size + 1) / 2;
+        int x2Used = size / 2;
+        update(x1Digest, x1, x1Start + x1Used, x1.limit() - x1Start - x1Used);
+        update(x2Digest, x2, x2Start + x2Used, x2.limit() - x2Start - x2Used);
+        update(pDigest, p, pStart + x1Used, p.limit() - pStart - x1Used);
+        boolean dataOk = dataDigest.digestEquals(cluster.getId());
+        UUID verification = dataDigest.lastDigest();
+        boolean x1Ok = x1Digest.digestEquals(x1Frag.getId());
+        boolean x2Ok = x2Digest.digestEquals(x2Frag.getId());
+        boolean pOk = pDigest.digestEquals(pFrag.getId());
 
-            // Proceed with recursion
-            return concurDataSizeRecv(observed, left);
+        Set<Fragment> corrupted = new CopyOnWriteArraySet<Fragment>();
+        Set<Fragment> tampered = new CopyOnWriteArraySet<Fragment>();
+        if(dataOk) {
+            if(!x1Ok) {
+                corrupted.add(x1Frag);      // The data is fine, so it's the fragment ID that's off
+            }
+            if(!x2Ok) {
+                corrupted.add(x2Frag);
+            }
         } else {
-            // There are no more fragments to inspect
-
-            // Find the most observed value
-            Map.Entry<Integer, Integer> winner = null;
-            for(Map.Entry<Integer, Integer> observation : observed.entrySet()) {
-                if(winner == null) {
-                    winner = observation;
-                } else if(observation.getValue() > winner.getValue()) {
-                    winner = observation;
+            // Recover the bad one of x1 and x2 from the parity, starting with the most likely suspect
+            XORFragment[] suspects = !x1Ok ? new XORFragment[] { x1Frag } : !x2Ok ? new XORFragment[] { x2Frag } : new XORFragment[] { x1Frag, x2Frag };
+            XORFragment culprit = null;
+            for(XORFragment suspect : suspects) {
+                UUIDDigester retry = merge(suspect == x1Frag ? null : x1Frag.getPayload(), suspect == x2Frag ? null : x2Frag.getPayload(),
+                        pFrag.getPayload(), output, size, spec, null);
+                if(retry.digestEquals(cluster.getId())) {
+                    culprit = suspect;
+                    break;
                 }
-                // else: Do nothing and proceed to next map entry
             }
+            if(culprit == null) {
+                throw new ReconstructionException(cluster.getId(), verification);
+            }
+            if(culprit == x1Frag ? x1Ok : x2Ok) {
+                tampered.add(culprit);
+            } else {
+                corrupted.add(culprit);
+            }
+            parityOk = true;    // The parity was what it all agreed with
+        }
+        if(!pOk) {
+            corrupted.add(pFrag);
+        } else if(!parityOk) {
+            tampered.add(pFrag);
+        }
 
-            // We're done here
-            if(winner == null) {
-                // There were no fragments in the cluster to begin with!
-                throw new InsufficientFragmentsException(0);
+        output.position(output.position() + size);
+        output.flip();
+        return new ReconstructionReport(0, corrupted, tampered, dissenting);
+    }
+
+    /**
+     * Check that a chunk of parity equals x1 ^ x2, eight bytes at a time where possible.
+     * The buffers are left untouched.
+     * @param length Amount of original data bytes the chunk represents
+     */
+    static boolean parityHolds(ByteBuffer x1, int x1Index, ByteBuffer x2, int x2Index, ByteBuffer p, int pIndex, int length) {
+        int pairs = length / 2;
+        int i = 0;
+        for(; i + 8 <= pairs; i += 8) {
+            if(p.getLong(pIndex + i) != (x1.getLong(x1Index + i) ^ x2.getLong(x2Index + i))) {
+                return false;
+            }
+        }
+        for(; i < pairs; i++) {
+            if(p.get(pIndex + i) != (byte)(x1.get(x1Index + i) ^ x2.get(x2Index + i))) {
+                return false;
+            }
+        }
+        // An odd last byte has an implicit x2 pad of 0x00
+        return length % 2 == 0 || p.get(pIndex + pairs) == x1.get(x1Index + pairs);
+    }
+
+    /**
+     * Feed a range of a buffer into a digester, leaving the buffer limit as it was.
+     */
+    private static void update(UUIDDigester digester, ByteBuffer buffer, int index, int length) {
+        if(length <= 0) {
+            return;
+        }
+        int limit = buffer.limit();
+        buffer.limit(index + length);
+        buffer.position(index);
+        digester.update(buffer);
+        buffer.limit(limit);
+    }
+
+    /**
+     * Reports without any corrupted or tampered fragments, by the amount of missing fragments.
+     * Reports are immutable, so these are shared rather than created for every reconstruction.
+     */
+    private static final ReconstructionReport[] cleanReports = {
+            new ReconstructionReport(0, Collections.<Fragment>emptySet(), Collections.<Fragment>emptySet()),
+            new ReconstructionReport(1, Collections.<Fragment>emptySet(), Collections.<Fragment>emptySet()),
+            new ReconstructionReport(2, Collections.<Fragment>emptySet(), Collections.<Fragment>emptySet())
+    };
+
+    /**
+     * Get a report without any corrupted or tampered fragments.
+     */
+    private static ReconstructionReport report(int missing, Set<Fragment> dissenting) {
+        if(missing < cleanReports.length && dissenting.isEmpty()) {
+            return cleanReports[missing];
+        }
+        return new ReconstructionReport(missing, Collections.<Fragment>emptySet(), Collections.<Fragment>emptySet(), dissenting);
+    }
+
+    /**
+     * Reconstruct a range of the data of a striped cluster (see setStripeSize()).
+     * Only the stripes covering the range are merged, each from the matching slices of the payloads, and each is
+     * verified against its digest in the stripe table. Stripes entirely within the range are merged straight into the
+     * output buffer, while a partially covered first or last stripe goes through a scratch buffer. The range is written
+     * from the position of the output buffer, which is flipped afterwards (like by reconstruct()).
+     * If a stripe fails its digest check and there is a surplus piece, the stripe is merged again from the other
+     * pairs of pieces. The piece left out by the pair that verifies is reported as corrupted, since telling corrupted
+     * from tampered would take reading all of it.
+     * @param offset Offset of the range within the original data
+     * @param length Length of the range (in bytes)
+     * @param output Destination buffer to write the reconstructed range, if possible
+     * @return Reconstruction report with further details
+     * @throws InsufficientFragmentsException If insufficient fragments are provided by the cluster
+     * @throws ReconstructionException If a stripe digest check fails with every sufficient pair of pieces
+     * @throws IllegalStateException If the cluster isn't striped
+     * @throws IndexOutOfBoundsException If the range exceeds the data
+     * @throws BufferOverflowException If the output buffer has less room than the length (checked up front)
+     * @throws ReadOnlyBufferException If the output buffer is read-only (checked up front)
+     */
+    public ReconstructionReport reconstructRange(long offset, int length, ByteBuffer output) throws InsufficientFragmentsException, ReconstructionException {
+        XORFragment[] frags = new XORFragment[3];
+        long dataSize;
+        DigestSpec spec;
+        int stripeSize;
+        Set<Fragment> dissenting;
+        HeaderConsensus consensus = concur();
+        try {
+            dataSize = consensus.getDataSize();
+            spec = consensus.getDigest();
+            stripeSize = consensus.getStripeSize();
+            select(consensus, frags);
+            dissenting = consensus.getDissenters();
+        } finally {
+            consensus.reset();
+        }
+        checkRange(offset, length, dataSize, stripeSize);
+        if(output.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        if(output.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        int missing = (frags[0] == null ? 1 : 0) + (frags[1] == null ? 1 : 0) + (frags[2] == null ? 1 : 0);
+        int[] pairs = pairs(frags[0] != null, frags[1] != null, frags[2] != null, missing);
+        if((frags[0] != null && frags[0].getPayload().remaining() < (dataSize + 1) / 2) ||
+                (frags[1] != null && frags[1].getPayload().remaining() < dataSize / 2) ||
+                (frags[2] != null && frags[2].getPayload().remaining() < (dataSize + 1) / 2)) {
+            // This is an erroneous state (some fragment is smaller than required)!
+            throw new Error("Erroneous state during reconstruction!");
+        }
+        XORFragment table = frags[0] != null ? frags[0] : frags[1] != null ? frags[1] : frags[2];
+        ByteBuffer x1 = frags[0] == null ? null : frags[0].getPayload().slice();
+        ByteBuffer x2 = frags[1] == null ? null : frags[1].getPayload().slice();
+        ByteBuffer p = frags[2] == null ? null : frags[2].getPayload().slice();
+
+        ByteBuffer data = output.duplicate();
+        int start = data.position();
+        ByteBuffer scratch = null;
+        UUIDDigester digester = UUIDDigester.forThread(spec);
+        int pair = 0;
+        long end = offset + length;
+        for(long stripeStart = offset - offset % stripeSize; stripeStart < end; stripeStart += stripeSize) {
+            int stripe = (int)(stripeStart / stripeSize);
+            int stripeLength = (int)Math.min(stripeSize, dataSize - stripeStart);
+            int half = (int)(stripeStart / 2);
+            boolean whole = stripeStart >= offset && stripeStart + stripeLength <= end;
+            ByteBuffer dst;
+            int dstIndex;
+            if(whole) {
+                dst = data;
+                dstIndex = start + (int)(stripeStart - offset);
             } else {
-                // This is the end of recursion
-                return winner.getKey();
+                if(scratch == null) {
+                    scratch = ByteBuffer.allocate(stripeSize);
+                }
+                dst = scratch;
+                dstIndex = 0;
+            }
+            while(!mergeStripe(x1, x2, p, half, pairs[pair], dst, dstIndex, stripeLength, digester, table.getStripeDigest(stripe))) {
+                if(++pair == pairs.length) {
+                    throw new ReconstructionException(table.getStripeDigest(stripe), digester.lastDigest());
+                }
+            }
+            if(!whole) {
+                int from = (int)(Math.max(offset, stripeStart) - stripeStart);
+                int to = (int)(Math.min(end, stripeStart + stripeLength) - stripeStart);
+                scratch.limit(to);
+                scratch.position(from);
+                data.position(start + (int)(stripeStart + from - offset));
+                data.put(scratch);
+                scratch.clear();
             }
         }
+
+        output.position(start + length);
+        output.flip();
+        return rangeReport(missing, pair == 0 ? null : frags[pairs[pair] - 1], dissenting);
+    }
+
+    /**
+     * Reconstruct a range of the data of a striped cluster in stream mode (see setStripeSize()).
+     * The cluster given to the constructor supplies the fragment headers (header-only fragments will do) while the
+     * payloads are read from the specified channels, positioned at the first payload byte. Pass null for any missing
+     * fragment. Only the slices of the stripes covering the range are read, each stripe is verified against its digest
+     * in the stripe table before any of it is written, and surplus pieces are used like by the block mode variant.
+     * The channel of a piece whose header is missing from the cluster or dissents from the consensus is ignored.
+     * If a ReconstructionException is thrown, whatever was written to the output channel is verified but incomplete.
+     * The payload channels are left positioned anywhere.
+     * @param offset Offset of the range within the original data
+     * @param length Length of the range (in bytes)
+     * @param output Destination channel for the reconstructed range
+     * @param x1 Channel to read the x1 payload from, or null if missing
+     * @param x2 Channel to read the x2 payload from, or null if missing
+     * @param p Channel to read the parity payload from, or null if missing
+     * @return Reconstruction report with further details
+     * @throws InsufficientFragmentsException If insufficient fragments are provided
+     * @throws ReconstructionException If a stripe digest check fails with every sufficient pair of pieces
+     * @throws IOException Upon a failed channel operation or if a payload ends prematurely
+     * @throws IllegalStateException If the cluster isn't striped
+     * @throws IndexOutOfBoundsException If the range exceeds the data
+     */
+    public ReconstructionReport reconstructRange(long offset, long length, WritableByteChannel output, SeekableByteChannel x1, SeekableByteChannel x2, SeekableByteChannel p) throws InsufficientFragmentsException, ReconstructionException, IOException {
+        XORFragment[] frags = new XORFragment[3];
+        long dataSize;
+        DigestSpec spec;
+        int stripeSize;
+        Set<Fragment> dissenting;
+        HeaderConsensus consensus = concur();
+        try {
+            dataSize = consensus.getDataSize();
+            spec = consensus.getDigest();
+            stripeSize = consensus.getStripeSize();
+            select(consensus, frags);
+            dissenting = consensus.getDissenters();
+        } finally {
+            consensus.reset();
+        }
+        checkRange(offset, length, dataSize, stripeSize);
+
+        // Only use pieces whose headers consent, so that every piece used (or blamed) has a fragment
+        SeekableByteChannel[] channels = { x1, x2, p };
+        for(int i = 0; i < 3; i++) {
+            if(frags[i] == null) {
+                channels[i] = null;
+            }
+        }
+        int missing = (channels[0] == null ? 1 : 0) + (channels[1] == null ? 1 : 0) + (channels[2] == null ? 1 : 0);
+        int[] pairs = pairs(channels[0] != null, channels[1] != null, channels[2] != null, missing);
+        XORFragment table = channels[0] != null ? frags[0] : frags[1];
+        long[] bases = new long[3];
+        for(int i = 0; i < 3; i++) {
+            bases[i] = channels[i] == null ? 0 : channels[i].position();
+        }
+
+        ByteBuffer chunk = acquire(stripeSize);
+        ByteBuffer[] slices = { acquire(stripeSize / 2), acquire(stripeSize / 2), acquire(stripeSize / 2) };
+        boolean[] loaded = new boolean[3];
+        UUIDDigester digester = UUIDDigester.forThread(spec);
+        int pair = 0;
+        long end = offset + length;
+        try {
+            for(long stripeStart = offset - offset % stripeSize; stripeStart < end; stripeStart += stripeSize) {
+                int stripe = (int)(stripeStart / stripeSize);
+                int stripeLength = (int)Math.min(stripeSize, dataSize - stripeStart);
+                Arrays.fill(loaded, false);
+                while(true) {
+                    // Read the slices of the pieces of this pair, unless already read for a previous pair
+                    for(int i = 0; i < 3; i++) {
+                        if(i != pairs[pair] - 1 && channels[i] != null && !loaded[i]) {
+                            channels[i].position(bases[i] + stripeStart / 2);
+                            readPayload(channels[i], slices[i], i == 1 ? stripeLength / 2 : (stripeLength + 1) / 2);
+                            loaded[i] = true;
+                        }
+                    }
+                    chunk.clear();
+                    if(mergeStripe(slices[0], slices[1], slices[2], 0, pairs[pair], chunk, 0, stripeLength, digester, table.getStripeDigest(stripe))) {
+                        break;
+                    }
+                    if(++pair == pairs.length) {
+                        throw new ReconstructionException(table.getStripeDigest(stripe), digester.lastDigest());
+                    }
+                }
+                chunk.limit((int)(Math.min(end, stripeStart + stripeLength) - stripeStart));
+                chunk.position((int)(Math.max(offset, stripeStart) - stripeStart));
+                ChannelUtil.writeFully(output, chunk);
+            }
+        } finally {
+            bufferPool.release(chunk);
+            for(ByteBuffer slice : slices) {
+                bufferPool.release(slice);
+            }
+        }
+        return rangeReport(missing, pair == 0 ? null : frags[pairs[pair] - 1], dissenting);
+    }
+
+    /**
+     * Find the pieces (fragments) among those consenting.
+     * Of conflicting fragments of a piece, the first consenting one in the slot is taken, i.e. the verified one if
+     * any, otherwise the one added first (see Cluster.getPiece()), just like the other algorithms do.
+     * @param consensus Concurred engine
+     * @param frags Array to put the fragments in, indexed by piece - 1
+     */
+    private void select(HeaderConsensus consensus, XORFragment[] frags) {
+        for(int piece = 0; piece < 3; piece++) {
+            XORFragment f = cluster.getPiece(piece);
+            if(f != null && consensus.consents(f)) {
+                frags[piece] = f;
+            } else if(cluster.isConflicting(piece)) {
+                for(XORFragment other : cluster.getPieces(piece)) {
+                    if(consensus.consents(other)) {
+                        frags[piece] = other;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check a range against a striped cluster.
+     */
+    private static void checkRange(long offset, long length, long dataSize, int stripeSize) {
+        if(stripeSize == 0) {
+            throw new IllegalStateException("Cluster is not striped");
+        }
+        if(offset < 0 || length < 0 || offset + length > dataSize) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " exceeds data size " + dataSize);
+        }
+    }
+
+    /**
+     * List the sufficient pairs of pieces, by the piece each leaves out, in order of preference.
+     * @throws InsufficientFragmentsException If there are none
+     */
+    private static int[] pairs(boolean x1, boolean x2, boolean p, int missing) throws InsufficientFragmentsException {
+        if(x1 && x2) {
+            return p ? new int[] { 3, 2, 1 } : new int[] { 3 };
+        } else if(x1 && p) {
+            return new int[] { 2 };
+        } else if(x2 && p) {
+            return new int[] { 1 };
+        }
+        throw new InsufficientFragmentsException(missing);
+    }
+
+    /**
+     * Merge a stripe from a pair of pieces and check it against its digest.
+     * @param x1 x1 payload (slice)
+     * @param x2 x2 payload (slice)
+     * @param p Parity payload (slice)
+     * @param index Index of the stripe within the payloads
+     * @param leftOut The piece not used (1 to 3)
+     * @param dst Destination buffer
+     * @param dstIndex Index of the stripe within the destination buffer
+     * @param length Stripe length
+     * @param digester Digester to use
+     * @param expected Stripe digest
+     * @return true if the stripe verifies
+     */
+    private boolean mergeStripe(ByteBuffer x1, ByteBuffer x2, ByteBuffer p, int index, int leftOut, ByteBuffer dst, int dstIndex, int length, UUIDDigester digester, UUID expected) {
+        x1 = leftOut == 1 ? null : x1;
+        x2 = leftOut == 2 ? null : x2;
+        p = leftOut == 3 ? null : p;
+        if(x1 != null) {
+            x1.position(index);
+        }
+        if(x2 != null) {
+            x2.position(index);
+        }
+        if(p != null) {
+            p.position(index);
+        }
+        dst.position(dstIndex);
+        kernel.merge(x1, x2, p, dst, length);
+        update(digester, dst, dstIndex, length);
+        return digester.digestEquals(expected);
+    }
+
+    /**
+     * Acquire a buffer from the pool if it fits, otherwise allocate it.
+     */
+    private ByteBuffer acquire(int size) {
+        if(size <= bufferPool.getBufferSize()) {
+            return bufferPool.acquire(size);
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Get the report of a range reconstruction.
+     * @param culprit The piece left out due to a failing stripe, or null if none
+     */
+    private static ReconstructionReport rangeReport(int missing, XORFragment culprit, Set<Fragment> dissenting) {
+        if(culprit == null) {
+            return report(missing, dissenting);
+        }
+        Set<Fragment> corrupted = new CopyOnWriteArraySet<Fragment>();
+        corrupted.add(culprit);
+        return new ReconstructionReport(missing, corrupted, Collections.<Fragment>emptySet(), dissenting);
+    }
+
+    /**
+     * Attempt a data reconstruction operation in stream mode.
+     * The cluster given to the constructor supplies the fragment headers (header-only fragments will do) while the
+     * payloads are read from the specified channels, positioned at the first payload byte. Pass null for any missing
+     * fragment. The channel of a piece whose header is missing from the cluster or dissents from the consensus (see
+     * HeaderConsensus) is ignored, i.e. never read, just like a missing fragment. The reconstructed data is written to the output channel in chunks of STREAM_CHUNK_SIZE bytes and the
+     * cluster digest is calculated on the fly, so the memory usage is bounded no matter how large the data is.
+     * Note that the digest can't be verified until all data has been written. If a ReconstructionException is
+     * thrown, whatever was written to the output channel must be discarded.
+     * @param output Destination channel for the reconstructed data
+     * @param x1 Channel to read the x1 payload from, or null if missing
+     * @param x2 Channel to read the x2 payload from, or null if missing
+     * @param p Channel to read the parity payload from, or null if missing
+     * @return Reconstruction report with further details
+     * @throws InsufficientFragmentsException If insufficient fragments are provided
+     * @throws ReconstructionException if the cluster digest (UUID) check fails
+     * @throws IOException Upon a failed channel operation or if a payload ends prematurely
+     */
+    public ReconstructionReport reconstruct(WritableByteChannel output, ReadableByteChannel x1, ReadableByteChannel x2, ReadableByteChannel p) throws InsufficientFragmentsException, ReconstructionException, IOException {
+        Metrics metrics = Metrics.getActive();
+        long start = metrics == null ? 0 : System.nanoTime();
+        long dataSize = 0;
+        ReconstructionReport report = null;
+        try {
+            XORFragment[] frags = new XORFragment[3];
+            UUIDDigester dataDigest;
+            Set<Fragment> dissenting;
+            HeaderConsensus consensus = concur();
+            try {
+                dataSize = consensus.getDataSize();
+                dataDigest = consensus.getDigest().newDigester();
+                select(consensus, frags);
+                dissenting = consensus.getDissenters();
+            } finally {
+                consensus.reset();
+            }
+
+            // Only use pieces whose headers consent
+            x1 = frags[0] == null ? null : x1;
+            x2 = frags[1] == null ? null : x2;
+            p = frags[2] == null ? null : p;
+            int missing = (x1 == null ? 1 : 0) + (x2 == null ? 1 : 0) + (p == null ? 1 : 0);
+            if(x1 != null && x2 != null) {
+                p = null;   // Parity is not needed
+            } else if((x1 == null && x2 == null) || p == null) {
+                throw new InsufficientFragmentsException(missing);
+            }
+            long remaining = dataSize;
+            ByteBuffer chunk = bufferPool.acquire(STREAM_CHUNK_SIZE);
+            ByteBuffer x1Chunk = bufferPool.acquire(STREAM_CHUNK_SIZE / 2);
+            ByteBuffer x2Chunk = bufferPool.acquire(STREAM_CHUNK_SIZE / 2);
+            ByteBuffer pChunk = bufferPool.acquire(STREAM_CHUNK_SIZE / 2);
+            try {
+                while(remaining > 0) {
+                    int length = (int)Math.min(STREAM_CHUNK_SIZE, remaining);
+                    if(x1 != null) {
+                        readPayload(x1, x1Chunk, (length + 1) / 2);
+                    }
+                    if(x2 != null) {
+                        readPayload(x2, x2Chunk, length / 2);
+                    }
+                    if(p != null) {
+                        readPayload(p, pChunk, (length + 1) / 2);
+                    }
+                    chunk.clear();
+                    kernel.merge(x1 == null ? null : x1Chunk, x2 == null ? null : x2Chunk, p == null ? null : pChunk, chunk, length);
+                    chunk.flip();
+
+                    dataDigest.update(chunk.array(), chunk.arrayOffset(), length);
+                    ChannelUtil.writeFully(output, chunk);
+                    remaining -= length;
+                }
+            } finally {
+                bufferPool.release(chunk);
+                bufferPool.release(x1Chunk);
+                bufferPool.release(x2Chunk);
+                bufferPool.release(pChunk);
+            }
+
+            // Verify the supplied digest with the reconstructed data
+            if(!dataDigest.digestEquals(cluster.getId())) {
+                throw new ReconstructionException(cluster.getId(), dataDigest.lastDigest());
+            }
+            report = report(missing, dissenting);
+            return report;
+        } finally {
+            if(metrics != null) {
+                metrics.decoded(report == null ? 0 : dataSize, System.nanoTime() - start, report);
+            }
+        }
+    }
+
+    /**
+     * Read an exact amount of payload bytes from a channel into the beginning of a buffer, ready to be read.
+     */
+    private static void readPayload(ReadableByteChannel src, ByteBuffer dst, int length) throws IOException {
+        dst.clear();
+        dst.limit(length);
+        if(ChannelUtil.readFully(src, dst) != length) {
+            throw new EOFException("Fragment payload ended prematurely");
+        }
+        dst.flip();
+    }
+
+    /**
+     * Repair a cluster by regenerating a single piece (fragment) from the other two.
+     * The regenerated fragment is identical to the original one: same cluster ID, piece, headers and payload, and
+     * thus the same fragment ID. Only the two surviving payloads are read, a chunk at a time, so this takes a
+     * fraction of the I/O and CPU time of reconstructing the original data and fragmenting it anew (which would
+     * produce a new cluster altogether). The original data is never materialized.
+     * The surviving payloads are checked against their fragment IDs as they are read, since a corrupted survivor
+     * would otherwise silently end up in the regenerated fragment. A fragment of the regenerated piece in the cluster
+     * (e.g. a corrupted one, or a header-only one) is ignored.
+     * @param piece The piece to regenerate (1 for x1, 2 for x2 or 3 for parity)
+     * @return The regenerated fragment, with its payload
+     * @throws InsufficientFragmentsException If either of the other two pieces is missing (or has a short payload)
+     * @throws ReconstructionException If a surviving payload fails its fragment digest (UUID) check
+     * @throws IllegalArgumentException If the piece is out of range
+     */
+    public XORFragment repair(int piece) throws InsufficientFragmentsException, ReconstructionException {
+        if(piece < 1 || piece > 3) {
+            throw new IllegalArgumentException("No such XOR piece: " + piece);
+        }
+        XORFragment[] frags = new XORFragment[3];
+        long dataSize;
+        DigestSpec spec;
+        HeaderConsensus consensus = concur();
+        try {
+            dataSize = consensus.getDataSize();
+            spec = consensus.getDigest();
+            select(consensus, frags);
+        } finally {
+            consensus.reset();
+        }
+        if(dataSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Cluster data size exceeds block mode limits: " + dataSize);
+        }
+        frags[piece - 1] = null;
+        int missing = 1;
+        for(int i = 0; i < 3; i++) {
+            if(i != piece - 1 && (frags[i] == null || frags[i].getPayload() == null ||
+                    frags[i].getPayload().remaining() < pieceSize(i + 1, dataSize))) {
+                frags[i] = null;
+                missing++;
+            }
+        }
+        if(missing > 1) {
+            throw new InsufficientFragmentsException(missing);
+        }
+
+        // The base is the survivor at least as large as the regenerated piece, the other one is XORed into it
+        XORFragment base = piece == 1 ? frags[2] : frags[0];
+        XORFragment other = piece == 2 ? frags[2] : frags[1];
+        int baseSize = (int)pieceSize(base.getPiece(), dataSize);
+        int otherSize = (int)pieceSize(other.getPiece(), dataSize);
+        int outSize = (int)pieceSize(piece, dataSize);
+        UUIDDigester baseDigest = spec.newDigester();
+        UUIDDigester otherDigest = spec.newDigester();
+        UUIDDigester outDigest = spec.newDigester();
+        ByteBuffer out = ByteBuffer.allocate(outSize);
+        int chunkSize = STREAM_CHUNK_SIZE / 2;
+        for(int offset = 0; offset < baseSize; offset += chunkSize) {
+            regenerate(at(base.getPayload(), offset), chunk(baseSize, offset, chunkSize),
+                    at(other.getPayload(), offset), chunk(otherSize, offset, chunkSize),
+                    at(out, offset), chunk(outSize, offset, chunkSize), chunk(dataSize / 2, offset, chunkSize),
+                    baseDigest, otherDigest, outDigest);
+        }
+        checkSurvivor(base, baseDigest);
+        checkSurvivor(other, otherDigest);
+        return new XORFragment(base.getVersion(), spec, cluster.getId(), outDigest.digest(), dataSize, (byte)piece,
+                base.getStripeSize(), stripeDigests(base), out);
+    }
+
+    /**
+     * Repair a cluster by regenerating a single piece (fragment) from the other two, in stream mode.
+     * Works like repair(int), but the surviving payloads are read from the specified channels (positioned at the
+     * first payload byte) and the regenerated fragment is written to the output channel, header and all, using a
+     * bounded amount of memory no matter how large the cluster is. The cluster given to the constructor supplies the
+     * fragment headers (header-only fragments will do). Pass null for the piece to regenerate.
+     * As with stream mode fragmentation, the header is reserved at the current position of the output channel and
+     * filled in once the payload is written, and the output channel is left positioned at the end of the fragment.
+     * If a ReconstructionException is thrown, whatever was written to the output channel must be discarded.
+     * @param output Destination channel for the regenerated fragment
+     * @param x1 Channel to read the x1 payload from, or null to regenerate x1
+     * @param x2 Channel to read the x2 payload from, or null to regenerate x2
+     * @param p Channel to read the parity payload from, or null to regenerate the parity
+     * @return The regenerated fragment (header-only, the payload resides in the output channel)
+     * @throws InsufficientFragmentsException If more than one piece is missing (or lacks a header in the cluster)
+     * @throws ReconstructionException If a surviving payload fails its fragment digest (UUID) check
+     * @throws IOException Upon a failed channel operation or if a payload ends prematurely
+     * @throws IllegalArgumentException If no piece is missing
+     */
+    public XORFragment repair(SeekableByteChannel output, ReadableByteChannel x1, ReadableByteChannel x2, ReadableByteChannel p) throws InsufficientFragmentsException, ReconstructionException, IOException {
+        int missing = (x1 == null ? 1 : 0) + (x2 == null ? 1 : 0) + (p == null ? 1 : 0);
+        if(missing == 0) {
+            throw new IllegalArgumentException("No piece to regenerate");
+        } else if(missing > 1) {
+            throw new InsufficientFragmentsException(missing);
+        }
+        int piece = x1 == null ? 1 : x2 == null ? 2 : 3;
+        XORFragment[] frags = new XORFragment[3];
+        long dataSize;
+        DigestSpec spec;
+        HeaderConsensus consensus = concur();
+        try {
+            dataSize = consensus.getDataSize();
+            spec = consensus.getDigest();
+            select(consensus, frags);
+        } finally {
+            consensus.reset();
+        }
+        frags[piece - 1] = null;
+        for(int i = 0; i < 3; i++) {
+            if(i != piece - 1 && frags[i] == null) {
+                throw new InsufficientFragmentsException(2);    // The header of a survivor is missing
+            }
+        }
+
+        // The base is the survivor at least as large as the regenerated piece, the other one is XORed into it
+        XORFragment base = piece == 1 ? frags[2] : frags[0];
+        XORFragment other = piece == 2 ? frags[2] : frags[1];
+        ReadableByteChannel baseChannel = piece == 1 ? p : x1;
+        ReadableByteChannel otherChannel = piece == 2 ? p : x2;
+        long baseSize = pieceSize(base.getPiece(), dataSize);
+        long otherSize = pieceSize(other.getPiece(), dataSize);
+        long outSize = pieceSize(piece, dataSize);
+        UUID[] stripeDigests = stripeDigests(base);
+
+        // Reserve room for the header
+        long outStart = output.position();
+        ChannelUtil.writeFully(output, ByteBuffer.allocate(XORFragment.HEADER_SIZE +
+                (stripeDigests == null ? 0 : stripeDigests.length * XORFragment.STRIPE_ENTRY_SIZE)));
+
+        UUIDDigester baseDigest = spec.newDigester();
+        UUIDDigester otherDigest = spec.newDigester();
+        UUIDDigester outDigest = spec.newDigester();
+        int chunkSize = STREAM_CHUNK_SIZE / 2;
+        ByteBuffer baseChunk = bufferPool.acquire(chunkSize);
+        ByteBuffer otherChunk = bufferPool.acquire(chunkSize);
+        ByteBuffer outChunk = bufferPool.acquire(chunkSize);
+        try {
+            for(long offset = 0; offset < baseSize; offset += chunkSize) {
+                int baseLength = chunk(baseSize, offset, chunkSize);
+                int otherLength = chunk(otherSize, offset, chunkSize);
+                int outLength = chunk(outSize, offset, chunkSize);
+                readPayload(baseChannel, baseChunk, baseLength);
+                readPayload(otherChannel, otherChunk, otherLength);
+                outChunk.clear();
+                regenerate(baseChunk, baseLength, otherChunk, otherLength, outChunk, outLength,
+                        chunk(dataSize / 2, offset, chunkSize), baseDigest, otherDigest, outDigest);
+                outChunk.position(0);
+                outChunk.limit(outLength);
+                ChannelUtil.writeFully(output, outChunk);
+            }
+        } finally {
+            bufferPool.release(baseChunk);
+            bufferPool.release(otherChunk);
+            bufferPool.release(outChunk);
+        }
+        checkSurvivor(base, baseDigest);
+        checkSurvivor(other, otherDigest);
+
+        XORFragment frag = new XORFragment(base.getVersion(), spec, cluster.getId(), outDigest.digest(), dataSize,
+                (byte)piece, base.getStripeSize(), stripeDigests, outSize);
+        writeHeaderAt(output, outStart, frag);
+        return frag;
+    }
+
+    /**
+     * Update a range of the original data of a cluster in place, in its fragment files.
+     * Only the affected byte ranges of the fragments are rewritten: the x1 and x2 bytes of the range and the parity of
+     * their pairs (p' = p ^ old ^ new, i.e. the parity of the new pairs). The digests (UUIDs) can't be updated
+     * incrementally though, so all payloads are read once to calculate the new cluster and fragment IDs (and the
+     * stripe digests of the affected stripes), after which the headers are rewritten. That's still a fraction of the
+     * cost of fragmenting the data anew: nothing but the range and the headers is written.
+     * The same pass checks the fragments as they are: the data against the cluster ID and the parity against x1 and
+     * x2. Nothing is written unless they check out, so an update never launders a corrupted fragment into a new
+     * cluster. A lost or corrupted fragment must thus be repaired first (see repair()).
+     * The cluster given to the constructor supplies the fragment headers (header-only fragments will do), while the
+     * fragments are read from and written to the specified channels, positioned at the start of each fragment (its
+     * header). The channel positions are undefined afterwards. The update isn't atomic: if it fails while writing,
+     * the fragments are left inconsistent.
+     * Note that the cluster ID changes with the data, so fragment files named after it (<clusterId>-<pieceIndex>.frag,
+     * as BitFrag, Batch, AsyncFragmentWriter and Scrubber name them) must be renamed by the caller once this returns.
+     * Scrubber, for one, names repaired fragments after the new cluster ID.
+     * @param offset Offset of the range within the original data
+     * @param data The new data of the range (the remaining bytes of the buffer, which is left untouched)
+     * @param x1 Channel of the x1 fragment
+     * @param x2 Channel of the x2 fragment
+     * @param p Channel of the parity fragment
+     * @return The updated cluster (of header-only fragments), with a new cluster ID
+     * @throws InsufficientFragmentsException If any fragment (header) is missing
+     * @throws ReconstructionException If the data doesn't match the cluster digest (UUID)
+     * @throws InvalidClusterException If the parity doesn't match x1 and x2
+     * @throws IOException Upon a failed channel operation or if a payload ends prematurely
+     * @throws IndexOutOfBoundsException If the range exceeds the data size (which can't be changed)
+     */
+    public Cluster<XORFragment> update(long offset, ByteBuffer data, SeekableByteChannel x1, SeekableByteChannel x2, SeekableByteChannel p) throws InsufficientFragmentsException, ReconstructionException, InvalidClusterException, IOException {
+        XORFragment[] frags = new XORFragment[3];
+        long dataSize;
+        DigestSpec spec;
+        HeaderConsensus consensus = concur();
+        try {
+            dataSize = consensus.getDataSize();
+            spec = consensus.getDigest();
+            select(consensus, frags);
+        } finally {
+            consensus.reset();
+        }
+        int missing = (frags[0] == null || x1 == null ? 1 : 0) + (frags[1] == null || x2 == null ? 1 : 0) + (frags[2] == null || p == null ? 1 : 0);
+        if(missing > 0) {
+            throw new InsufficientFragmentsException(missing);
+        }
+        int length = data.remaining();
+        if(offset < 0 || offset + length > dataSize) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " exceeds data size " + dataSize);
+        }
+        if(length == 0) {
+            return cluster;
+        }
+
+        // The pairs affected by the range, whose new x1, x2 and parity bytes are kept until written
+        long pairStart = offset / 2;
+        long pairEnd = (offset + length + 1) / 2;
+        long x2End = Math.min(pairEnd, dataSize / 2);
+        byte[] x1New = new byte[(int)(pairEnd - pairStart)];
+        byte[] x2New = new byte[(int)(x2End - pairStart)];
+        byte[] pNew = new byte[(int)(pairEnd - pairStart)];
+
+        // The stripes affected by the range, whose digests are recalculated
+        int stripeSize = frags[0].getStripeSize();
+        UUID[] stripeDigests = stripeDigests(frags[0]);
+        UUIDDigester stripeDigest = stripeDigests == null ? null : spec.newDigester();
+        long stripesStart = stripeDigests == null ? 0 : offset / stripeSize * stripeSize;
+        long stripesEnd = stripeDigests == null ? 0 : Math.min(dataSize, ((offset + length - 1) / stripeSize + 1) * stripeSize);
+
+        int headerSize = frags[0].getHeaderSize();
+        long x1Start = x1.position();
+        long x2Start = x2.position();
+        long pStart = p.position();
+        x1.position(x1Start + headerSize);
+        x2.position(x2Start + headerSize);
+        p.position(pStart + headerSize);
+        UUIDDigester oldDataDigest = spec.newDigester();
+        UUIDDigester dataDigest = spec.newDigester();
+        UUIDDigester x1Digest = spec.newDigester();
+        UUIDDigester x2Digest = spec.newDigester();
+        UUIDDigester pDigest = spec.newDigester();
+        ByteBuffer chunk = bufferPool.acquire(STREAM_CHUNK_SIZE);
+        ByteBuffer x1Chunk = bufferPool.acquire(STREAM_CHUNK_SIZE / 2);
+        ByteBuffer x2Chunk = bufferPool.acquire(STREAM_CHUNK_SIZE / 2);
+        ByteBuffer pChunk = bufferPool.acquire(STREAM_CHUNK_SIZE / 2);
+        try {
+            for(long chunkOffset = 0; chunkOffset < dataSize; chunkOffset += STREAM_CHUNK_SIZE) {
+                int chunkLength = (int)Math.min(STREAM_CHUNK_SIZE, dataSize - chunkOffset);
+                readPayload(x1, x1Chunk, (chunkLength + 1) / 2);
+                readPayload(x2, x2Chunk, chunkLength / 2);
+                readPayload(p, pChunk, (chunkLength + 1) / 2);
+                if(!parityHolds(x1Chunk, 0, x2Chunk, 0, pChunk, 0, chunkLength)) {
+                    throw new InvalidClusterException("Parity doesn't match x1 and x2 at offset " + chunkOffset + ", repair the cluster first");
+                }
+                chunk.clear();
+                kernel.merge(x1Chunk, x2Chunk, null, chunk, chunkLength);
+                oldDataDigest.update(chunk.array(), chunk.arrayOffset(), chunkLength);
+
+                long from = Math.max(offset, chunkOffset);
+                long to = Math.min(offset + length, chunkOffset + chunkLength);
+                if(from < to) {
+                    // Overlay the new data, split the chunk anew and keep the new bytes of the affected pairs
+                    ByteBuffer src = data.duplicate();
+                    src.position(src.position() + (int)(from - offset));
+                    src.limit(src.position() + (int)(to - from));
+                    chunk.position((int)(from - chunkOffset));
+                    chunk.put(src);
+                    chunk.position(0);
+                    x1Chunk.clear();
+                    x2Chunk.clear();
+                    pChunk.clear();
+                    kernel.split(chunk, x1Chunk, x2Chunk, pChunk, chunkLength);
+                    keep(x1Chunk, chunkOffset / 2, x1New, pairStart, (chunkLength + 1) / 2);
+                    keep(x2Chunk, chunkOffset / 2, x2New, pairStart, chunkLength / 2);
+                    keep(pChunk, chunkOffset / 2, pNew, pairStart, (chunkLength + 1) / 2);
+                }
+                dataDigest.update(chunk.array(), chunk.arrayOffset(), chunkLength);
+                update(x1Digest, x1Chunk, 0, (chunkLength + 1) / 2);
+                update(x2Digest, x2Chunk, 0, chunkLength / 2);
+                update(pDigest, pChunk, 0, (chunkLength + 1) / 2);
+                if(stripeDigest != null) {
+                    long stripeFrom = Math.max(stripesStart, chunkOffset);
+                    long stripeTo = Math.min(stripesEnd, chunkOffset + chunkLength);
+                    if(stripeFrom < stripeTo) {
+                        updateStripes(stripeDigest, stripeDigests, stripeSize, chunk.array(), chunk.arrayOffset() + (int)(stripeFrom - chunkOffset),
+                                stripeFrom, (int)(stripeTo - stripeFrom), dataSize);
+                    }
+                }
+            }
+        } finally {
+            bufferPool.release(chunk);
+            bufferPool.release(x1Chunk);
+            bufferPool.release(x2Chunk);
+            bufferPool.release(pChunk);
+        }
+        if(!oldDataDigest.digestEquals(cluster.getId())) {
+            throw new ReconstructionException(cluster.getId(), oldDataDigest.lastDigest());
+        }
+
+        // All checks out, so patch the affected pairs, then the headers
+        writeAt(x1, x1Start + headerSize + pairStart, x1New);
+        writeAt(x2, x2Start + headerSize + pairStart, x2New);
+        writeAt(p, pStart + headerSize + pairStart, pNew);
+        Cluster<XORFragment> clust = new Cluster<XORFragment>(dataDigest.digest());
+        XORFragment x1Frag = new XORFragment(frags[0].getVersion(), spec, clust.getId(), x1Digest.digest(), dataSize, (byte)1, stripeSize, stripeDigests, pieceSize(1, dataSize));
+        XORFragment x2Frag = new XORFragment(frags[1].getVersion(), spec, clust.getId(), x2Digest.digest(), dataSize, (byte)2, stripeSize, stripeDigests, pieceSize(2, dataSize));
+        XORFragment pFrag = new XORFragment(frags[2].getVersion(), spec, clust.getId(), pDigest.digest(), dataSize, (byte)3, stripeSize, stripeDigests, pieceSize(3, dataSize));
+        writeHeaderAt(x1, x1Start, x1Frag);
+        writeHeaderAt(x2, x2Start, x2Frag);
+        writeHeaderAt(p, pStart, pFrag);
+        clust.add(x1Frag);
+        clust.add(x2Frag);
+        clust.add(pFrag);
+        return clust;
+    }
+
+    /**
+     * Copy the part of a chunk of piece bytes that falls within a range of kept bytes.
+     * @param chunk Chunk (from index 0)
+     * @param chunkOffset Offset of the chunk within the piece
+     * @param kept Kept bytes
+     * @param keptOffset Offset of the kept bytes within the piece
+     * @param length Length of the chunk
+     */
+    private static void keep(ByteBuffer chunk, long chunkOffset, byte[] kept, long keptOffset, int length) {
+        long from = Math.max(chunkOffset, keptOffset);
+        long to = Math.min(chunkOffset + length, keptOffset + kept.length);
+        if(from < to) {
+            ByteBuffer src = chunk.duplicate();
+            src.position((int)(from - chunkOffset));
+            src.get(kept, (int)(from - keptOffset), (int)(to - from));
+        }
+    }
+
+    /**
+     * Write bytes at a position of a channel.
+     */
+    private static void writeAt(SeekableByteChannel channel, long position, byte[] bytes) throws IOException {
+        channel.position(position);
+        ChannelUtil.writeFully(channel, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Regenerate a chunk of a piece: the chunk of the base XORed with that of the other survivor, as far as the
+     * pairs go (an odd last byte is paired with an x2 pad of 0x00, so it's just copied from the base). All three
+     * chunks are fed into their digesters. The buffers are used from their positions, which are left as they were.
+     * @param xorLength Amount of bytes that are pairs (at most the length of any of the chunks)
+     */
+    private void regenerate(ByteBuffer base, int baseLength, ByteBuffer other, int otherLength, ByteBuffer out, int outLength, int xorLength, UUIDDigester baseDigest, UUIDDigester otherDigest, UUIDDigester outDigest) {
+        int baseIndex = base.position();
+        int otherIndex = other.position();
+        int outIndex = out.position();
+        ByteBuffer copy = base.duplicate();
+        copy.limit(baseIndex + outLength);
+        out.put(copy);
+        out.position(outIndex);
+        kernel.xor(other, out, xorLength);
+        update(baseDigest, base, baseIndex, baseLength);
+        update(otherDigest, other, otherIndex, otherLength);
+        update(outDigest, out, outIndex, outLength);
+        base.position(baseIndex);
+        other.position(otherIndex);
+        out.position(outIndex);
+    }
+
+    /**
+     * Get the size of a piece (payload).
+     */
+    private static long pieceSize(int piece, long dataSize) {
+        return piece == 2 ? dataSize / 2 : (dataSize + 1) / 2;
+    }
+
+    /**
+     * Get the length of a chunk of something, which may well be 0 towards its end.
+     */
+    private static int chunk(long size, long offset, int chunkSize) {
+        return (int)Math.max(0, Math.min(chunkSize, size - offset));
+    }
+
+    /**
+     * Get the stripe table of a fragment, or null if it isn't striped.
+     */
+    private static UUID[] stripeDigests(XORFragment frag) {
+        if(frag.getStripeSize() == 0) {
+            return null;
+        }
+        UUID[] stripeDigests = new UUID[frag.getStripeCount()];
+        for(int i = 0; i < stripeDigests.length; i++) {
+            stripeDigests[i] = frag.getStripeDigest(i);
+        }
+        return stripeDigests;
+    }
+
+    /**
+     * Check the digest of a surviving payload used for repair against its fragment ID.
+     * @throws ReconstructionException If it doesn't match
+     */
+    private static void checkSurvivor(XORFragment frag, UUIDDigester digester) throws ReconstructionException {
+        if(!digester.digestEquals(frag.getId())) {
+            throw new ReconstructionException(frag.getId(), digester.lastDigest());
+        }
+    }
+
+    /**
+     * Concur upon the headers of the cluster, using the consensus engine of the calling thread.
+     * The engine must be reset when done with.
+     * @return Concurred engine
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    private HeaderConsensus concur() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = HeaderConsensus.forThread();
+        try {
+            for(XORFragment frag : cluster) {
+                consensus.add(frag);
+            }
+            consensus.concur();
+        } catch(InsufficientFragmentsException e) {
+            consensus.reset();
+            throw e;
+        }
+        return consensus;
+    }
+
+    /**
+     * Concur upon the digest the cluster and fragment IDs were calculated with.
+     * @see HeaderConsensus
+     * @return The digest most fragments agree upon
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    public DigestSpec concurDigest() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = concur();
+        try {
+            return consensus.getDigest();
+        } finally {
+            consensus.reset();
+        }
+    }
+
+    /**
+     * Concur upon the data size.
+     * This is settled by the header consensus engine (see HeaderConsensus), which votes upon all cluster-level
+     * headers at once without any allocations (or boxing).
+     * @see net.comploud.code.bitfrag.Algorithm
+     * @return Data size (in bytes)
+     * @throws InsufficientFragmentsException If cluster is empty
+     */
+    @Override
+    public long concurDataSize() throws InsufficientFragmentsException {
+        HeaderConsensus consensus = concur();
+        try {
+            return consensus.getDataSize();
+        } finally {
+            consensus.reset();
+        }
     }
 }
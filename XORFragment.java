@@ -1,7 +1,9 @@
 package net.comploud.code.bitfrag;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.UUID;
 
 /**
@@ -9,11 +11,35 @@ import java.util.UUID;
  * Created by tek-ti on 2014-09-08.
  */
 public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
+    /**
+     * Size (in bytes) of the fixed part of the binary fragment header.
+     * version (2) + digest (1) + cluster UUID (16) + fragment UUID (16) + cluster data size (8) + piece (1) +
+     * stripe size (4) + payload size (8)
+     * A striped fragment has its stripe table of a UUID (16) per stripe right after this, see getHeaderSize().
+     */
+    public static final int HEADER_SIZE = 2 + 1 + 16 + 16 + 8 + 1 + 4 + 8;
+
+    /**
+     * Size (in bytes) of each entry of the stripe table.
+     */
+    public static final int STRIPE_ENTRY_SIZE = 16;
+
+    /**
+     * Maximum amount of stripes accepted when parsing, to protect against aggressive mallocs on malformed headers.
+     */
+    public static final int MAX_STRIPE_COUNT = 1 << 20;
+
     /**
      * The fragment version header.
      */
     private final short version;
 
+    /**
+     * The digest header.
+     * Tells how the cluster and fragment IDs were calculated.
+     */
+    private final DigestSpec digest;
+
     /**
      * The cluster ID header.
      * This ID also contains an embedded message digest of the original data.
@@ -30,7 +56,7 @@ public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
      * The cluster data size header.
      * The total size of the original data.
      */
-    private final int clusterDataSize;
+    private final long clusterDataSize;
 
     /**
      * The fragment piece header.
@@ -38,24 +64,95 @@ public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
      */
     private final byte piece;    // TODO Use an enum for this?
 
+    /**
+     * The stripe size header.
+     * The original data is divided into stripes of this size (the last one may be shorter), or 0 if not striped.
+     */
+    private final int stripeSize;
+
+    /**
+     * The stripe table: a digest of the original data of each stripe, or null if not striped.
+     * This lets any range of the data be verified (and hence restored) without the rest of it.
+     */
+    private final UUID[] stripeDigests;
+
     /**
      * The actual fragment data.
+     * May be null for a header-only fragment (the payload resides elsewhere, such as in a file or a channel).
      */
     private final ByteBuffer payload;
 
+    /**
+     * The payload size header.
+     */
+    private final long payloadSize;
+
 
     /**
      * Constructor to be used when creating a fragment for the first time (during the fragmentation process).
      * @param piece What piece of the cluster (algorithm-wise) this is
      * @param payload Payload data for this particular fragment
      */
-    public XORFragment(short version, UUID clusterId, UUID fragId, int clusterDataSize, byte piece, ByteBuffer payload) {
+    public XORFragment(short version, DigestSpec digest, UUID clusterId, UUID fragId, long clusterDataSize, byte piece, ByteBuffer payload) {
+        this(version, digest, clusterId, fragId, clusterDataSize, piece, 0, null, payload, payload.remaining());
+    }
+
+    /**
+     * Constructor for a striped fragment.
+     * @param piece What piece of the cluster (algorithm-wise) this is
+     * @param stripeSize Stripe size (even), or 0 if not striped
+     * @param stripeDigests Digest of each stripe of the original data, or null if not striped
+     * @param payload Payload data for this particular fragment
+     */
+    public XORFragment(short version, DigestSpec digest, UUID clusterId, UUID fragId, long clusterDataSize, byte piece, int stripeSize, UUID[] stripeDigests, ByteBuffer payload) {
+        this(version, digest, clusterId, fragId, clusterDataSize, piece, stripeSize, stripeDigests, payload, payload.remaining());
+    }
+
+    /**
+     * Constructor for a header-only fragment.
+     * This is used in stream mode, where the payload data is never held in memory.
+     * @param piece What piece of the cluster (algorithm-wise) this is
+     * @param payloadSize Size of the payload data (which is kept elsewhere)
+     */
+    public XORFragment(short version, DigestSpec digest, UUID clusterId, UUID fragId, long clusterDataSize, byte piece, long payloadSize) {
+        this(version, digest, clusterId, fragId, clusterDataSize, piece, 0, null, null, payloadSize);
+    }
+
+    /**
+     * Constructor for a striped header-only fragment.
+     * @param piece What piece of the cluster (algorithm-wise) this is
+     * @param stripeSize Stripe size (even), or 0 if not striped
+     * @param stripeDigests Digest of each stripe of the original data, or null if not striped
+     * @param payloadSize Size of the payload data (which is kept elsewhere)
+     */
+    public XORFragment(short version, DigestSpec digest, UUID clusterId, UUID fragId, long clusterDataSize, byte piece, int stripeSize, UUID[] stripeDigests, long payloadSize) {
+        this(version, digest, clusterId, fragId, clusterDataSize, piece, stripeSize, stripeDigests, null, payloadSize);
+    }
+
+    private XORFragment(short version, DigestSpec digest, UUID clusterId, UUID fragId, long clusterDataSize, byte piece, int stripeSize, UUID[] stripeDigests, ByteBuffer payload, long payloadSize) {
+        if((stripeSize == 0) != (stripeDigests == null)) {
+            throw new IllegalArgumentException("Stripe size and stripe table must be given together");
+        }
         this.version = version;
+        this.digest = digest;
         this.clusterId = clusterId;
         this.fragId = fragId;
         this.clusterDataSize = clusterDataSize;
         this.piece = piece;
+        this.stripeSize = stripeSize;
+        this.stripeDigests = stripeDigests;
         this.payload = payload;
+        this.payloadSize = payloadSize;
+    }
+
+    /**
+     * Get a copy of this fragment with all headers the same but another payload.
+     * This is how a header-only fragment is completed once its payload is at hand (e.g. mapped).
+     * @param payload Payload data
+     * @return Fragment with the payload
+     */
+    public XORFragment withPayload(ByteBuffer payload) {
+        return new XORFragment(version, digest, clusterId, fragId, clusterDataSize, piece, stripeSize, stripeDigests, payload, payload.remaining());
     }
 
 
@@ -63,9 +160,13 @@ public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
     // This is because corrupted fragments may set an invalid standard for a cluster and thereby deny all other (valid) fragments that tries to mergeInto() the cluster!
 
 
+    /**
+     * Write this fragment into a buffer.
+     * @see BinaryXORFragmentWriter#writeFragment(ByteBuffer)
+     */
     @Override
-    public void writeFragment(ByteBuffer buffer) throws IOException {
-        // TODO Stub. Go for nio-only or both io and nio?
+    public void writeFragment(ByteBuffer buffer) {
+        new BinaryXORFragmentWriter(this).writeFragment(buffer);
     }
 
     /**
@@ -76,31 +177,16 @@ public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
      */
     @Override
     public void writeFragment(OutputStream stream) throws IOException {
-        DataOutputStream dout = new DataOutputStream(stream);
-
-        // Write version and algorithm header
-        dout.writeShort(getVersion());
-
-        // Write cluster UUID
-        UUID clusterUuid = getClusterId();
-        dout.writeLong(clusterUuid.getMostSignificantBits());
-        dout.writeLong(clusterUuid.getLeastSignificantBits());
-
-        // Write frag UUID
-        dout.writeLong(getId().getMostSignificantBits());
-        dout.writeLong(getId().getLeastSignificantBits());
-
-        // Write cluster parameters
-        dout.writeInt(getClusterDataSize());
-
-        // Write fragment parameters
-        dout.writeByte(getPiece());
-
-        // Write payload size
-        dout.writeInt(getPayload().array().length);
+        new BinaryXORFragmentWriter(this).writeFragment(stream);
+    }
 
-        // Write payload data
-        dout.write(getPayload().array());
+    /**
+     * Write this fragment to a channel.
+     * @see BinaryXORFragmentWriter#writeFragment(WritableByteChannel)
+     */
+    @Override
+    public void writeFragment(WritableByteChannel channel) throws IOException {
+        new BinaryXORFragmentWriter(this).writeFragment(channel);
     }
 
     /**
@@ -111,7 +197,7 @@ public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
      */
     @Override
     public boolean equals(Object other) {
-        if(other == null || !(other instanceof Fragment)) {  // Yep, instanceof. What can you do about it!? :/
+        if(other == null || !(other instanceof XORFragment)) {  // Yep, instanceof. What can you do about it!? :/
             return false;
         } else {
             XORFragment otherFrag = (XORFragment)other;
@@ -120,6 +206,11 @@ public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
         }
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * getPiece() + getId().hashCode();
+    }
+
     /**
      * Get the type 3 UUID for this particular fragment.
      * @return Fragment UUID
@@ -135,6 +226,14 @@ public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
         return version;
     }
 
+    /**
+     * Get the digest header.
+     * @return Digest used for the cluster and fragment IDs
+     */
+    public DigestSpec getDigest() {
+        return digest;
+    }
+
     /**
      * Get the cluster ID header.
      * @return Cluster ID
@@ -148,7 +247,7 @@ public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
      * Get the cluster data size header.
      * @return Cluster data size
      */
-    public int getClusterDataSize() {
+    public long getClusterDataSize() {
         return clusterDataSize;
     }
 
@@ -161,20 +260,91 @@ public class XORFragment implements Fragment, FragmentWriter/*, Serializable*/ {
         return piece;
     }
 
+    /**
+     * Get the zero-based piece index (x1 is 0, x2 is 1 and the parity is 2).
+     * @return Piece index
+     */
+    @Override
+    public int getPieceIndex() {
+        return getPiece() - 1;
+    }
+
+    /**
+     * Any two of the three pieces are sufficient.
+     * @return 2
+     */
+    @Override
+    public int getRequiredPieces() {
+        return 2;
+    }
+
+    /**
+     * Get the stripe size header.
+     * @return Stripe size (in bytes), or 0 if not striped
+     */
+    public int getStripeSize() {
+        return stripeSize;
+    }
+
+    /**
+     * Get the amount of stripes in the stripe table.
+     * @return Stripe count, 0 if not striped
+     */
+    public int getStripeCount() {
+        return stripeDigests == null ? 0 : stripeDigests.length;
+    }
+
+    /**
+     * Get the digest of a stripe of the original data.
+     * @param stripe Stripe index
+     * @return Stripe digest (UUID)
+     */
+    public UUID getStripeDigest(int stripe) {
+        return stripeDigests[stripe];
+    }
+
+    /**
+     * Get the size of the binary header of this fragment, stripe table included.
+     * The payload data follows right after.
+     * @return Header size (in bytes)
+     */
+    public int getHeaderSize() {
+        return HEADER_SIZE + getStripeCount() * STRIPE_ENTRY_SIZE;
+    }
+
+    /**
+     * Calculate the amount of stripes of a striped cluster.
+     * @param dataSize Cluster data size
+     * @param stripeSize Stripe size
+     * @return Stripe count
+     */
+    public static long stripeCount(long dataSize, int stripeSize) {
+        return (dataSize + stripeSize - 1) / stripeSize;
+    }
+
     /**
      * Get the payload data of this fragment.
-     * @return Payload data
+     * @return Payload data, or null if this is a header-only fragment
      */
     @Override
     public ByteBuffer getPayload() { return payload; }
 
+    /**
+     * Get the payload size header.
+     * This is valid for header-only fragments as well.
+     * @return Payload size (in bytes)
+     */
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+
     /**
      * Perform integrity check.
      * @return true if specified digest (ID) is correct, false otherwise
      */
     @Override
     public boolean integrityCheck() {
-        UUID checkUuid = UUID.nameUUIDFromBytes(getPayload().array());
+        UUID checkUuid = UUIDDigester.digest(getDigest(), getPayload());
         return checkUuid.equals(getId());
     }
 
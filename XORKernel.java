@@ -0,0 +1,86 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The core operations of the XOR algorithms: splitting (de-interleaving) original data into x1, x2 and parity, and
+ * merging (interleaving) them back together, as well as plain XOR of whole blocks (for ParityXORAlgorithm).
+ * This is where virtually all CPU time of the XOR algorithms is spent, so there are several implementations of it.
+ * All implementations must produce byte-identical results, which XORKernelCheck verifies.
+ * Buffers are used relative to their current positions, which are advanced by the amount of bytes read or written,
+ * much like the bulk operations of ByteBuffer itself. Any kind of buffer (heap, direct or mapped) may be used.
+ */
+public abstract class XORKernel {
+    /**
+     * System property used to select the default kernel ("scalar" or "wide").
+     */
+    public static final String KERNEL_PROPERTY = "net.comploud.code.bitfrag.kernel";
+
+    /**
+     * The kernel used unless told otherwise.
+     */
+    private static final XORKernel defaultKernel = forName(System.getProperty(KERNEL_PROPERTY, "wide"));
+
+    /**
+     * Get the default kernel.
+     * This is the "wide" kernel unless the KERNEL_PROPERTY system property says otherwise.
+     * @return Default kernel
+     */
+    public static XORKernel getDefault() {
+        return defaultKernel;
+    }
+
+    /**
+     * Look up a kernel by its name.
+     * @param name Kernel name ("scalar" or "wide")
+     * @return The kernel
+     * @throws IllegalArgumentException If there is no kernel by that name
+     */
+    public static XORKernel forName(String name) {
+        if(name.equals("scalar")) {
+            return new ScalarXORKernel();
+        } else if(name.equals("wide")) {
+            return new WideXORKernel();
+        } else {
+            throw new IllegalArgumentException("Unknown XOR kernel: " + name);
+        }
+    }
+
+    /**
+     * Split (de-interleave) original data into x1, x2 and the parity p.
+     * Even bytes go to x1 and odd bytes go to x2. If the length is odd, the last x1 byte is paired with an (implicit)
+     * x2 pad of 0x00, making the last parity byte equal to the last x1 byte.
+     * @param data Original data (length bytes are read, the first of which must be an even byte of the original data)
+     * @param x1 Destination of the x1 bytes ((length + 1) / 2 bytes are written)
+     * @param x2 Destination of the x2 bytes (length / 2 bytes are written)
+     * @param p Destination of the parity bytes ((length + 1) / 2 bytes are written)
+     * @param length Amount of original data bytes to split
+     */
+    public abstract void split(ByteBuffer data, ByteBuffer x1, ByteBuffer x2, ByteBuffer p, int length);
+
+    /**
+     * Merge (interleave) x1 and x2 into original data, recovering a missing x1 or x2 from the parity p.
+     * The x1 and x2 pair is preferred if available, then x1 and p, and last x2 and p. Buffers not used by the chosen
+     * pair are left untouched. The sizes of the supplied pieces must already have been verified.
+     * @param x1 x1 bytes, or null if missing
+     * @param x2 x2 bytes, or null if missing
+     * @param p Parity bytes, or null if missing
+     * @param data Destination of the original data (length bytes are written)
+     * @param length Amount of original data bytes to merge
+     */
+    public abstract void merge(ByteBuffer x1, ByteBuffer x2, ByteBuffer p, ByteBuffer data, int length);
+
+    /**
+     * XOR a block into another, byte by byte (dst = dst ^ src).
+     * @param src Bytes to XOR with (length bytes are read)
+     * @param dst Bytes to XOR into (length bytes are read and written)
+     * @param length Amount of bytes
+     */
+    public abstract void xor(ByteBuffer src, ByteBuffer dst, int length);
+
+    /**
+     * Returns the name of this kernel, as accepted by forName().
+     * @return Kernel name
+     */
+    public abstract String getName();
+}
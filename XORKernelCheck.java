@@ -0,0 +1,202 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Equivalence check of the XOR kernels.
+ * First, every kernel must split a few pinned inputs into exactly the fragments the original byte-by-byte algorithm
+ * produced (by their fragment IDs, which are the MD5 name UUIDs of the payloads), and merge them back from every pair.
+ * Then the wide kernel and the scalar kernel are fed identical random input, at random lengths and positions in heap
+ * and direct buffers, and must leave byte-identical buffers and positions behind after split, merge (on every pair of
+ * pieces) and xor. The seed is fixed unless told otherwise, so that the check is reproducible.
+ * Run by build.sh (it isn't part of the jar); exits with status 1 upon the first difference.
+ * Usage: XORKernelCheck [rounds [seed|random]]
+ */
+class XORKernelCheck {
+    /**
+     * Seed used unless another one is given.
+     */
+    private static final long DEFAULT_SEED = 20141118L;
+
+    /**
+     * Fragment IDs of x1, x2 and p produced by the original algorithm, by data length. Byte i of the data is i*167+13.
+     */
+    private static final String[][] PINNED = {
+            { "0", "d41d8cd9-8f00-3204-a980-0998ecf8427e", "d41d8cd9-8f00-3204-a980-0998ecf8427e", "d41d8cd9-8f00-3204-a980-0998ecf8427e" },
+            { "1", "dcb9be2f-604e-3df9-9deb-9659bed4748d", "d41d8cd9-8f00-3204-a980-0998ecf8427e", "dcb9be2f-604e-3df9-9deb-9659bed4748d" },
+            { "2", "dcb9be2f-604e-3df9-9deb-9659bed4748d", "13733a6e-73c7-3023-8651-f7507c479553", "f361e257-7607-3789-a0db-8ca985bf36c5" },
+            { "15", "e691c6f6-ba67-309d-898a-c4b7b5722c34", "7d42442c-40be-367d-8443-7c58a39a29d4", "a84dac25-44af-3e3b-ae34-9bcaaa27595d" },
+            { "16", "e691c6f6-ba67-309d-898a-c4b7b5722c34", "96c29810-5e46-3afb-b39d-82f4da79aa7d", "c5b424ae-444d-3f0b-97d4-761b571803dd" },
+            { "17", "1cf9a7b1-f530-3e2b-b3a0-7201607a099d", "96c29810-5e46-3afb-b39d-82f4da79aa7d", "e0be3a55-9f04-391b-a048-93dc0e506676" },
+            { "31", "90b9b1d1-51e8-39d7-81bf-29995754a58c", "c218e13e-93ee-3e6e-8af7-847d8827dbbf", "cf229caf-56f7-3949-917c-7a34114b3e90" },
+            { "32", "90b9b1d1-51e8-39d7-81bf-29995754a58c", "a774a3ac-91b4-32c7-8fe2-f24177f4207c", "89f93277-db2b-3490-8c19-8f7decae1538" },
+            { "33", "4c6425a2-cc78-3b1d-91b3-5303ec46dd42", "a774a3ac-91b4-32c7-8fe2-f24177f4207c", "08f4659c-9389-31d8-a8f8-ac990995b356" },
+            { "1001", "f3d12c00-16da-3938-87e6-e0c962655acf", "304dfbef-b873-38d8-9323-5dc92ef8f6c7", "664d73c2-c021-332c-b7a3-ecc06e2719df" }
+    };
+
+    private final Random random;
+    private final XORKernel expected = new ScalarXORKernel();
+    private final XORKernel actual = new WideXORKernel();
+
+    private XORKernelCheck(long seed) {
+        random = new Random(seed);
+    }
+
+    public static void main(String argv[]) {
+        for(XORKernel kernel : new XORKernel[] { new ScalarXORKernel(), new WideXORKernel() }) {
+            String failure = pinned(kernel);
+            if(failure != null) {
+                System.err.println("XOR kernel " + kernel.getName() + " differs from the original algorithm in " + failure);
+                System.exit(1);
+            }
+        }
+
+        int rounds = argv.length > 0 ? Integer.parseInt(argv[0]) : 10000;
+        long seed = argv.length < 2 ? DEFAULT_SEED : argv[1].equals("random") ? System.nanoTime() : Long.parseLong(argv[1]);
+        XORKernelCheck check = new XORKernelCheck(seed);
+        for(int i = 0; i < rounds; i++) {
+            // Mostly short lengths around the word boundaries, sometimes longer ones
+            int length = check.random.nextInt(8) == 0 ? check.random.nextInt(70000) : check.random.nextInt(100);
+            String failure = check.round(length);
+            if(failure != null) {
+                System.err.println("XOR kernels differ in " + failure + " (length " + length + ", round " + i + ", seed " + seed + ")");
+                System.exit(1);
+            }
+        }
+        System.out.println("XOR kernels agree (" + rounds + " rounds, seed " + seed + ")");
+    }
+
+    /**
+     * Check a kernel against the pinned output of the original algorithm.
+     * @return The differing case, or null if the kernel agrees
+     */
+    private static String pinned(XORKernel kernel) {
+        for(String[] pinned : PINNED) {
+            int length = Integer.parseInt(pinned[0]);
+            byte[] data = new byte[length];
+            for(int i = 0; i < length; i++) {
+                data[i] = (byte)(i * 167 + 13);
+            }
+            byte[][] pieces = { new byte[(length + 1) / 2], new byte[length / 2], new byte[(length + 1) / 2] };
+            kernel.split(ByteBuffer.wrap(data), ByteBuffer.wrap(pieces[0]), ByteBuffer.wrap(pieces[1]), ByteBuffer.wrap(pieces[2]), length);
+            for(int i = 0; i < 3; i++) {
+                if(!UUID.nameUUIDFromBytes(pieces[i]).toString().equals(pinned[i + 1])) {
+                    return "split (length " + length + ", piece " + (i + 1) + ")";
+                }
+            }
+            for(int missing = 2; missing >= 0; missing--) {
+                ByteBuffer[] in = { ByteBuffer.wrap(pieces[0]), ByteBuffer.wrap(pieces[1]), ByteBuffer.wrap(pieces[2]) };
+                in[missing] = null;
+                byte[] merged = new byte[length];
+                kernel.merge(in[0], in[1], in[2], ByteBuffer.wrap(merged), length);
+                if(!Arrays.equals(merged, data)) {
+                    return "merge (length " + length + ", without piece " + (missing + 1) + ")";
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check all operations at a length.
+     * @return The differing operation, or null if the kernels agree
+     */
+    private String round(int length) {
+        int half = (length + 1) / 2;
+
+        // Split
+        ByteBuffer data = buffer(length);
+        ByteBuffer[] x1 = pair(half);
+        ByteBuffer[] x2 = pair(length / 2);
+        ByteBuffer[] p = pair(half);
+        ByteBuffer dataCopy = copy(data);
+        int[] starts = { x1[0].position(), x2[0].position(), p[0].position() };
+        expected.split(data, x1[0], x2[0], p[0], length);
+        actual.split(dataCopy, x1[1], x2[1], p[1], length);
+        if(!same(data, dataCopy) || !same(x1) || !same(x2) || !same(p)) {
+            return "split";
+        }
+
+        // Merge, from each pair of pieces
+        String[] names = { "merge x1x2", "merge x1p", "merge x2p" };
+        for(int missing = 2; missing >= 0; missing--) {
+            ByteBuffer[][] pieces = { pair(x1[0], starts[0]), pair(x2[0], starts[1]), pair(p[0], starts[2]) };
+            pieces[missing] = new ByteBuffer[2];
+            ByteBuffer[] out = pair(length);
+            expected.merge(pieces[0][0], pieces[1][0], pieces[2][0], out[0], length);
+            actual.merge(pieces[0][1], pieces[1][1], pieces[2][1], out[1], length);
+            if(!same(out) || !same(pieces[0]) || !same(pieces[1]) || !same(pieces[2])) {
+                return names[2 - missing];
+            }
+        }
+
+        // Xor
+        ByteBuffer src = buffer(length);
+        ByteBuffer srcCopy = copy(src);
+        ByteBuffer[] dst = pair(length);
+        expected.xor(src, dst[0], length);
+        actual.xor(srcCopy, dst[1], length);
+        if(!same(src, srcCopy) || !same(dst)) {
+            return "xor";
+        }
+        return null;
+    }
+
+    /**
+     * Create a buffer of random bytes with room for length bytes at a random position, and random bytes around them.
+     */
+    private ByteBuffer buffer(int length) {
+        int position = random.nextInt(17);
+        int capacity = position + length + random.nextInt(17);
+        ByteBuffer buf = random.nextBoolean() ? ByteBuffer.allocate(capacity) : ByteBuffer.allocateDirect(capacity);
+        byte[] bytes = new byte[capacity];
+        random.nextBytes(bytes);
+        buf.put(bytes);
+        buf.position(position);
+        return buf;
+    }
+
+    /**
+     * Create a pair of identical buffers with room for length bytes, one for each kernel.
+     */
+    private ByteBuffer[] pair(int length) {
+        ByteBuffer buf = buffer(length);
+        return new ByteBuffer[] { buf, copy(buf) };
+    }
+
+    /**
+     * Create a pair of identical buffers holding the bytes written to a buffer from a start up to its position.
+     */
+    private ByteBuffer[] pair(ByteBuffer written, int start) {
+        ByteBuffer buf = buffer(written.position() - start);
+        int position = buf.position();
+        buf.put(written.duplicate().limit(written.position()).position(start));
+        buf.position(position);
+        return new ByteBuffer[] { buf, copy(buf) };
+    }
+
+    /**
+     * Copy a buffer into a new one of the other kind (heap or direct), with the same position.
+     */
+    private static ByteBuffer copy(ByteBuffer buf) {
+        ByteBuffer dup = buf.duplicate().clear();
+        ByteBuffer copy = buf.isDirect() ? ByteBuffer.allocate(dup.capacity()) : ByteBuffer.allocateDirect(dup.capacity());
+        copy.put(dup);
+        copy.position(buf.position());
+        return copy;
+    }
+
+    private static boolean same(ByteBuffer[] pair) {
+        return pair[0] == null ? pair[1] == null : same(pair[0], pair[1]);
+    }
+
+    /**
+     * Whether two buffers have the same position and contents (as a whole).
+     */
+    private static boolean same(ByteBuffer a, ByteBuffer b) {
+        return a.position() == b.position() && a.duplicate().clear().equals(b.duplicate().clear());
+    }
+}
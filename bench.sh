@@ -0,0 +1,19 @@
+#!/bin/sh
+#
+# Builds and runs the JMH benchmarks in bench/ against the BitFrag sources.
+# JMH isn't bundled, so point JMH_CLASSPATH at jmh-core, jmh-generator-annprocess and their dependencies
+# (jopt-simple, commons-math3), e.g.
+#   JMH_CLASSPATH=jmh-core-1.37.jar:jmh-generator-annprocess-1.37.jar:jopt-simple-5.0.4.jar:commons-math3-3.6.1.jar
+# Any arguments are passed on to JMH, e.g. "./bench.sh XORAlgorithmBenchmark -p size=4096".
+# The GC profiler is always enabled to report allocation rates.
+if [ "$0" != "./bench.sh" ]; then
+    echo "Please run this from the root of the BitFrag directory"
+    exit 1
+fi
+if [ -z "$JMH_CLASSPATH" ]; then
+    echo "Please set JMH_CLASSPATH to the JMH jars"
+    exit 1
+fi
+mkdir -p build-bench
+javac -cp "$JMH_CLASSPATH" -d ./build-bench *.java bench/*.java || exit 1
+java -cp "./build-bench:$JMH_CLASSPATH" org.openjdk.jmh.Main -prof gc "$@"
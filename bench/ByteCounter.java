@@ -0,0 +1,25 @@
+package net.comploud.code.bitfrag;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the amount of bytes processed by a benchmark.
+ * JMH reports this as a rate in the output time unit of the benchmark. With microseconds, bytes/us reads as MB/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounter {
+    /**
+     * Bytes processed during the current iteration.
+     */
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+    }
+}
@@ -0,0 +1,92 @@
+package net.comploud.code.bitfrag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the binary fragment format: parsing and writing a single fragment in memory (no disk I/O).
+ * The stream variants go through java.io, the buffer variants use direct buffers and never copy the payload on parse.
+ * Throughput is reported per microsecond, so the "bytes" counter reads as MB/s of payload data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class FragmentIOBenchmark {
+    /**
+     * Size of the fragment payload.
+     */
+    @Param({"64", "4096", "65536", "1048576", "16777216", "268435456", "1073741824"})
+    public int size;
+
+    private XORFragment frag;
+    private byte[] serialized;
+    private BinaryXORFragmentReader reader;
+    private BinaryXORFragmentWriter writer;
+    private OutputStream sink;
+    private ByteBuffer serializedDirect;
+    private ByteBuffer target;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        frag = new XORFragment(XORAlgorithm.SUPPORTED_FRAGMENT_VERSION, DigestSpec.MD5, UUID.randomUUID(), UUID.nameUUIDFromBytes(payload),
+                (long)size * 2, (byte)1, ByteBuffer.wrap(payload));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(XORFragment.HEADER_SIZE + size);
+        new BinaryXORFragmentWriter(frag).writeFragment(bout);
+        serialized = bout.toByteArray();
+        reader = new BinaryXORFragmentReader();
+        writer = new BinaryXORFragmentWriter(frag);
+        sink = OutputStream.nullOutputStream();
+        serializedDirect = ByteBuffer.allocateDirect(serialized.length);
+        serializedDirect.put(serialized).flip();
+        target = ByteBuffer.allocateDirect(serialized.length);
+    }
+
+    @Benchmark
+    public Fragment parseFragment(ByteCounter counter) throws IOException, FragmentFormatException {
+        counter.bytes += size;
+        return reader.parseFragment(new ByteArrayInputStream(serialized));
+    }
+
+    @Benchmark
+    public void writeFragment(ByteCounter counter) throws IOException {
+        counter.bytes += size;
+        writer.writeFragment(sink);
+    }
+
+    @Benchmark
+    public Fragment parseFragmentBuffer(ByteCounter counter) throws FragmentFormatException {
+        counter.bytes += size;
+        return reader.parseFragment(serializedDirect.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer writeFragmentBuffer(ByteCounter counter) {
+        counter.bytes += size;
+        target.clear();
+        writer.writeFragment(target);
+        return target;
+    }
+}
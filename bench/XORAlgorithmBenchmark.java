@@ -0,0 +1,97 @@
+package net.comploud.code.bitfrag;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the XOR algorithm: fragmentation, each reconstruction path and the data size consensus.
+ * Throughput is reported per microsecond, so the "bytes" counter reads as MB/s of original data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class XORAlgorithmBenchmark {
+    /**
+     * Size of the original data.
+     */
+    @Param({"64", "4096", "65536", "1048576", "16777216", "268435456", "1073741824"})
+    public int size;
+
+    private ByteBuffer input;
+    private ByteBuffer output;
+    private XORAlgorithm fragmenter;
+    private Cluster<XORFragment> cluster;
+    private XORAlgorithm concurrer;
+
+    /**
+     * The reconstruction benchmark's own state, so that only it is run once per path.
+     */
+    @State(Scope.Benchmark)
+    public static class Reconstruction {
+        /**
+         * Reconstruction path, named by the fragments present.
+         */
+        @Param({"x1x2", "x1p", "x2p"})
+        public String path;
+
+        private XORAlgorithm reconstructor;
+
+        @Setup(Level.Trial)
+        public void setup(XORAlgorithmBenchmark bench) {
+            // Leave out the piece that is not part of the path
+            byte missing = path.equals("x1x2") ? (byte)3 : path.equals("x1p") ? (byte)2 : (byte)1;
+            Cluster<XORFragment> clust = new Cluster<XORFragment>(bench.cluster.getId());
+            for(XORFragment frag : bench.cluster) {
+                if(frag.getPiece() != missing) {
+                    clust.add(frag);
+                }
+            }
+            reconstructor = new XORAlgorithm(clust);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        input = ByteBuffer.wrap(data);
+        output = ByteBuffer.allocate(size);
+        fragmenter = new XORAlgorithm(null);
+        cluster = fragmenter.fragment(input);
+        concurrer = new XORAlgorithm(cluster);
+    }
+
+    @Benchmark
+    public Cluster<XORFragment> fragment(ByteCounter counter) {
+        counter.bytes += size;
+        return fragmenter.fragment(input);
+    }
+
+    @Benchmark
+    public ReconstructionReport reconstruct(Reconstruction reconstruction, ByteCounter counter) throws InsufficientFragmentsException, ReconstructionException {
+        counter.bytes += size;
+        output.clear();
+        return reconstruction.reconstructor.reconstruct(output);
+    }
+
+    @Benchmark
+    public long concurDataSize() throws InsufficientFragmentsException {
+        return concurrer.concurDataSize();
+    }
+}
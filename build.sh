@@ -8,7 +8,11 @@ if [ "$0" != "./build.sh" ]; then
     exit 1
 fi
 mkdir -p build
-javac -d ./build *.java
+javac -d ./build $(ls *.java | grep -v XORKernelCheck) || exit 1
+# The XOR kernels must produce the very same fragments as the original algorithm (the check stays out of the jar)
+mkdir -p build-check
+javac -cp ./build -d ./build-check XORKernelCheck.java || exit 1
+java -cp ./build:./build-check net.comploud.code.bitfrag.XORKernelCheck || exit 1
 cd build
 jar cvef net.comploud.code.bitfrag.BitFrag BitFrag.jar *
 echo 'Tadaa! One BitFrag.jar created. Run it with "java -jar BitFrag.jar"'